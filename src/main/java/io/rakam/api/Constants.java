@@ -11,7 +11,7 @@ public class Constants {
     public static final String PACKAGE_NAME = "io.rakam.api";
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 5;
 
     public static final String DEFAULT_INSTANCE = "$default_instance";
 
@@ -19,6 +19,23 @@ public class Constants {
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 100;
     public static final int EVENT_MAX_COUNT = 1000;
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
+    public static final long EVENT_MAX_BYTES = 4 * 1024 * 1024; // 4MiB
+    public static final long EVENT_REMOVE_BATCH_BYTES = 16 * 1024; // 16KiB
+    public static final int PENDING_EVENT_QUEUE_CAPACITY = 1024; // must be a power of two
+    public static final long OVERFLOW_BLOCK_TIMEOUT_MILLIS = 100;
+    public static final int MAX_COUNTERS = 1000;
+    public static final int DUPLICATE_RING_SIZE = 32;
+    public static final long METADATA_CHECKPOINT_PERIOD_MILLIS = 5 * 1000; // 5s
+    public static final long DATABASE_IDLE_CLOSE_MILLIS = 30 * 1000; // 30s
+    public static final int GROUP_COMMIT_MAX_EVENTS = 100;
+    public static final long GROUP_COMMIT_MAX_LATENCY_MILLIS = 50;
+    public static final long LOCATION_CACHE_TTL_MILLIS = 60 * 1000; // 1m
+    public static final long PASSIVE_LOCATION_MIN_TIME_MILLIS = 30 * 1000; // 30s
+    public static final int THROUGHPUT_CACHE_SIZE_KIB = 8 * 1024; // 8MiB
+    public static final long THROUGHPUT_MMAP_SIZE_BYTES = 32 * 1024 * 1024; // 32MiB
+    public static final String SPILL_FILE_PREFIX = "rakam_spill_";
+    public static final String SEGMENT_DIR_PREFIX = "rakam_segments_";
+    public static final int SEGMENT_SIZE_BYTES = 1024 * 1024; // 1MiB
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
@@ -0,0 +1,106 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * In-memory totals for {@code RakamClient.increment}. Increments with the same event type,
+ * session, properties and super properties are summed into one counter, which RakamClient writes out as a single
+ * event when the session ends, the app leaves the foreground or events are uploaded.
+ * <b>Note:</b> only use this from logThread.
+ */
+class CounterAggregator {
+
+    static final String COUNT_KEY = "_count";
+    static final String FIRST_TIME_KEY = "_first_time";
+    static final String LAST_TIME_KEY = "_last_time";
+
+    /**
+     * The running total for one event type, session, set of properties and super properties.
+     */
+    static class Counter {
+        final String eventType;
+        final JSONObject properties;
+        final long sessionId;
+        // the super properties when the increments were logged, null if there were none
+        final SuperProperties superProperties;
+        long count;
+        long firstTimestamp;
+        long lastTimestamp;
+
+        Counter(String eventType, JSONObject properties, long sessionId,
+                SuperProperties superProperties, long timestamp) {
+            this.eventType = eventType;
+            this.properties = properties;
+            this.sessionId = sessionId;
+            this.superProperties = superProperties;
+            this.firstTimestamp = timestamp;
+            this.lastTimestamp = timestamp;
+        }
+
+        /**
+         * The properties of the flushed event: the counted properties plus the total and the
+         * first and last increment times.
+         */
+        JSONObject toEventProperties() throws JSONException {
+            JSONObject eventProperties = properties == null
+                    ? new JSONObject() : Utils.cloneJSONObject(properties);
+            eventProperties.put(COUNT_KEY, count);
+            eventProperties.put(FIRST_TIME_KEY, firstTimestamp);
+            eventProperties.put(LAST_TIME_KEY, lastTimestamp);
+            return eventProperties;
+        }
+    }
+
+    private final LinkedHashMap<String, Counter> counters = new LinkedHashMap<String, Counter>();
+
+    /**
+     * Add an increment.
+     *
+     * @return the number of counters held after adding
+     */
+    int add(String eventType, JSONObject properties, long sessionId,
+            SuperProperties superProperties, long delta, long timestamp) {
+        String key = key(eventType, properties, sessionId, superProperties);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = new Counter(eventType, properties, sessionId, superProperties, timestamp);
+            counters.put(key, counter);
+        }
+        counter.count += delta;
+        counter.firstTimestamp = Math.min(counter.firstTimestamp, timestamp);
+        counter.lastTimestamp = Math.max(counter.lastTimestamp, timestamp);
+        return counters.size();
+    }
+
+    /**
+     * Remove and return every counter, oldest first.
+     */
+    List<Counter> drain() {
+        if (counters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Counter> drained = new ArrayList<Counter>(counters.values());
+        counters.clear();
+        return drained;
+    }
+
+    int size() {
+        return counters.size();
+    }
+
+    private static String key(String eventType, JSONObject properties, long sessionId,
+                              SuperProperties superProperties) {
+        StringBuilder key = new StringBuilder(eventType).append('\0').append(sessionId);
+        Utils.appendSortedProperties(key, properties).append('\0');
+        if (superProperties != null) {
+            key.append(superProperties.source);
+        }
+        return key.toString();
+    }
+}
@@ -4,22 +4,28 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseErrorHandler;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
 
     static final Map<String, DatabaseHelper> instances = new HashMap<String, DatabaseHelper>();
 
@@ -30,11 +36,20 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String KEY_FIELD = "key";
     private static final String VALUE_FIELD = "value";
 
+    // the tables of version 4 and before, the names still select the kind of event in the log
     protected static final String EVENT_TABLE_NAME = "events";
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
+    protected static final String LOG_TABLE_NAME = "log";
     private static final String ID_FIELD = "id";
+    private static final String TYPE_FIELD = "type";
     private static final String EVENT_FIELD = "event";
 
+    private static final int EVENT_TYPE = 0;
+    private static final int IDENTIFY_TYPE = 1;
+
+    private static final String INSERT_LOG = "INSERT INTO " + LOG_TABLE_NAME + " ("
+            + TYPE_FIELD + ", " + EVENT_FIELD + ") VALUES (?, ?)";
+
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
             + VALUE_FIELD + " TEXT);";
@@ -47,14 +62,73 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + EVENT_FIELD + " TEXT);";
+    private static final String CREATE_LOG_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + LOG_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + TYPE_FIELD + " INTEGER NOT NULL, " + EVENT_FIELD + " BLOB);";
+    // the per type counts, reads and evictions stay range scans
+    private static final String CREATE_LOG_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + LOG_TABLE_NAME + "_" + TYPE_FIELD + "_" + ID_FIELD + " ON " + LOG_TABLE_NAME
+            + " (" + TYPE_FIELD + ", " + ID_FIELD + ");";
+
+    // files SQLite keeps next to the database, depending on the journal mode
+    private static final String[] JOURNAL_SUFFIXES = {"-journal", "-wal", "-shm"};
 
     File file;
     private String instanceName;
     private boolean callResetListenerOnDatabaseReset = true;
     private DatabaseResetListener databaseResetListener;
+    private ResetListener resetListener;
 
     private static final RakamLog logger = RakamLog.getLogger();
 
+    // statements compiled against the open database, keyed by their SQL
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase statementsDb;
+
+    // with a handler the database stays open between calls and is closed once idle
+    private Handler idleCloseHandler;
+    private long idleCloseTimeoutMillis = Constants.DATABASE_IDLE_CLOSE_MILLIS;
+    // counts releases, so the idle check can tell whether the database was used meanwhile
+    private long releaseCount = 0;
+    private long releaseCountAtCheck;
+    private boolean open = false;
+    private boolean idleCloseScheduled = false;
+    private final Runnable idleCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            closeIfIdle();
+        }
+    };
+
+    private StorageProfile storageProfile = StorageProfile.DURABLE;
+
+    // stored form of the events, only used under the lock
+    private final EventCodec codec = new EventCodec();
+
+    // set while runInTransaction holds a transaction open across several operations
+    private boolean inGroup = false;
+    // set when an operation inside the group ended its own transaction without success, which
+    // makes SQLite roll back the whole group
+    private boolean groupRolledBack = false;
+
+    // row counts of the event tables, counted once after the database is opened and then
+    // kept up to date by every insert and delete. Readable without the lock for metrics.
+    private volatile long eventCount = 0;
+    private volatile long identifyCount = 0;
+    private boolean eventCountValid = false;
+    private boolean identifyCountValid = false;
+    // stored size of the log, summed and kept up to date the same way as the counts
+    private volatile long logBytes = 0;
+    private boolean logBytesValid = false;
+    // stored size of the row written by the last insert, only used under the lock
+    private long insertedBytes = 0;
+
+    // contents of the key-value tables, read once after the database is opened and then
+    // written through, so reads and unchanged writes need no query
+    private final Map<String, String> cachedValues = new HashMap<String, String>();
+    private final Map<String, Long> cachedLongValues = new HashMap<String, Long>();
+    private boolean keyValuesValid = false;
+
     @Deprecated
     static DatabaseHelper getDatabaseHelper(Context context) {
         return getDatabaseHelper(context, null);
@@ -70,7 +144,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return dbHelper;
     }
 
-    private static String getDatabaseName(String instance) {
+    static String getDatabaseName(String instance) {
         return (Utils.isEmptyString(instance) || instance.equals(Constants.DEFAULT_INSTANCE)) ? Constants.DATABASE_NAME : Constants.DATABASE_NAME + "_" + instance;
     }
 
@@ -88,25 +162,312 @@ class DatabaseHelper extends SQLiteOpenHelper {
         this.databaseResetListener = databaseResetListener;
     }
 
+    @Override
+    public void setResetListener(ResetListener resetListener) {
+        this.resetListener = resetListener;
+    }
+
+    private void onDatabaseReset(SQLiteDatabase db) {
+        if (databaseResetListener != null) {
+            databaseResetListener.onDatabaseReset(db);
+        }
+        if (resetListener == null) {
+            return;
+        }
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        Map<String, Long> longValues = new LinkedHashMap<String, Long>();
+        resetListener.onReset(values, longValues);
+        // written with the given database, it cannot be opened again while it is being created
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            insertOrReplaceKeyValueToTable(db, STORE_TABLE_NAME, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : longValues.entrySet()) {
+            insertOrReplaceKeyValueToTable(db, LONG_STORE_TABLE_NAME, entry.getKey(),
+                    entry.getValue());
+        }
+    }
+
+    /**
+     * Keep the database open between calls, and close it on the handler's thread once it has
+     * not been used for the idle timeout, checked on the handler's own clock. Without a handler
+     * it is closed after every call.
+     */
+    synchronized void setIdleCloseHandler(Handler handler) {
+        this.idleCloseHandler = handler;
+    }
+
+    synchronized void setIdleCloseTimeoutMillis(long idleCloseTimeoutMillis) {
+        this.idleCloseTimeoutMillis = idleCloseTimeoutMillis;
+    }
+
+    /**
+     * Set the journal mode and caching used for the database. The profile is applied when the
+     * database is opened, an open database is closed so the next call reopens it with the new
+     * profile.
+     */
+    synchronized void setStorageProfile(StorageProfile storageProfile) {
+        if (storageProfile == null || storageProfile == this.storageProfile) {
+            return;
+        }
+        this.storageProfile = storageProfile;
+        if (open) {
+            close();
+        }
+    }
+
+    synchronized StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    /**
+     * Close the database and drop the compiled statements. Safe to call at any time, the
+     * next call reopens it.
+     */
+    @Override
+    public synchronized void close() {
+        clearStatements();
+        open = false;
+        super.close();
+    }
+
+    // the journal mode has to be set before the database is used, onConfigure runs first
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        configureJournalMode(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // the file may have changed while it was closed, count and read again on first use
+        invalidateCounts();
+        invalidateKeyValues();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // onConfigure is only called from Jelly Bean on
+            configureJournalMode(db);
+        }
+        runPragma(db, "PRAGMA synchronous=" + storageProfile.synchronous);
+        if (storageProfile.cacheSizeKib > 0) {
+            // a negative size is in KiB rather than pages
+            runPragma(db, "PRAGMA cache_size=-" + storageProfile.cacheSizeKib);
+        }
+        if (storageProfile.mmapSizeBytes > 0) {
+            runPragma(db, "PRAGMA mmap_size=" + storageProfile.mmapSizeBytes);
+        }
+        open = true;
+    }
+
+    // WAL is persistent in the file, so it is turned off again for a durable profile
+    private void configureJournalMode(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // no WAL before Honeycomb, the rollback journal is the only mode
+            return;
+        }
+        try {
+            if (storageProfile.writeAheadLogging) {
+                if (!db.isReadOnly()) {
+                    db.enableWriteAheadLogging();
+                }
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                if (db.isWriteAheadLoggingEnabled()) {
+                    db.disableWriteAheadLogging();
+                }
+            } else if (!db.isReadOnly()) {
+                // disableWriteAheadLogging is Jelly Bean only
+                runPragma(db, "PRAGMA journal_mode=DELETE");
+            }
+        } catch (RuntimeException e) {
+            // not every build supports WAL, the default journal still works
+            logger.w(TAG, "Failed to set journal mode for " + storageProfile, e);
+        }
+    }
+
+    // some pragmas return a row, so they go through a cursor rather than execSQL
+    private void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(pragma, null);
+            cursor.moveToFirst();
+        } catch (RuntimeException e) {
+            logger.w(TAG, "Failed to run " + pragma, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        reopenIfDeleted();
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        reopenIfDeleted();
+        return super.getReadableDatabase();
+    }
+
+    // an open connection keeps using a deleted file, reopen so the database is recreated
+    private void reopenIfDeleted() {
+        if (open && !file.exists()) {
+            close();
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Called at the end of every operation instead of closing the database right away.
+     */
+    private void releaseDatabase() {
+        if (inGroup) {
+            // the group's transaction is still open, runInTransaction releases it at the end
+            return;
+        }
+        if (idleCloseHandler == null || idleCloseTimeoutMillis <= 0) {
+            close();
+            return;
+        }
+        releaseCount++;
+        if (!idleCloseScheduled) {
+            scheduleIdleCheck();
+        }
+    }
+
+    private void scheduleIdleCheck() {
+        idleCloseScheduled = true;
+        releaseCountAtCheck = releaseCount;
+        idleCloseHandler.postDelayed(idleCloseRunnable, idleCloseTimeoutMillis);
+    }
+
+    private synchronized void closeIfIdle() {
+        idleCloseScheduled = false;
+        if (releaseCount != releaseCountAtCheck && idleCloseHandler != null
+                && idleCloseTimeoutMillis > 0) {
+            // used since the check was scheduled, check again a whole timeout later
+            scheduleIdleCheck();
+            return;
+        }
+        close();
+    }
+
+    /**
+     * Run several operations in one transaction, so they share a single commit. Other threads
+     * wait until the runnable returns. The operations keep returning their ids as usual, and
+     * their own transactions nest inside this one. If the database has to be reset during the
+     * runnable, the operations before the reset are lost with it, like any other data.
+     *
+     * @return false if the group was rolled back, the ids handed out inside it are not valid
+     */
+    @Override
+    public synchronized boolean runInTransaction(Runnable runnable) {
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+        } catch (SQLiteException e) {
+            // every operation still handles its own errors, just run them one by one
+            logger.e(TAG, "runInTransaction failed to begin", e);
+            db = null;
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "runInTransaction failed to begin", e);
+            db = null;
+        }
+
+        boolean success = false;
+        boolean committed = db == null;
+        inGroup = db != null;
+        groupRolledBack = false;
+        try {
+            runnable.run();
+            success = true;
+        } finally {
+            inGroup = false;
+            if (db != null && db.isOpen()) {
+                try {
+                    if (success && !groupRolledBack) {
+                        db.setTransactionSuccessful();
+                        committed = true;
+                    } else {
+                        // rolled back, the counts and values include writes never committed
+                        invalidateCounts();
+                        invalidateKeyValues();
+                    }
+                    db.endTransaction();
+                } catch (SQLiteException e) {
+                    committed = false;
+                    invalidateCounts();
+                    invalidateKeyValues();
+                    logger.e(TAG, "runInTransaction failed to commit", e);
+                    // Hard to recover from SQLiteExceptions, just start fresh
+                    Diagnostics.getLogger().logError("DB: Failed to commit transaction", e);
+                    delete();
+                }
+            }
+            releaseDatabase();
+        }
+        return committed;
+    }
+
+    /**
+     * Get a compiled statement from the cache, compiling it on first use. The statement must
+     * be used and left while holding the lock, its bindings are replaced on every use.
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (db != statementsDb) {
+            // the database was reopened, the old statements belong to the closed connection
+            clearStatements();
+            statementsDb = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    private void clearStatements() {
+        for (SQLiteStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (RuntimeException e) {
+                logger.w(TAG, e);
+            }
+        }
+        statements.clear();
+        statementsDb = null;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        invalidateCounts();
+        invalidateKeyValues();
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
         // for the field will be monotonically increasing and unique over the
         // lifetime of the table, even if rows get removed
-        db.execSQL(CREATE_EVENTS_TABLE);
-        db.execSQL(CREATE_IDENTIFYS_TABLE);
+        db.execSQL(CREATE_LOG_TABLE);
+        db.execSQL(CREATE_LOG_INDEX);
 
         // NOTE: the database file can become corrupted between interactions
         // getWriteableDatabase and getReadableDatabase will test for corruption
         // and actually delete the database file and call onCreate again if it's corrupted
         // Our normal catch exception and delete database does not get triggered in this scenario
         // Therefore we are also calling the reset callback inside onCreate
-        if (databaseResetListener != null && callResetListenerOnDatabaseReset) {
+        if ((databaseResetListener != null || resetListener != null)
+                && callResetListenerOnDatabaseReset) {
             try {
                 callResetListenerOnDatabaseReset = false;  // guards against stack overflow
-                databaseResetListener.onDatabaseReset(db);
+                onDatabaseReset(db);
             } catch (SQLiteException e) {
                 logger.e(TAG, String.format("databaseReset callback failed during onCreate"), e);
                 Diagnostics.getLogger().logError(
@@ -120,6 +481,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        invalidateCounts();
+        invalidateKeyValues();
         if (oldVersion > newVersion) {
             logger.e(TAG, "onUpgrade() with invalid oldVersion and newVersion");
             resetDatabase(db);
@@ -141,6 +504,33 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 3) break;
 
             case 3:
+                // events are stored compressed from version 4, the TEXT rows are still
+                // readable. The bump keeps older versions, which cannot read the new rows,
+                // from opening the database.
+                if (newVersion <= 4) break;
+
+            case 4:
+                // events and identifys move into one log with a single id sequence, in the
+                // order uploads used to merge them. Missing tables are created empty first.
+                db.execSQL(CREATE_EVENTS_TABLE);
+                db.execSQL(CREATE_IDENTIFYS_TABLE);
+                db.execSQL(CREATE_LOG_TABLE);
+                db.execSQL(CREATE_LOG_INDEX);
+                db.execSQL("INSERT INTO " + LOG_TABLE_NAME + " (" + TYPE_FIELD + ", "
+                        + EVENT_FIELD + ") SELECT " + TYPE_FIELD + ", " + EVENT_FIELD
+                        + " FROM (SELECT " + EVENT_TYPE + " AS " + TYPE_FIELD + ", " + ID_FIELD
+                        + ", " + EVENT_FIELD + " FROM " + EVENT_TABLE_NAME + " UNION ALL SELECT "
+                        + IDENTIFY_TYPE + ", " + ID_FIELD + ", " + EVENT_FIELD + " FROM "
+                        + IDENTIFY_TABLE_NAME + ") ORDER BY " + ID_FIELD + ", " + TYPE_FIELD
+                        + " DESC");
+                db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
+                db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
+                // the stored last ids point into the old sequences
+                updateLastLogId(db, RakamClient.LAST_EVENT_ID_KEY, EVENT_TYPE);
+                updateLastLogId(db, RakamClient.LAST_IDENTIFY_ID_KEY, IDENTIFY_TYPE);
+                if (newVersion <= 5) break;
+
+            case 5:
                 break;
 
             default:
@@ -154,20 +544,95 @@ class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + LOG_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    private static void updateLastLogId(SQLiteDatabase db, String key, int type) {
+        db.execSQL("UPDATE " + LONG_STORE_TABLE_NAME + " SET " + VALUE_FIELD
+                + " = (SELECT IFNULL(MAX(" + ID_FIELD + "), -1) FROM " + LOG_TABLE_NAME
+                + " WHERE " + TYPE_FIELD + " = " + type + ") WHERE " + KEY_FIELD + " = ?",
+                new Object[]{key});
+    }
+
+    private static int typeOf(String table) {
+        return table.equals(IDENTIFY_TABLE_NAME) ? IDENTIFY_TYPE : EVENT_TYPE;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
         return value == null ? deleteKeyFromTable(STORE_TABLE_NAME, key) :
                 insertOrReplaceKeyValueToTable(STORE_TABLE_NAME, key, value);
     }
 
-    synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
         return value == null ? deleteKeyFromTable(LONG_STORE_TABLE_NAME, key) :
                 insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
 
+    /**
+     * Write several long values in one transaction, skipped if none of them changed.
+     */
+    @Override
+    public synchronized void insertOrReplaceKeyLongValues(Map<String, Long> values) {
+        boolean changed = false;
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            if (!isStored(LONG_STORE_TABLE_NAME, entry.getKey(), entry.getValue())) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        SQLiteDatabase db = null;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                insertOrReplaceKeyLongValues(db, values);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "insertOrReplaceKeyLongValues failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError("DB: Failed to insertOrReplaceKeyLongValues", e);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "insertOrReplaceKeyLongValues failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError("DB: Failed to insertOrReplaceKeyLongValues", e);
+            delete();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    private void insertOrReplaceKeyLongValues(SQLiteDatabase db, Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                if (!isStored(LONG_STORE_TABLE_NAME, entry.getKey(), null)) {
+                    db.delete(LONG_STORE_TABLE_NAME, KEY_FIELD + "=?",
+                            new String[]{entry.getKey()});
+                    cachedLongValues.remove(entry.getKey());
+                }
+            } else {
+                insertOrReplaceKeyValueToTable(db, LONG_STORE_TABLE_NAME, entry.getKey(),
+                        entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the id of the row, -1 if the write failed, or 0 if the value was already stored
+     */
     synchronized long insertOrReplaceKeyValueToTable(String table, String key, Object value) {
+        if (isStored(table, key, value)) {
+            return 0;
+        }
         long result = -1;
         SQLiteDatabase db = null;
         try {
@@ -188,14 +653,15 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            if (db != null && db.isOpen()) {
-                close();
-            }
+            releaseDatabase();
         }
         return result;
     }
 
     synchronized long insertOrReplaceKeyValueToTable(SQLiteDatabase db, String table, String key, Object value) throws SQLiteException, StackOverflowError {
+        if (value != null && isStored(table, key, value)) {
+            return 0;
+        }
         long result = -1;
         ContentValues contentValues = new ContentValues();
         contentValues.put(KEY_FIELD, key);
@@ -207,24 +673,40 @@ class DatabaseHelper extends SQLiteOpenHelper {
         result = insertKeyValueContentValuesIntoTable(db, table, contentValues);
         if (result == -1) {
             logger.w(TAG, "Insert failed");
+        } else if (keyValuesValid) {
+            if (table.equals(STORE_TABLE_NAME)) {
+                cachedValues.put(key, (String) value);
+            } else {
+                cachedLongValues.put(key, (Long) value);
+            }
         }
         return result;
     }
 
     synchronized long insertKeyValueContentValuesIntoTable(SQLiteDatabase db, String table, ContentValues contentValues) throws SQLiteException, StackOverflowError {
-        return db.insertWithOnConflict(
-                table,
-                null,
-                contentValues,
-                SQLiteDatabase.CONFLICT_REPLACE
-        );
+        SQLiteStatement statement = getStatement(db, "INSERT OR REPLACE INTO " + table
+                + " (" + KEY_FIELD + ", " + VALUE_FIELD + ") VALUES (?, ?)");
+        statement.bindString(1, contentValues.getAsString(KEY_FIELD));
+        Object value = contentValues.get(VALUE_FIELD);
+        if (value == null) {
+            statement.bindNull(2);
+        } else if (value instanceof Long) {
+            statement.bindLong(2, (Long) value);
+        } else {
+            statement.bindString(2, value.toString());
+        }
+        return statement.executeInsert();
     }
 
     synchronized long deleteKeyFromTable(String table, String key) {
+        if (isStored(table, key, null)) {
+            return 0;
+        }
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
             result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
+            (table.equals(STORE_TABLE_NAME) ? cachedValues : cachedLongValues).remove(key);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("deleteKey from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -240,28 +722,154 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseDatabase();
         }
         return result;
     }
 
     synchronized long addEvent(String event) {
-        return addEventToTable(EVENT_TABLE_NAME, event);
+        return addEventToTable(EVENT_TABLE_NAME, event, null, null);
     }
 
     synchronized long addIdentify(String identifyEvent) {
-        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, null, null);
+    }
+
+    /**
+     * Add an event and, in the same transaction, write the long values and store the new
+     * event id under {@code idKey}.
+     */
+    @Override
+    public synchronized long addEvent(String event, String idKey, Map<String, Long> metadata) {
+        return addEventToTable(EVENT_TABLE_NAME, event, idKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent, String idKey,
+                                         Map<String, Long> metadata) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, idKey, metadata);
+    }
+
+    /**
+     * Add several events in one transaction with a single compiled statement, then write the
+     * long values and store the id of the last event under {@code idKey}. Either every event
+     * is saved or none is.
+     *
+     * @return the id of the last event, or -1 if nothing was saved
+     */
+    @Override
+    public synchronized long addEvents(List<String> events, String idKey, Map<String, Long> metadata) {
+        if (events.isEmpty()) {
+            return -1;
+        }
+        long result = -1;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = getStatement(db, INSERT_LOG);
+            db.beginTransaction();
+            try {
+                long id = -1;
+                long bytes = 0;
+                for (String event : events) {
+                    byte[] stored = codec.encode(event);
+                    statement.bindLong(1, EVENT_TYPE);
+                    statement.bindBlob(2, stored);
+                    bytes += stored.length;
+                    id = statement.executeInsert();
+                    if (id == -1) {
+                        break;
+                    }
+                }
+                if (id != -1) {
+                    if (metadata != null) {
+                        insertOrReplaceKeyLongValues(db, metadata);
+                    }
+                    if (idKey != null) {
+                        insertOrReplaceKeyValueToTable(db, LONG_STORE_TABLE_NAME, idKey, id);
+                    }
+                    db.setTransactionSuccessful();
+                    result = id;
+                    adjustCount(EVENT_TABLE_NAME, events.size());
+                    adjustBytes(bytes);
+                }
+            } finally {
+                db.endTransaction();
+            }
+            if (result == -1) {
+                logger.w(TAG, String.format("Insert of %d events failed", events.size()));
+                if (inGroup) {
+                    // SQLite rolls back the whole group once a nested transaction fails
+                    groupRolledBack = true;
+                }
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "addEvents failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to addEvents: %d events", events.size()), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "addEvents failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to addEvents: %d events", events.size()), e
+            );
+            delete();
+        } finally {
+            releaseDatabase();
+        }
+        return result;
+    }
+
+    private synchronized long addEventToTable(String table, String event, String idKey,
+                                              Map<String, Long> metadata) {
+        return addEventToTable(table, event, idKey, metadata, true);
     }
 
-    private synchronized long addEventToTable(String table, String event) {
+    /**
+     * With write-behind metadata the insert is often the first statement to hit a corrupt
+     * database, so after starting fresh it is tried once more instead of losing the event.
+     */
+    private synchronized long addEventToTable(String table, String event, String idKey,
+                                              Map<String, Long> metadata, boolean retryOnReset) {
         long result = -1;
+        // the caller's map can be written or cleared from the reset listener before the retry
+        Map<String, Long> retryMetadata = !retryOnReset || metadata == null ? null
+                : metadata.isEmpty() ? Collections.<String, Long>emptyMap()
+                : new LinkedHashMap<String, Long>(metadata);
         try {
             SQLiteDatabase db = getWritableDatabase();
             ContentValues contentValues = new ContentValues();
             contentValues.put(EVENT_FIELD, event);
-            result = insertEventContentValuesIntoTable(db, table, contentValues);
+            if (idKey == null && (metadata == null || metadata.isEmpty())) {
+                result = insertEventContentValuesIntoTable(db, table, contentValues);
+            } else {
+                db.beginTransaction();
+                try {
+                    result = insertEventContentValuesIntoTable(db, table, contentValues);
+                    if (result != -1) {
+                        if (metadata != null) {
+                            insertOrReplaceKeyLongValues(db, metadata);
+                        }
+                        if (idKey != null) {
+                            insertOrReplaceKeyValueToTable(db, LONG_STORE_TABLE_NAME, idKey, result);
+                        }
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+                if (result == -1 && inGroup) {
+                    // SQLite rolls back the whole group once a nested transaction fails
+                    groupRolledBack = true;
+                }
+            }
             if (result == -1) {
                 logger.w(TAG, String.format("Insert into %s failed", table));
+            } else {
+                adjustCount(table, 1);
+                adjustBytes(insertedBytes);
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
@@ -270,6 +878,9 @@ class DatabaseHelper extends SQLiteOpenHelper {
                     String.format("DB: Failed to addEvent: %s", event), e
             );
             delete();
+            if (retryOnReset) {
+                result = addEventToTable(table, event, idKey, retryMetadata, false);
+            }
         } catch (StackOverflowError e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
             // potential stack overflow error when getting database on custom Android versions
@@ -278,20 +889,39 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseDatabase();
         }
         return result;
     }
 
     synchronized long insertEventContentValuesIntoTable(SQLiteDatabase db, String table, ContentValues contentValues) throws SQLiteException, StackOverflowError {
-        return db.insert(table, null, contentValues);
+        try {
+            SQLiteStatement statement = getStatement(db, INSERT_LOG);
+            statement.bindLong(1, typeOf(table));
+            String event = contentValues.getAsString(EVENT_FIELD);
+            if (event == null) {
+                statement.bindNull(2);
+                insertedBytes = 0;
+            } else {
+                byte[] stored = codec.encode(event);
+                statement.bindBlob(2, stored);
+                insertedBytes = stored.length;
+            }
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            // a failed insert returns -1 like SQLiteDatabase.insert, it does not reset the database
+            logger.e(TAG, String.format("Insert into %s failed", table), e);
+            return -1;
+        }
     }
 
-    synchronized String getValue(String key) {
+    @Override
+    public synchronized String getValue(String key) {
         return (String) getValueFromTable(STORE_TABLE_NAME, key);
     }
 
-    synchronized Long getLongValue(String key) {
+    @Override
+    public synchronized Long getLongValue(String key) {
         return (Long) getValueFromTable(LONG_STORE_TABLE_NAME, key);
     }
 
@@ -299,14 +929,23 @@ class DatabaseHelper extends SQLiteOpenHelper {
         Object value = null;
         Cursor cursor = null;
         try {
-            SQLiteDatabase db = getReadableDatabase();
-            cursor = queryDb(
-                    db, table, new String[]{KEY_FIELD, VALUE_FIELD}, KEY_FIELD + " = ?",
-                    new String[]{key}, null, null, null, null
-            );
-            if (cursor.moveToFirst()) {
-                value = table.equals(STORE_TABLE_NAME) ? cursor.getString(1) : cursor.getLong(1);
+            if (!keyValuesCached()) {
+                SQLiteDatabase db = getReadableDatabase();
+                invalidateKeyValues();
+                cursor = queryDb(db, STORE_TABLE_NAME, new String[]{KEY_FIELD, VALUE_FIELD},
+                        null, null, null, null, null, null);
+                while (cursor.moveToNext()) {
+                    cachedValues.put(cursor.getString(0), cursor.getString(1));
+                }
+                cursor.close();
+                cursor = queryDb(db, LONG_STORE_TABLE_NAME, new String[]{KEY_FIELD, VALUE_FIELD},
+                        null, null, null, null, null, null);
+                while (cursor.moveToNext()) {
+                    cachedLongValues.put(cursor.getString(0), cursor.getLong(1));
+                }
+                keyValuesValid = true;
             }
+            value = table.equals(STORE_TABLE_NAME) ? cachedValues.get(key) : cachedLongValues.get(key);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getValue from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -330,7 +969,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseDatabase();
         }
         return value;
     }
@@ -345,21 +984,52 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return getEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
     }
 
+    /**
+     * Get the events and identifys together in the order they were saved, with one range read
+     * of the log.
+     *
+     * @param upToId the highest id to return, or -1 for no limit
+     * @param limit  the most rows to return, or -1 for no limit
+     */
+    @Override
+    public synchronized List<JSONObject> getLog(long upToId, long limit) throws JSONException {
+        return getEventsFromLog(LOG_TABLE_NAME,
+                upToId >= 0 ? ID_FIELD + " <= " + upToId : null, limit);
+    }
+
     protected synchronized List<JSONObject> getEventsFromTable(
             String table, long upToId, long limit) throws JSONException {
+        String selection = TYPE_FIELD + " = " + typeOf(table);
+        if (upToId >= 0) {
+            selection += " AND " + ID_FIELD + " <= " + upToId;
+        }
+        return getEventsFromLog(table, selection, limit);
+    }
+
+    private List<JSONObject> getEventsFromLog(
+            String table, String selection, long limit) throws JSONException {
         List<JSONObject> events = new LinkedList<JSONObject>();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                    db, table, new String[] { ID_FIELD, EVENT_FIELD },
-                    upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
+                    db, LOG_TABLE_NAME, new String[] { ID_FIELD, EVENT_FIELD },
+                    selection, null, null, null,
                     ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
 
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
-                String event = cursor.getString(1);
+                String event;
+                try {
+                    event = codec.decode(cursor.getBlob(1));
+                } catch (DataFormatException e) {
+                    logger.e(TAG, String.format("Skipping corrupt event %d in %s", eventId, table), e);
+                    Diagnostics.getLogger().logError(
+                            String.format("DB: Failed to decode event from table %s", table), e
+                    );
+                    continue;
+                }
                 if (Utils.isEmptyString(event)) {
                     continue;
                 }
@@ -391,31 +1061,157 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseDatabase();
         }
         return events;
     }
 
-    synchronized long getEventCount() {
+    @Override
+    public synchronized long getEventCount() {
         return getEventCountFromTable(EVENT_TABLE_NAME);
     }
 
-    synchronized long getIdentifyCount() {
+    @Override
+    public synchronized long getIdentifyCount() {
         return getEventCountFromTable(IDENTIFY_TABLE_NAME);
     }
 
-    synchronized long getTotalEventCount() {
+    @Override
+    public synchronized long getTotalEventCount() {
         return getEventCount() + getIdentifyCount();
     }
 
+    /**
+     * The number of rows in each event table as last counted, without touching the database.
+     * Safe to call from any thread.
+     */
+    @Override
+    public long getCachedEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public long getCachedIdentifyCount() {
+        return identifyCount;
+    }
+
+    /**
+     * The stored size of the log, summed once after the database is opened and then kept up
+     * to date by every insert and delete.
+     */
+    @Override
+    public synchronized long getLogBytes() {
+        if (logBytesValid && open && file.exists()) {
+            return logBytes;
+        }
+
+        long bytes = 0;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            bytes = sumBytes(db, null);
+            logBytes = bytes;
+            logBytesValid = open;
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getLogBytes failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError("DB: Failed to getLogBytes", e);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "getLogBytes failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError("DB: Failed to getLogBytes", e);
+            delete();
+        } finally {
+            releaseDatabase();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getCachedLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * The size of the database file with its journal or write-ahead log.
+     */
+    @Override
+    public long getFileBytes() {
+        long bytes = file.length();
+        for (String suffix : JOURNAL_SUFFIXES) {
+            bytes += new File(file.getPath() + suffix).length();
+        }
+        return bytes;
+    }
+
+    private void adjustCount(String table, long delta) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            if (eventCountValid) {
+                eventCount += delta;
+            }
+        } else if (identifyCountValid) {
+            identifyCount += delta;
+        }
+    }
+
+    private void adjustBytes(long delta) {
+        if (logBytesValid) {
+            logBytes += delta;
+        }
+    }
+
+    private void invalidateCounts() {
+        eventCountValid = false;
+        identifyCountValid = false;
+        logBytesValid = false;
+    }
+
+    private void invalidateKeyValues() {
+        keyValuesValid = false;
+        cachedValues.clear();
+        cachedLongValues.clear();
+    }
+
+    private boolean keyValuesCached() {
+        return keyValuesValid && open && file.exists();
+    }
+
+    /**
+     * Whether the table is known to hold the value under the key, a null value meaning the key
+     * is not there. False whenever the tables have not been read since the database opened.
+     */
+    private boolean isStored(String table, String key, Object value) {
+        if (!keyValuesCached()) {
+            return false;
+        }
+        Map<String, ?> cache = table.equals(STORE_TABLE_NAME) ? cachedValues : cachedLongValues;
+        if (value == null) {
+            return !cache.containsKey(key);
+        }
+        return value.equals(cache.get(key));
+    }
+
     private synchronized long getEventCountFromTable(String table) {
+        boolean isEvents = table.equals(EVENT_TABLE_NAME);
+        if ((isEvents ? eventCountValid : identifyCountValid) && open && file.exists()) {
+            return isEvents ? eventCount : identifyCount;
+        }
+
         long numberRows = 0;
-        SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT COUNT(*) FROM " + table;
-            statement = db.compileStatement(query);
+            SQLiteStatement statement = getStatement(db, "SELECT COUNT(*) FROM "
+                    + LOG_TABLE_NAME + " WHERE " + TYPE_FIELD + " = ?");
+            statement.bindLong(1, typeOf(table));
             numberRows = statement.simpleQueryForLong();
+            // counted in the connection that is now open, kept up to date until it is reopened
+            if (isEvents) {
+                eventCount = numberRows;
+                eventCountValid = open;
+            } else {
+                identifyCount = numberRows;
+                identifyCountValid = open;
+            }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -431,10 +1227,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
+            releaseDatabase();
         }
         return numberRows;
     }
@@ -449,12 +1242,13 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     private synchronized long getNthEventIdFromTable(String table, long n) {
         long nthEventId = -1;
-        SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT " + ID_FIELD + " FROM " + table + " LIMIT 1 OFFSET "
-                    + (n - 1);
-            statement = db.compileStatement(query);
+            SQLiteStatement statement = getStatement(db,
+                    "SELECT " + ID_FIELD + " FROM " + LOG_TABLE_NAME + " WHERE " + TYPE_FIELD
+                            + " = ? ORDER BY " + ID_FIELD + " LIMIT 1 OFFSET ?");
+            statement.bindLong(1, typeOf(table));
+            statement.bindLong(2, n - 1);
             nthEventId = -1;
             try {
                 nthEventId = statement.simpleQueryForLong();
@@ -476,10 +1270,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
+            releaseDatabase();
         }
         return nthEventId;
     }
@@ -492,10 +1283,27 @@ class DatabaseHelper extends SQLiteOpenHelper {
         removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
     }
 
+    /**
+     * Remove the events and identifys up to and including {@code maxId}, after they were
+     * uploaded together.
+     */
+    @Override
+    public synchronized void removeLog(long maxId) {
+        removeFromLog(maxId, " <= ?");
+    }
+
+    /**
+     * Remove the event or identify with the given id.
+     */
+    @Override
+    public synchronized void removeLogEntry(long id) {
+        removeFromLog(id, " = ?");
+    }
+
     private synchronized void removeEventsFromTable(String table, long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            removeFromTable(db, table, maxId, " <= ?");
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -511,8 +1319,172 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseDatabase();
+        }
+    }
+
+    private synchronized void removeFromLog(long id, String condition) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            // one delete per type keeps both row counts known
+            removeFromTable(db, EVENT_TABLE_NAME, id, condition);
+            removeFromTable(db, IDENTIFY_TABLE_NAME, id, condition);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("removeLog %d failed", id), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeLog %d", id), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("removeLog %d failed", id), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeLog %d", id), e
+            );
+            delete();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    private void removeFromTable(SQLiteDatabase db, String table, long id, String condition) {
+        if (logBytesValid) {
+            adjustBytes(-sumBytes(db, TYPE_FIELD + " = ? AND " + ID_FIELD + condition,
+                    typeOf(table), id));
+        }
+        SQLiteStatement statement = getStatement(db, "DELETE FROM " + LOG_TABLE_NAME + " WHERE "
+                + TYPE_FIELD + " = ? AND " + ID_FIELD + condition);
+        statement.bindLong(1, typeOf(table));
+        statement.bindLong(2, id);
+        adjustCount(table, -statement.executeUpdateDelete());
+    }
+
+    /**
+     * Remove the {@code n} oldest events with one delete that walks the type's index from
+     * the lowest id.
+     *
+     * @return the number of events removed
+     */
+    @Override
+    public synchronized long removeOldestEvents(long n) {
+        return removeOldestFromTable(EVENT_TABLE_NAME, n);
+    }
+
+    @Override
+    public synchronized long removeOldestIdentifys(long n) {
+        return removeOldestFromTable(IDENTIFY_TABLE_NAME, n);
+    }
+
+    private synchronized long removeOldestFromTable(String table, long n) {
+        long removed = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            // the types share one id sequence, so their rows are not a contiguous id range
+            String oldest = ID_FIELD + " IN (SELECT " + ID_FIELD + " FROM " + LOG_TABLE_NAME
+                    + " WHERE " + TYPE_FIELD + " = ? ORDER BY " + ID_FIELD + " LIMIT ?)";
+            if (logBytesValid) {
+                adjustBytes(-sumBytes(db, oldest, typeOf(table), n));
+            }
+            SQLiteStatement statement = getStatement(db, "DELETE FROM " + LOG_TABLE_NAME
+                    + " WHERE " + oldest);
+            statement.bindLong(1, typeOf(table));
+            statement.bindLong(2, n);
+            removed = statement.executeUpdateDelete();
+            adjustCount(table, -removed);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("removeOldest from %s failed", table), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldest from table %s", table), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("removeOldest from %s failed", table), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldest from table %s", table), e
+            );
+            delete();
+        } finally {
+            releaseDatabase();
         }
+        return removed;
+    }
+
+    /**
+     * Remove the oldest rows of the log, whatever their type, with one range delete once the
+     * rows to free {@code bytes} are found by walking the log from the lowest id.
+     *
+     * @return the number of bytes freed
+     */
+    @Override
+    public synchronized long removeOldestBytes(long bytes) {
+        long freed = 0;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            cursor = queryDb(db, LOG_TABLE_NAME, new String[]{ID_FIELD, TYPE_FIELD,
+                    "IFNULL(LENGTH(" + EVENT_FIELD + "), 0)"}, null, null, null, null,
+                    ID_FIELD + " ASC", null);
+            long maxId = -1;
+            long events = 0;
+            long identifys = 0;
+            while (freed < bytes && cursor.moveToNext()) {
+                maxId = cursor.getLong(0);
+                if (cursor.getInt(1) == IDENTIFY_TYPE) {
+                    identifys++;
+                } else {
+                    events++;
+                }
+                freed += cursor.getLong(2);
+            }
+            cursor.close();
+            cursor = null;
+
+            if (maxId != -1) {
+                SQLiteStatement statement = getStatement(db, "DELETE FROM " + LOG_TABLE_NAME
+                        + " WHERE " + ID_FIELD + " <= ?");
+                statement.bindLong(1, maxId);
+                statement.executeUpdateDelete();
+                adjustCount(EVENT_TABLE_NAME, -events);
+                adjustCount(IDENTIFY_TABLE_NAME, -identifys);
+                adjustBytes(-freed);
+            }
+        } catch (SQLiteException e) {
+            freed = 0;
+            logger.e(TAG, String.format("removeOldestBytes %d failed", bytes), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestBytes %d", bytes), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            freed = 0;
+            logger.e(TAG, String.format("removeOldestBytes %d failed", bytes), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestBytes %d", bytes), e
+            );
+            delete();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseDatabase();
+        }
+        return freed;
+    }
+
+    // the stored size of the rows matching the selection, so a delete can keep the total known
+    private long sumBytes(SQLiteDatabase db, String selection, long... args) {
+        SQLiteStatement statement = getStatement(db, "SELECT IFNULL(SUM(LENGTH(" + EVENT_FIELD
+                + ")), 0) FROM " + LOG_TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection));
+        for (int i = 0; i < args.length; i++) {
+            statement.bindLong(i + 1, args[i]);
+        }
+        return statement.simpleQueryForLong();
     }
 
     synchronized void removeEvent(long id) {
@@ -526,7 +1498,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private synchronized void removeEventFromTable(String table, long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            removeFromTable(db, table, id, " = ?");
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -542,7 +1514,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseDatabase();
         }
     }
 
@@ -550,19 +1522,30 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // This only gets called if the database somehow gets corrupted AFTER being fetched
         // ie after the call to getWriteableDatabase / getReadableDatabase
         // or if a SQL exception occurs during the interaction
+        invalidateCounts();
+        invalidateKeyValues();
         try {
             close();
-            file.delete();
+            // stale journal or WAL files would be applied to the recreated database
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                SQLiteDatabase.deleteDatabase(file);
+            } else {
+                file.delete();
+                for (String suffix : JOURNAL_SUFFIXES) {
+                    new File(file.getPath() + suffix).delete();
+                }
+            }
         } catch (SecurityException e) {
             logger.e(TAG, "delete failed", e);
             Diagnostics.getLogger().logError("DB: Failed to delete database");
         } finally {
-            if (databaseResetListener != null && callResetListenerOnDatabaseReset) {
+            if ((databaseResetListener != null || resetListener != null)
+                    && callResetListenerOnDatabaseReset) {
                 callResetListenerOnDatabaseReset = false;  // guards against stack overflow
                 SQLiteDatabase db = null;
                 try {
                     db = getWritableDatabase();
-                    databaseResetListener.onDatabaseReset(db);
+                    onDatabaseReset(db);
                 } catch (SQLiteException e) {
                     logger.e(TAG, String.format("databaseReset callback failed during delete"), e);
                     Diagnostics.getLogger().logError(
@@ -0,0 +1,135 @@
+package io.rakam.api;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the device and user properties attached to every event. These only
+ * change on initialize, setTrackingOptions, setUserId, setDeviceId and when location listening
+ * is toggled, so RakamClient rebuilds the snapshot at those points instead of querying
+ * {@link DeviceInfo} and the {@link TrackingOptions} for every event.
+ */
+class DeviceContext {
+
+    // _id, _local_id, _time, _user, _device_id and _session_id are written for every event
+    private static final String[] FIXED_KEYS = {
+            "_id", "_local_id", "_time", "_user", "_device_id", "_session_id"
+    };
+    static final int FIXED_KEY_COUNT = FIXED_KEYS.length;
+
+    final Object userId;
+    final Object deviceId;
+    final boolean trackLatLng;
+
+    // properties written before the location, in the order they appear in the event
+    final String[] headKeys;
+    final Object[] headValues;
+    // properties written after the location
+    final String[] tailKeys;
+    final Object[] tailValues;
+    // the head and tail already serialized by EventWriter, null if they could not be
+    final String headJson;
+    final String tailJson;
+
+    private final Set<String> keys;
+
+    private DeviceContext(Object userId, Object deviceId, boolean trackLatLng,
+                          List<String> headKeys, List<Object> headValues,
+                          List<String> tailKeys, List<Object> tailValues) {
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.trackLatLng = trackLatLng;
+        this.headKeys = headKeys.toArray(new String[headKeys.size()]);
+        this.headValues = headValues.toArray(new Object[headValues.size()]);
+        this.tailKeys = tailKeys.toArray(new String[tailKeys.size()]);
+        this.tailValues = tailValues.toArray(new Object[tailValues.size()]);
+        this.headJson = EventWriter.writeFragment(this.headKeys, this.headValues);
+        this.tailJson = EventWriter.writeFragment(this.tailKeys, this.tailValues);
+
+        this.keys = new HashSet<String>(Arrays.asList(FIXED_KEYS));
+        this.keys.addAll(headKeys);
+        this.keys.addAll(tailKeys);
+    }
+
+    static DeviceContext build(DeviceInfo deviceInfo, TrackingOptions trackingOptions,
+                               String platform, String userId, String deviceId) {
+        int disabled = trackingOptions.getDisabledMask();
+        List<String> headKeys = new ArrayList<String>();
+        List<Object> headValues = new ArrayList<Object>();
+        List<String> tailKeys = new ArrayList<String>();
+        List<Object> tailValues = new ArrayList<Object>();
+
+        if (tracked(disabled, TrackingOptions.FIELD_VERSION_NAME)) {
+            add(headKeys, headValues, "_version_name", nullToJSONNull(deviceInfo.getVersionName()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_OS_NAME)) {
+            add(headKeys, headValues, "_os_name", nullToJSONNull(deviceInfo.getOsName()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_OS_VERSION)) {
+            add(headKeys, headValues, "_os_version", nullToJSONNull(deviceInfo.getOsVersion()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_DEVICE_BRAND)) {
+            add(headKeys, headValues, "_device_brand", nullToJSONNull(deviceInfo.getBrand()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_DEVICE_MANUFACTURER)) {
+            add(headKeys, headValues, "_device_manufacturer", nullToJSONNull(deviceInfo.getManufacturer()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_DEVICE_MODEL)) {
+            add(headKeys, headValues, "_device_model", nullToJSONNull(deviceInfo.getModel()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_CARRIER)) {
+            add(headKeys, headValues, "_carrier", nullToJSONNull(deviceInfo.getCarrier()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_COUNTRY)) {
+            add(headKeys, headValues, "_country_code", nullToJSONNull(deviceInfo.getCountry()));
+        }
+        if (tracked(disabled, TrackingOptions.FIELD_LANGUAGE)) {
+            add(headKeys, headValues, "_language", nullToJSONNull(deviceInfo.getLanguage()));
+        }
+        // platform is never null, RakamClient falls back to Constants.PLATFORM
+        if (tracked(disabled, TrackingOptions.FIELD_PLATFORM) && platform != null) {
+            add(headKeys, headValues, "_platform", platform);
+        }
+        add(headKeys, headValues, "_library_name", Constants.LIBRARY);
+        add(headKeys, headValues, "_library_version", Constants.VERSION);
+        add(headKeys, headValues, "_ip", Boolean.TRUE);
+
+        if (tracked(disabled, TrackingOptions.FIELD_ADID) && deviceInfo.getAdvertisingId() != null) {
+            add(tailKeys, tailValues, "_android_adid", deviceInfo.getAdvertisingId());
+        }
+        add(tailKeys, tailValues, "_limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
+        add(tailKeys, tailValues, "_gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
+
+        boolean trackLatLng = tracked(disabled, TrackingOptions.FIELD_LAT_LNG)
+                && deviceInfo.isLocationListening();
+
+        return new DeviceContext(nullToJSONNull(userId), nullToJSONNull(deviceId), trackLatLng,
+                headKeys, headValues, tailKeys, tailValues);
+    }
+
+    /**
+     * Whether the key is one of the properties this context writes into every event, apart from
+     * the location.
+     */
+    boolean hasKey(String key) {
+        return keys.contains(key);
+    }
+
+    private static boolean tracked(int disabledMask, int field) {
+        return (disabledMask & field) == 0;
+    }
+
+    private static void add(List<String> keys, List<Object> values, String key, Object value) {
+        keys.add(key);
+        values.add(value);
+    }
+
+    private static Object nullToJSONNull(Object value) {
+        return value == null ? JSONObject.NULL : value;
+    }
+}
@@ -7,15 +7,18 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.location.Address;
 import android.location.Geocoder;
 import android.location.Location;
+import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings.Secure;
 import android.telephony.TelephonyManager;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
@@ -29,7 +32,26 @@ public class DeviceInfo {
     private static final String SETTING_LIMIT_AD_TRACKING = "limit_ad_tracking";
     private static final String SETTING_ADVERTISING_ID = "advertising_id";
 
-    private boolean locationListening = true;
+    private volatile boolean locationListening = true;
+
+    /**
+     * The last location looked up, replaced as a whole so readers never see a half updated
+     * entry.
+     */
+    private static class CachedLocation {
+        private final Location location;
+        // SystemClock.elapsedRealtime() when the entry was stored
+        private final long storedAt;
+
+        private CachedLocation(Location location, long storedAt) {
+            this.location = location;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private volatile CachedLocation cachedLocation;
+    private volatile long locationCacheTtlMillis = Constants.LOCATION_CACHE_TTL_MILLIS;
+    private LocationListener passiveLocationListener;
 
     private Context context;
 
@@ -341,11 +363,118 @@ public class DeviceInfo {
 
     public boolean isGooglePlayServicesEnabled() { return getCachedInfo().gpsEnabled; }
 
+    /**
+     * Get the most recent location known to the device. Lookups query every enabled provider,
+     * so the result is cached for {@link #setLocationCacheTtlMillis(long)} milliseconds, and
+     * kept up to date by passive location updates if they are enabled.
+     *
+     * @return the location, or null if there is none
+     */
     public Location getMostRecentLocation() {
         if (!isLocationListening()) {
             return null;
         }
 
+        CachedLocation cached = cachedLocation;
+        long now = SystemClock.elapsedRealtime();
+        if (cached != null && now - cached.storedAt < locationCacheTtlMillis
+                && now >= cached.storedAt) {
+            return cached.location;
+        }
+
+        // several threads may look up at once, any of the results is recent enough
+        Location location = queryMostRecentLocation();
+        cachedLocation = new CachedLocation(location, now);
+        return location;
+    }
+
+    /**
+     * Set how long a location lookup is reused, 0 to look up the location for every call.
+     *
+     * @param locationCacheTtlMillis the time in milliseconds
+     */
+    public void setLocationCacheTtlMillis(long locationCacheTtlMillis) {
+        this.locationCacheTtlMillis = Math.max(0, locationCacheTtlMillis);
+        cachedLocation = null;
+    }
+
+    /**
+     * Listen for locations other apps request from the passive provider and use them to keep
+     * the cached location current. This needs the ACCESS_FINE_LOCATION permission, and does
+     * not cause any location requests of its own.
+     *
+     * @param looper the looper the updates are delivered on
+     * @return true if the listener was registered
+     */
+    public synchronized boolean startPassiveLocationUpdates(Looper looper) {
+        if (passiveLocationListener != null) {
+            return true;
+        }
+        LocationManager locationManager = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        if (locationManager == null) {
+            return false;
+        }
+
+        LocationListener listener = new LocationListener() {
+            @Override
+            public void onLocationChanged(Location location) {
+                updateCachedLocation(location);
+            }
+
+            @Override
+            public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+            @Override
+            public void onProviderEnabled(String provider) {}
+
+            @Override
+            public void onProviderDisabled(String provider) {}
+        };
+        try {
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                    Constants.PASSIVE_LOCATION_MIN_TIME_MILLIS, 0, listener, looper);
+        } catch (SecurityException e) {
+            Diagnostics.getLogger().logError("Failed to request passive location updates", e);
+            return false;
+        } catch (IllegalArgumentException e) {
+            // no passive provider on this device
+            Diagnostics.getLogger().logError("Failed to request passive location updates", e);
+            return false;
+        }
+        passiveLocationListener = listener;
+        return true;
+    }
+
+    /**
+     * Stop the updates started by {@link #startPassiveLocationUpdates(Looper)}.
+     */
+    public synchronized void stopPassiveLocationUpdates() {
+        if (passiveLocationListener == null) {
+            return;
+        }
+        LocationManager locationManager = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        if (locationManager != null) {
+            locationManager.removeUpdates(passiveLocationListener);
+        }
+        passiveLocationListener = null;
+    }
+
+    // @VisibleForTesting
+    void updateCachedLocation(Location location) {
+        if (location == null) {
+            return;
+        }
+        CachedLocation cached = cachedLocation;
+        if (cached != null && cached.location != null
+                && cached.location.getTime() > location.getTime()) {
+            return;
+        }
+        cachedLocation = new CachedLocation(location, SystemClock.elapsedRealtime());
+    }
+
+    private Location queryMostRecentLocation() {
         LocationManager locationManager = (LocationManager) context
                 .getSystemService(Context.LOCATION_SERVICE);
 
@@ -367,7 +496,8 @@ public class DeviceInfo {
             return null;
         }
 
-        List<Location> locations = new ArrayList<Location>();
+        long maximumTimestamp = -1;
+        Location bestLocation = null;
         for (String provider : providers) {
             Location location = null;
             try {
@@ -379,15 +509,7 @@ public class DeviceInfo {
                 // failed to get last known location from provider
                 Diagnostics.getLogger().logError("Failed to get most recent location", e);
             }
-            if (location != null) {
-                locations.add(location);
-            }
-        }
-
-        long maximumTimestamp = -1;
-        Location bestLocation = null;
-        for (Location location : locations) {
-            if (location.getTime() > maximumTimestamp) {
+            if (location != null && location.getTime() > maximumTimestamp) {
                 maximumTimestamp = location.getTime();
                 bestLocation = location;
             }
@@ -402,6 +524,8 @@ public class DeviceInfo {
 
     public void setLocationListening(boolean locationListening) {
         this.locationListening = locationListening;
+        // look up again once re-enabled instead of returning a location from before
+        cachedLocation = null;
     }
 
     // @VisibleForTesting
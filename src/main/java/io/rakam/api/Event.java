@@ -0,0 +1,65 @@
+package io.rakam.api;
+
+import org.json.JSONObject;
+
+/**
+ * An event for {@code RakamClient.logEvents}, which saves a whole list of events at once. Each
+ * set method returns the same Event object, allowing you to chain multiple set calls together,
+ * for example:
+ * {@code Event event = new Event("Played Song").setEventProperties(properties);}
+ *
+ * @see RakamClient#logEvents(java.util.List)
+ */
+public class Event {
+
+    final String eventType;
+    JSONObject eventProperties = null;
+    EventProperties typedProperties = null;
+    boolean outOfSession = false;
+
+    /**
+     * @param eventType the event type
+     */
+    public Event(String eventType) {
+        this.eventType = eventType;
+    }
+
+    /**
+     * Set the event properties, replacing any typed properties set before.
+     *
+     * @param eventProperties the event properties
+     * @return the same Event object
+     */
+    public Event setEventProperties(JSONObject eventProperties) {
+        this.eventProperties = eventProperties;
+        this.typedProperties = null;
+        return this;
+    }
+
+    /**
+     * Set typed event properties, replacing any event properties set before.
+     *
+     * @param eventProperties the event properties
+     * @return the same Event object
+     */
+    public Event setEventProperties(EventProperties eventProperties) {
+        this.typedProperties = eventProperties;
+        this.eventProperties = null;
+        return this;
+    }
+
+    /**
+     * Log the event outside of the current session, its session id will be -1.
+     *
+     * @param outOfSession the out of session flag
+     * @return the same Event object
+     */
+    public Event setOutOfSession(boolean outOfSession) {
+        this.outOfSession = outOfSession;
+        return this;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+}
@@ -0,0 +1,119 @@
+package io.rakam.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage format of the events saved by {@link DatabaseHelper}. An event is stored as a BLOB
+ * holding a format byte followed by the UTF-8 JSON compressed with raw deflate. The deflater is
+ * primed with a dictionary of the property keys and values every event repeats, so even a
+ * single small event compresses well. Rows saved as TEXT by older versions are read as is,
+ * so the tables need no migration.
+ * <p>
+ * <b>Note:</b> the dictionary is part of the format. Changing it breaks every stored event,
+ * add a new format byte instead. Not thread safe, {@link DatabaseHelper} uses it under its lock.
+ */
+class EventCodec {
+
+    static final byte FORMAT_DEFLATE = 1;
+
+    // deflate looks back from the end of the dictionary, so the most common strings go last.
+    // Literal on purpose, it must not change when a constant does.
+    private static final byte[] DICTIONARY = utf8(
+            "\"$set\":{\"$setOnce\":{\"$add\":{\"$unset\":{\"$identify\""
+            + "\"_revenue\":\"_price\":\"_quantity\":\"_product_id\":\"_revenue_type\":"
+            + "\"_receipt\":\"_receipt_sig\":\"_sampling_weight\":\"_repeat_count\":"
+            + "\"_count\":\"_first_time\":\"_last_time\":"
+            + "\"_session_start\"\"_session_end\"\"_latitude\":\"_longitude\":"
+            + "\"_android_adid\":\"_limit_ad_tracking\":false,\"_gps_enabled\":true,"
+            + "\"_version_name\":\"_os_name\":\"android\",\"_os_version\":\""
+            + "\"_device_brand\":\"_device_manufacturer\":\"_device_model\":\""
+            + "\"_carrier\":\"_country_code\":\"_language\":\"en\","
+            + "\"_platform\":\"Android\","
+            + "\"_library_name\":\"rakam-android\",\"_library_version\":\"\",\"_ip\":true,"
+            + "\"_user\":null,\"_device_id\":\"\",\"_session_id\":-1,"
+            + "{\"properties\":{\"_id\":\"\",\"_local_id\":,\"_time\":1,\"_session_id\":1"
+            + "},\"collection\":\""
+    );
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[1024];
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    /**
+     * Compress a serialized event.
+     *
+     * @return the stored form of the event
+     */
+    byte[] encode(String event) {
+        byte[] input = utf8(event);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+
+        out.reset();
+        out.write(FORMAT_DEFLATE);
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a stored event, either stored by {@link #encode} or saved as TEXT by an older
+     * version, which reads back as the UTF-8 bytes of the JSON.
+     *
+     * @param stored the column read with {@code getBlob}
+     * @return the serialized event, or null for a null column
+     * @throws DataFormatException if the data is corrupt
+     */
+    String decode(byte[] stored) throws DataFormatException {
+        if (stored == null) {
+            return null;
+        }
+        if (stored.length == 0 || stored[0] != FORMAT_DEFLATE) {
+            // JSON text never starts with the format byte
+            return toString(stored, 0, stored.length);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(stored, 1, stored.length - 1);
+
+        out.reset();
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0 && !inflater.finished()
+                    && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated event data");
+            }
+            out.write(buffer, 0, length);
+        }
+        try {
+            return out.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+    }
+
+    private static String toString(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.rakam.api;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fingerprints of recently logged events, used by {@code RakamClient} to suppress duplicate
+ * events such as double taps. The fingerprints are kept in a fixed size ring, the oldest is
+ * replaced when a new event comes in. Once a duplicate is seen, its entry can hold it back so
+ * later duplicates can be folded into it before it is saved.
+ * <b>Note:</b> only use this from logThread.
+ */
+class EventDeduplicator {
+
+    /**
+     * Added to a held duplicate that had later duplicates folded into it, the number of times
+     * it was logged. The first event of the window is saved on its own and not counted here.
+     */
+    static final String REPEAT_COUNT_KEY = "_repeat_count";
+
+    static class Entry {
+        private int hash;
+        private String fingerprint;
+        long firstTimestamp;
+        int repeats;
+        // the duplicate held back until its window ends, null if none is held
+        EventQueue.PendingEvent event;
+        long sessionId;
+
+        private Entry release() {
+            Entry released = new Entry();
+            released.firstTimestamp = firstTimestamp;
+            released.repeats = repeats;
+            released.event = event;
+            released.sessionId = sessionId;
+            event = null;
+            return released;
+        }
+    }
+
+    private final Entry[] ring;
+    private int next = 0;
+
+    EventDeduplicator(int size) {
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+    }
+
+    /**
+     * Find the entry of an earlier identical event that is still inside its window.
+     *
+     * @param fingerprint the event's {@link #fingerprint}
+     * @param timestamp   the event timestamp
+     * @return the entry, or null if the event is not a duplicate
+     */
+    Entry match(String fingerprint, long timestamp, long windowMillis) {
+        int hash = fingerprint.hashCode();
+        for (Entry entry : ring) {
+            if (entry.fingerprint != null && entry.hash == hash
+                    && timestamp - entry.firstTimestamp < windowMillis
+                    && timestamp >= entry.firstTimestamp
+                    && entry.fingerprint.equals(fingerprint)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remember an event that was not a duplicate, replacing the oldest fingerprint. The event
+     * itself is saved right away.
+     *
+     * @return the replaced entry if it was still holding a duplicate, else null
+     */
+    Entry add(String fingerprint, long timestamp) {
+        Entry entry = ring[next];
+        next = (next + 1) % ring.length;
+        Entry evicted = entry.event != null ? entry.release() : null;
+
+        entry.fingerprint = fingerprint;
+        entry.hash = fingerprint.hashCode();
+        entry.firstTimestamp = timestamp;
+        entry.repeats = 0;
+        entry.event = null;
+        return evicted;
+    }
+
+    /**
+     * Hold back a duplicate in the entry it matched, which holds nothing yet, so later
+     * duplicates can be folded into it.
+     *
+     * @param sessionId the session the duplicate belongs to
+     */
+    void hold(Entry entry, EventQueue.PendingEvent event, long sessionId) {
+        entry.event = event;
+        entry.repeats = 0;
+        entry.sessionId = sessionId;
+    }
+
+    /**
+     * Release the duplicates held back by every entry, oldest first. The fingerprints are
+     * kept, so a later duplicate inside the window is held as a new event.
+     */
+    List<Entry> drainHeld() {
+        List<Entry> held = null;
+        for (int i = 0; i < ring.length; i++) {
+            Entry entry = ring[(next + i) % ring.length];
+            if (entry.event == null) {
+                continue;
+            }
+            if (held == null) {
+                held = new ArrayList<Entry>();
+            }
+            held.add(entry.release());
+        }
+        return held == null ? Collections.<Entry>emptyList() : held;
+    }
+
+    /**
+     * Forget every fingerprint. Call {@link #drainHeld()} first.
+     */
+    void clear() {
+        for (Entry entry : ring) {
+            entry.fingerprint = null;
+            entry.event = null;
+        }
+        next = 0;
+    }
+
+    /**
+     * Identifies identical events: same event type, session flag and properties, in any order.
+     */
+    static String fingerprint(EventQueue.PendingEvent event) {
+        JSONObject properties = event.properties;
+        if (properties == null && event.typedProperties != null) {
+            properties = event.typedProperties.toJSONObject();
+        }
+        StringBuilder fingerprint = new StringBuilder(event.eventType)
+                .append('\0').append(event.outOfSession);
+        return Utils.appendSortedProperties(fingerprint, properties).toString();
+    }
+}
@@ -0,0 +1,12 @@
+package io.rakam.api;
+
+/**
+ * Generates the {@code _id} sent with every event. The server uses it to deduplicate uploads,
+ * so ids must be unique across devices and reinstalls. {@link #generateId} is called on the
+ * SDK's background thread once for every event, keep it cheap.
+ *
+ * @see RakamClient#setEventIdGenerator(EventIdGenerator)
+ */
+public interface EventIdGenerator {
+    public String generateId();
+}
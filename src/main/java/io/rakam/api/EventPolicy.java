@@ -0,0 +1,91 @@
+package io.rakam.api;
+
+/**
+ *  <h1>EventPolicy</h1>
+ * Limits how many events of one event type are recorded, for high frequency events such as
+ * scrolls, impressions or heartbeats. Register a policy with
+ * {@code RakamClient.setEventPolicy()}, for example:
+ * {@code Rakam.getInstance().setEventPolicy("scroll", new EventPolicy().setSampleRate(0.1)
+ * .setThrottle(60, 60000));}
+ * <br><br>
+ * Events rejected by the policy are dropped on the calling thread, before they are serialized
+ * or written to the database. The number of dropped events is available from
+ * {@code RakamClient.getSampledOutEventCount()} and {@code RakamClient.getThrottledEventCount()}.
+ * <br><br>
+ * A policy only holds its settings. {@code setEventPolicy()} copies them, so later changes to
+ * the object apply once it is registered again, and one policy can be shared by several event
+ * types or clients.
+ */
+public class EventPolicy {
+
+    /**
+     * The class identifier tag used in logging. TAG = {@code "io.rakam.api.EventPolicy"}
+     */
+    public static final String TAG = "io.rakam.api.EventPolicy";
+    private static RakamLog logger = RakamLog.getLogger();
+
+    /**
+     * Returned by {@link EventPolicyState#admit} for events that should not be recorded.
+     */
+    static final double REJECTED = -1;
+    /**
+     * Returned by {@link EventPolicyState#admit} for events recorded without a sampling weight.
+     */
+    static final double NOT_SAMPLED = 0;
+
+    private double sampleRate = 1;
+    private int maxEventsPerWindow = 0;
+    private long windowMillis = 0;
+
+    public EventPolicy() {}
+
+    /**
+     * Record only a random fraction of the events. Recorded events get a
+     * {@code _sampling_weight} property of {@code 1 / sampleRate} so totals can be scaled back
+     * up. Invalid rates outside of (0, 1] are ignored.
+     *
+     * @param sampleRate the fraction of events to keep
+     * @return the same EventPolicy object
+     */
+    public EventPolicy setSampleRate(double sampleRate) {
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            logger.w(TAG, String.format("Invalid sample rate %s, ignoring", sampleRate));
+            return this;
+        }
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Record at most {@code maxEvents} events in every window of {@code windowMillis}
+     * milliseconds, dropping the rest. Windows are fixed, the first window starts with the
+     * first event. Invalid values are ignored.
+     *
+     * @param maxEvents    the maximum number of events per window
+     * @param windowMillis the window length in milliseconds
+     * @return the same EventPolicy object
+     */
+    public EventPolicy setThrottle(int maxEvents, long windowMillis) {
+        if (maxEvents <= 0 || windowMillis <= 0) {
+            logger.w(TAG, String.format(
+                    "Invalid throttle of %d events per %d ms, ignoring", maxEvents, windowMillis
+            ));
+            return this;
+        }
+        this.maxEventsPerWindow = maxEvents;
+        this.windowMillis = windowMillis;
+        return this;
+    }
+
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    int getMaxEventsPerWindow() {
+        return maxEventsPerWindow;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+}
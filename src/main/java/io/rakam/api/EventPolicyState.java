@@ -0,0 +1,74 @@
+package io.rakam.api;
+
+import java.security.SecureRandom;
+
+/**
+ * The sampling and throttle state of an {@link EventPolicy} registered with a
+ * {@code RakamClient}. The policy's values are copied when it is registered, so changing the
+ * policy object afterwards, or registering it with several clients, does not share any state.
+ */
+class EventPolicyState {
+
+    private final double sampleRate;
+    private final int maxEventsPerWindow;
+    private final long windowMillis;
+
+    private long random;
+    private long windowStart;
+    private int windowCount;
+    private long sampledOutCount;
+    private long throttledCount;
+
+    EventPolicyState(EventPolicy policy) {
+        this.sampleRate = policy.getSampleRate();
+        this.maxEventsPerWindow = policy.getMaxEventsPerWindow();
+        this.windowMillis = policy.getWindowMillis();
+        this.random = new SecureRandom().nextLong() | 1;
+    }
+
+    /**
+     * Decide whether to record an event. Sampling is applied first, so events that are sampled
+     * out do not use up the throttle.
+     *
+     * @param timestamp the event timestamp
+     * @return {@link EventPolicy#REJECTED}, {@link EventPolicy#NOT_SAMPLED} or the sampling
+     * weight to record
+     */
+    synchronized double admit(long timestamp) {
+        if (sampleRate < 1 && nextDouble() >= sampleRate) {
+            sampledOutCount++;
+            return EventPolicy.REJECTED;
+        }
+
+        if (maxEventsPerWindow > 0) {
+            if (windowCount == 0 || timestamp - windowStart >= windowMillis
+                    || timestamp < windowStart) {
+                windowStart = timestamp;
+                windowCount = 0;
+            }
+            if (windowCount >= maxEventsPerWindow) {
+                throttledCount++;
+                return EventPolicy.REJECTED;
+            }
+            windowCount++;
+        }
+
+        return sampleRate < 1 ? 1 / sampleRate : EventPolicy.NOT_SAMPLED;
+    }
+
+    synchronized long getSampledOutCount() {
+        return sampledOutCount;
+    }
+
+    synchronized long getThrottledCount() {
+        return throttledCount;
+    }
+
+    // xorshift, cheaper than a shared Random and already guarded by the state's lock
+    private double nextDouble() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (random >>> 11) * 0x1.0p-53;
+    }
+}
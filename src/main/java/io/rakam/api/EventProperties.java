@@ -0,0 +1,303 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ *  <h1>EventProperties</h1>
+ * A lightweight alternative to passing a {@code JSONObject} to {@code logEvent} for flat event
+ * properties. Values are kept in parallel arrays instead of boxed map entries, and the SDK
+ * does not need to clone them when the event is logged. Each put method returns the same
+ * EventProperties object, allowing you to chain multiple calls together, for example:
+ * {@code Rakam.getInstance().logEvent("scroll", new EventProperties().putLong("offset", 120)
+ * .putString("screen", "home"));}
+ * <br><br>
+ * Putting an existing key replaces its value and keeps its position, like
+ * {@code JSONObject.put}. Putting a null string removes the key.
+ * <br><br>
+ * <b>Note:</b> an EventProperties object can be reused after it is logged, later changes do
+ * not affect events that were already logged. It is not thread safe, do not modify it from
+ * several threads at once.
+ */
+public class EventProperties {
+
+    /**
+     * The class identifier tag used in logging. TAG = {@code "io.rakam.api.EventProperties"}
+     */
+    public static final String TAG = "io.rakam.api.EventProperties";
+    private static RakamLog logger = RakamLog.getLogger();
+
+    static final byte TYPE_LONG = 0;
+    static final byte TYPE_DOUBLE = 1;
+    static final byte TYPE_BOOLEAN = 2;
+    static final byte TYPE_STRING = 3;
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private String[] keys;
+    private byte[] types;
+    // longs, doubles as raw long bits and booleans as 0 or 1
+    private long[] numbers;
+    private String[] strings;
+    private int size;
+    // entries below this index are shared with logged snapshots and must be copied before
+    // they are modified
+    private int sharedSize;
+
+    /**
+     * Create an empty EventProperties object.
+     */
+    public EventProperties() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty EventProperties object sized for the expected number of properties.
+     *
+     * @param expectedSize the expected number of properties
+     */
+    public EventProperties(int expectedSize) {
+        int capacity = Math.max(1, expectedSize);
+        keys = new String[capacity];
+        types = new byte[capacity];
+        numbers = new long[capacity];
+        strings = new String[capacity];
+    }
+
+    private EventProperties(EventProperties other) {
+        keys = other.keys;
+        types = other.types;
+        numbers = other.numbers;
+        strings = other.strings;
+        size = other.size;
+        sharedSize = other.size;
+    }
+
+    /**
+     * Put a long value. Also use this for ints.
+     *
+     * @param key   the property key
+     * @param value the value
+     * @return the same EventProperties object
+     */
+    public EventProperties putLong(String key, long value) {
+        int index = slot(key);
+        if (index >= 0) {
+            types[index] = TYPE_LONG;
+            numbers[index] = value;
+        }
+        return this;
+    }
+
+    /**
+     * Put a double value. NaN and infinite values cannot be represented in JSON and are
+     * ignored.
+     *
+     * @param key   the property key
+     * @param value the value
+     * @return the same EventProperties object
+     */
+    public EventProperties putDouble(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            logger.w(TAG, String.format(
+                    "Attempting to put invalid double %s for property %s, ignoring", value, key
+            ));
+            return this;
+        }
+        int index = slot(key);
+        if (index >= 0) {
+            types[index] = TYPE_DOUBLE;
+            numbers[index] = Double.doubleToRawLongBits(value);
+        }
+        return this;
+    }
+
+    /**
+     * Put a boolean value.
+     *
+     * @param key   the property key
+     * @param value the value
+     * @return the same EventProperties object
+     */
+    public EventProperties putBoolean(String key, boolean value) {
+        int index = slot(key);
+        if (index >= 0) {
+            types[index] = TYPE_BOOLEAN;
+            numbers[index] = value ? 1 : 0;
+        }
+        return this;
+    }
+
+    /**
+     * Put a string value. Strings longer than 1024 characters are truncated when the event is
+     * logged. A null value removes the key.
+     *
+     * @param key   the property key
+     * @param value the value
+     * @return the same EventProperties object
+     */
+    public EventProperties putString(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return this;
+        }
+        int index = slot(key);
+        if (index >= 0) {
+            types[index] = TYPE_STRING;
+            strings[index] = value;
+        }
+        return this;
+    }
+
+    /**
+     * Get the number of properties.
+     *
+     * @return the number of properties
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Convert the properties into a JSONObject, for example to pass them to an API that only
+     * takes JSON.
+     *
+     * @return a new JSONObject with the same properties
+     */
+    public JSONObject toJSONObject() {
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < size; i++) {
+            try {
+                object.put(keys[i], valueAt(i));
+            } catch (JSONException e) {
+                logger.e(TAG, e.toString());
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Internal method to capture the current properties for a logged event. The snapshot
+     * shares the arrays, this object copies them before changing any shared entry.
+     */
+    EventProperties snapshot() {
+        sharedSize = size;
+        return new EventProperties(this);
+    }
+
+    String keyAt(int index) {
+        return keys[index];
+    }
+
+    byte typeAt(int index) {
+        return types[index];
+    }
+
+    long longAt(int index) {
+        return numbers[index];
+    }
+
+    double doubleAt(int index) {
+        return Double.longBitsToDouble(numbers[index]);
+    }
+
+    boolean booleanAt(int index) {
+        return numbers[index] != 0;
+    }
+
+    String stringAt(int index) {
+        return strings[index];
+    }
+
+    /**
+     * The value at the index boxed the way {@code JSONObject.put} would store it.
+     */
+    Object valueAt(int index) {
+        switch (types[index]) {
+            case TYPE_LONG:
+                return numbers[index];
+            case TYPE_DOUBLE:
+                return doubleAt(index);
+            case TYPE_BOOLEAN:
+                return booleanAt(index);
+            default:
+                return strings[index];
+        }
+    }
+
+    int indexOf(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Find the slot for a key, appending a new one if the key is not set yet.
+     *
+     * @return the index, or -1 if the key is invalid
+     */
+    private int slot(String key) {
+        if (Utils.isEmptyString(key)) {
+            logger.w(TAG, "Attempting to put a property with a null or empty key, ignoring");
+            return -1;
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            if (index < sharedSize) {
+                copyShared();
+            }
+            strings[index] = null;
+            return index;
+        }
+        if (size == keys.length) {
+            grow();
+        }
+        keys[size] = key;
+        return size++;
+    }
+
+    private void remove(String key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return;
+        }
+        if (index < sharedSize) {
+            copyShared();
+        }
+        int moved = size - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, moved);
+        System.arraycopy(types, index + 1, types, index, moved);
+        System.arraycopy(numbers, index + 1, numbers, index, moved);
+        System.arraycopy(strings, index + 1, strings, index, moved);
+        size--;
+        keys[size] = null;
+        strings[size] = null;
+    }
+
+    private void copyShared() {
+        keys = keys.clone();
+        types = types.clone();
+        numbers = numbers.clone();
+        strings = strings.clone();
+        sharedSize = 0;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        types = Arrays.copyOf(types, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+        // the new arrays are not shared with any snapshot
+        sharedSize = 0;
+    }
+}
@@ -0,0 +1,196 @@
+package io.rakam.api;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free hand-off queue between the threads calling {@code logEvent} and logThread.
+ * Producers only claim a slot and publish a {@link PendingEvent}; all of the expensive work
+ * (property merging, serialization and database writes) happens when logThread polls it.
+ * <p>
+ * This is a sequence-numbered ring buffer: every slot carries the position it is ready for,
+ * so producers never take a lock and never see a half-written slot.
+ */
+class EventQueue {
+
+    /**
+     * An event captured on the caller thread, waiting to be processed on logThread.
+     */
+    static class PendingEvent {
+        final String eventType;
+        final JSONObject properties;
+        // set instead of properties for events logged with EventProperties
+        final EventProperties typedProperties;
+        final long timestamp;
+        final boolean outOfSession;
+        // weight recorded for sampled events, EventPolicy.NOT_SAMPLED otherwise
+        final double samplingWeight;
+        // the super properties when the event was logged, null if there were none
+        final SuperProperties superProperties;
+
+        PendingEvent(String eventType, JSONObject properties, long timestamp, boolean outOfSession) {
+            this(eventType, properties, null, timestamp, outOfSession, EventPolicy.NOT_SAMPLED,
+                    null);
+        }
+
+        PendingEvent(String eventType, JSONObject properties, EventProperties typedProperties,
+                     long timestamp, boolean outOfSession, double samplingWeight,
+                     SuperProperties superProperties) {
+            this.eventType = eventType;
+            this.properties = properties;
+            this.typedProperties = typedProperties;
+            this.timestamp = timestamp;
+            this.outOfSession = outOfSession;
+            this.samplingWeight = samplingWeight;
+            this.superProperties = superProperties;
+        }
+    }
+
+    /**
+     * An increment from {@code RakamClient.increment}, added to an in-memory counter on
+     * logThread instead of being saved as an event.
+     */
+    static class CounterIncrement extends PendingEvent {
+        final long delta;
+
+        CounterIncrement(String eventType, JSONObject properties, long timestamp,
+                         boolean outOfSession, long delta, SuperProperties superProperties) {
+            super(eventType, properties, null, timestamp, outOfSession, EventPolicy.NOT_SAMPLED,
+                    superProperties);
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Events from {@code RakamClient.logEvents}, saved on logThread in one transaction. The
+     * batch takes a single slot in the queue.
+     */
+    static class EventBatch extends PendingEvent {
+        final List<PendingEvent> events;
+
+        EventBatch(List<PendingEvent> events) {
+            super(events.get(0).eventType, null, null, events.get(0).timestamp, false,
+                    EventPolicy.NOT_SAMPLED, null);
+            this.events = events;
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<PendingEvent> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    EventQueue(int capacity) {
+        if (capacity < 2 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<PendingEvent>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Publish an event. Safe to call from any thread.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(PendingEvent event) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        slots.set(index, event);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest published event. logThread is the regular consumer, producers also poll
+     * to evict the oldest event when the buffer overflows with the drop oldest policy.
+     *
+     * @return the event, or null if nothing has been published yet
+     */
+    PendingEvent poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    PendingEvent event = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + capacity);
+                    return event;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Take the oldest event if its slot was claimed before the barrier. A producer that has
+     * claimed a slot publishes it right after, so the consumer waits for that instead of
+     * stopping early and letting a later task run before the event.
+     *
+     * @param barrier a value of {@link #producedCount()}
+     * @return the event, or null once every slot before the barrier has been taken
+     */
+    PendingEvent pollBefore(long barrier) {
+        while (head.get() < barrier) {
+            PendingEvent event = poll();
+            if (event != null) {
+                return event;
+            }
+            Thread.yield();
+        }
+        return null;
+    }
+
+    /**
+     * Number of slots claimed by producers so far, used as an ordering barrier. A claimed slot
+     * may not be published yet, see {@link #pollBefore(long)}.
+     */
+    long producedCount() {
+        return tail.get();
+    }
+
+    /**
+     * Number of events taken off the queue so far.
+     */
+    long consumedCount() {
+        return head.get();
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,231 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Overflow file for {@link OverflowPolicy#SPILL_TO_DISK}. While the pending event buffer is
+ * full, producers append events here as one JSON record per line, and logThread replays them
+ * in order once it has drained the buffer. The file is deleted as soon as every record has been
+ * replayed. Records left over from a previous process are replayed on the next initialize.
+ * <p>
+ * The appended and consumed counts keep growing across files, RakamClient uses them as
+ * ordering barriers the same way it uses {@link EventQueue#producedCount()}.
+ */
+class EventSpillFile {
+
+    private static final String TAG = EventSpillFile.class.getName();
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private final File file;
+    private Writer writer;
+    private BufferedReader reader;
+    private long appendedCount = 0;
+    private long consumedCount = 0;
+    private volatile boolean active = false;
+
+    EventSpillFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Whether there are spilled events that have not been replayed yet. While this is true
+     * producers keep spilling, so events stay in order. A producer checks it again and appends
+     * while holding the lock on this object, which {@link #finishIfDrained()} also takes.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Pick up records left over from a previous process. Call this once, on logThread.
+     */
+    synchronized void recover() {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader lines = null;
+        long count = 0;
+        try {
+            lines = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            while (lines.readLine() != null) {
+                count++;
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to read spilled events: " + e.toString());
+        } finally {
+            closeQuietly(lines);
+        }
+        if (count == 0) {
+            file.delete();
+            return;
+        }
+        // producers may already have spilled into the same file
+        appendedCount = Math.max(appendedCount, count);
+        active = true;
+    }
+
+    /**
+     * Append an event. Safe to call from any thread.
+     *
+     * @return false if the event could not be written
+     */
+    synchronized boolean append(EventQueue.PendingEvent event) {
+        String record;
+        try {
+            record = toRecord(event);
+        } catch (JSONException e) {
+            logger.e(TAG, "Failed to serialize spilled event: " + e.toString());
+            return false;
+        }
+        if (record == null) {
+            logger.e(TAG, "Failed to serialize spilled event of type " + event.eventType);
+            return false;
+        }
+
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            }
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to spill event: " + e.toString());
+            return false;
+        }
+        appendedCount++;
+        active = true;
+        return true;
+    }
+
+    /**
+     * Take the oldest spilled event that has not been replayed. <b>Note:</b> only call this
+     * from logThread.
+     *
+     * @return the event, or null if everything has been replayed
+     */
+    synchronized EventQueue.PendingEvent poll() {
+        while (consumedCount < appendedCount) {
+            String line;
+            try {
+                if (reader == null) {
+                    reader = new BufferedReader(
+                            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                }
+                line = reader.readLine();
+            } catch (IOException e) {
+                logger.e(TAG, "Failed to read spilled events, dropping them: " + e.toString());
+                line = null;
+            }
+            if (line == null) {
+                // the file is gone or unreadable, nothing more can be replayed
+                Diagnostics.getLogger().logError(String.format(
+                        "Lost %d spilled events", appendedCount - consumedCount));
+                consumedCount = appendedCount;
+                return null;
+            }
+            consumedCount++;
+            try {
+                return fromRecord(line);
+            } catch (JSONException e) {
+                logger.e(TAG, "Skipping corrupt spilled event: " + e.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Delete the file and leave spill mode if every record has been replayed.
+     * <b>Note:</b> only call this from logThread.
+     *
+     * @return true if spill mode ended
+     */
+    synchronized boolean finishIfDrained() {
+        if (consumedCount < appendedCount) {
+            return false;
+        }
+        closeQuietly(writer);
+        closeQuietly(reader);
+        writer = null;
+        reader = null;
+        file.delete();
+        active = false;
+        return true;
+    }
+
+    synchronized long appendedCount() {
+        return appendedCount;
+    }
+
+    synchronized long consumedCount() {
+        return consumedCount;
+    }
+
+    private static String toRecord(EventQueue.PendingEvent event) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("event_type", event.eventType);
+        if (event.properties != null) {
+            record.put("properties", event.properties);
+        } else if (event.typedProperties != null) {
+            record.put("properties", event.typedProperties.toJSONObject());
+        }
+        record.put("timestamp", event.timestamp);
+        record.put("out_of_session", event.outOfSession);
+        record.put("sampling_weight", event.samplingWeight);
+        if (event.superProperties != null) {
+            record.put("super_properties", event.superProperties.source);
+        }
+        if (event instanceof EventQueue.CounterIncrement) {
+            record.put("delta", ((EventQueue.CounterIncrement) event).delta);
+        }
+        return record.toString();
+    }
+
+    private static EventQueue.PendingEvent fromRecord(String line) throws JSONException {
+        JSONObject record = new JSONObject(line);
+        String superPropertiesSource = record.optString("super_properties", null);
+        SuperProperties superProperties = superPropertiesSource == null
+                ? null : SuperProperties.of(new JSONObject(superPropertiesSource));
+        if (record.has("delta")) {
+            return new EventQueue.CounterIncrement(
+                    record.getString("event_type"),
+                    record.optJSONObject("properties"),
+                    record.getLong("timestamp"),
+                    record.optBoolean("out_of_session"),
+                    record.getLong("delta"),
+                    superProperties
+            );
+        }
+        return new EventQueue.PendingEvent(
+                record.getString("event_type"),
+                record.optJSONObject("properties"),
+                null,
+                record.getLong("timestamp"),
+                record.optBoolean("out_of_session"),
+                record.optDouble("sampling_weight", EventPolicy.NOT_SAMPLED),
+                superProperties
+        );
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.e(TAG, e.toString());
+        }
+    }
+}
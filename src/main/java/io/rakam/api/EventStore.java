@@ -0,0 +1,147 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where {@code RakamClient} keeps unsent events and its metadata. Events and identifys are
+ * appended to one log with a single increasing id sequence, so a batch read by id range is
+ * already in the order they were logged. The metadata is a pair of key-value tables, one for
+ * strings and one for longs.
+ * <p>
+ * Every method is safe to call from any thread. Failures are handled inside the store, a
+ * store that has to discard its data calls the {@link ResetListener} so the metadata held in
+ * memory can be written back.
+ *
+ * @see StorageEngine
+ */
+interface EventStore {
+
+    /**
+     * Called when a store lost its data, to collect the metadata it should write back.
+     */
+    interface ResetListener {
+        /**
+         * Put the values to restore into the maps. A null value is stored as null.
+         */
+        void onReset(Map<String, String> values, Map<String, Long> longValues);
+    }
+
+    void setResetListener(ResetListener resetListener);
+
+    /**
+     * Append an event and, atomically with it, write the long values and store the new id
+     * under {@code idKey}. Either may be null.
+     *
+     * @return the id of the event, or -1 if it was not saved
+     */
+    long addEvent(String event, String idKey, Map<String, Long> metadata);
+
+    long addIdentify(String identifyEvent, String idKey, Map<String, Long> metadata);
+
+    /**
+     * Append several events at once, then write the long values and store the id of the last
+     * event under {@code idKey}. Either every event is saved or none is.
+     *
+     * @return the id of the last event, or -1 if nothing was saved
+     */
+    long addEvents(List<String> events, String idKey, Map<String, Long> metadata);
+
+    /**
+     * Read events and identifys in id order, each with its id under {@code event_id}.
+     *
+     * @param upToId the highest id to return, or -1 for no limit
+     * @param limit  the most events to return, or -1 for no limit
+     */
+    List<JSONObject> getLog(long upToId, long limit) throws JSONException;
+
+    /**
+     * Remove every event and identify up to and including {@code maxId}.
+     */
+    void removeLog(long maxId);
+
+    /**
+     * Remove the event or identify with the given id.
+     */
+    void removeLogEntry(long id);
+
+    /**
+     * Remove the {@code n} oldest events.
+     *
+     * @return the number of events removed
+     */
+    long removeOldestEvents(long n);
+
+    long removeOldestIdentifys(long n);
+
+    /**
+     * Remove the oldest events and identifys, in the order they were logged, until at least
+     * {@code bytes} of stored data are freed.
+     *
+     * @return the number of bytes freed
+     */
+    long removeOldestBytes(long bytes);
+
+    long getEventCount();
+
+    long getIdentifyCount();
+
+    long getTotalEventCount();
+
+    /**
+     * The number of events as last counted, without doing any I/O. Meant for metrics, it can
+     * be behind while another thread is writing.
+     */
+    long getCachedEventCount();
+
+    long getCachedIdentifyCount();
+
+    /**
+     * The stored size in bytes of the events and identifys, compressed the way the store
+     * keeps them.
+     */
+    long getLogBytes();
+
+    /**
+     * The stored size of the log as last counted, without doing any I/O.
+     */
+    long getCachedLogBytes();
+
+    /**
+     * The size in bytes of the files the store keeps on disk, 0 if it has none. Safe to call
+     * without the lock, it only looks at the file sizes.
+     */
+    long getFileBytes();
+
+    String getValue(String key);
+
+    Long getLongValue(String key);
+
+    /**
+     * Store a string value, a null value removes the key.
+     */
+    long insertOrReplaceKeyValue(String key, String value);
+
+    long insertOrReplaceKeyLongValue(String key, Long value);
+
+    /**
+     * Write several long values at once, a null value removes its key.
+     */
+    void insertOrReplaceKeyLongValues(Map<String, Long> values);
+
+    /**
+     * Run several operations so they are committed together. Other threads wait until the
+     * runnable returns.
+     *
+     * @return false if the operations were rolled back, the ids they returned are not valid
+     */
+    boolean runInTransaction(Runnable runnable);
+
+    /**
+     * Release any open files. The store stays usable, the next call opens them again.
+     */
+    void close();
+}
@@ -0,0 +1,468 @@
+package io.rakam.api;
+
+import android.location.Location;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Streams the stored event record into a reusable buffer instead of building a properties
+ * JSONObject, wrapping it in an event JSONObject, truncating it and calling toString().
+ * String truncation, the property count limit, JSON-null replacement and escaping all happen
+ * while writing, and the output is identical to what {@link JSONObject#toString()} produced
+ * for the old record on runtimes whose JSONObject keeps insertion order, as on Android 5.0:
+ * the same key order, the same override rules (event properties win over the device context,
+ * super properties only fill in keys the event does not set) and the same escaping and number
+ * formatting. Older runtimes such as Android 4.1 print JSONObject keys in hash order, there the
+ * records hold the same keys and values in a different order.
+ * <p>
+ * Measured by EventWriterTest#testAllocationsPerEvent on a HotSpot JVM, an event with three
+ * properties, one of them replacing a context property, allocated about 5.5 KB on the old path
+ * and about 1.1 KB here. Nearly all of that is the final String; the rest is the key iterators
+ * over the caller's properties and one entry in the reused override map for each replaced
+ * context property. The default {@link TimeOrderedEventIdGenerator} writes the id straight into
+ * the buffer.
+ * <p>
+ * Instances are reused across events. <b>Note:</b> {@link #write} is synchronized because
+ * {@code logEventSync} serializes on the caller thread while logThread may be writing too.
+ */
+class EventWriter {
+
+    private static final String TAG = EventWriter.class.getName();
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToLongBits(-0d);
+    private static final String SAMPLING_WEIGHT = "_sampling_weight";
+
+    private final StringBuilder out = new StringBuilder(1024);
+    // context keys the event or super properties replace, reused between events
+    private final HashMap<String, Object> overrides = new HashMap<String, Object>();
+
+    /**
+     * Serialize an event record.
+     *
+     * @param eventType       the event type, written as the collection
+     * @param idGenerator     generates the event id
+     * @param localId         the local id, the id of the last saved event
+     * @param timestamp       the event timestamp
+     * @param sessionId       the session id, -1 for out of session events
+     * @param context         the device context
+     * @param location        the most recent location, or null
+     * @param eventProperties the event properties, can be null
+     * @param typedProperties the event properties when logged with {@link EventProperties},
+     *                        can be null
+     * @param samplingWeight  the sampling weight to record, EventPolicy.NOT_SAMPLED for none
+     * @param superProperties the super properties, can be null
+     * @return the serialized record
+     * @throws JSONException if a property holds a number JSON cannot represent
+     */
+    synchronized String write(String eventType, EventIdGenerator idGenerator, long localId, long timestamp,
+                              long sessionId, DeviceContext context, Location location,
+                              JSONObject eventProperties, EventProperties typedProperties,
+                              double samplingWeight, SuperProperties superProperties)
+            throws JSONException {
+        out.setLength(0);
+        overrides.clear();
+        try {
+            out.append("{\"properties\":");
+            writeProperties(idGenerator, localId, timestamp, sessionId, context, location,
+                    eventProperties, typedProperties, samplingWeight, superProperties);
+            out.append(",\"collection\":");
+            writeValue(eventType, false);
+            out.append('}');
+            return out.toString();
+        } finally {
+            overrides.clear();
+            if (out.capacity() > Constants.MAX_STRING_LENGTH * 64) {
+                // do not hold on to the buffer of an unusually large event
+                out.setLength(0);
+                out.trimToSize();
+            }
+        }
+    }
+
+    private void writeProperties(EventIdGenerator idGenerator, long localId, long timestamp, long sessionId,
+                                 DeviceContext context, Location location,
+                                 JSONObject eventProperties, EventProperties typedProperties,
+                                 double samplingWeight, SuperProperties superProperties)
+            throws JSONException {
+        boolean hasLocation = location != null;
+        // the weight is written like an event property, unless the event already sets the key
+        boolean writeWeight = samplingWeight != EventPolicy.NOT_SAMPLED
+                && !eventHas(eventProperties, typedProperties, SAMPLING_WEIGHT);
+
+        // count the merged properties first so an oversized event is written as {} like before
+        int count = DeviceContext.FIXED_KEY_COUNT + context.headKeys.length
+                + context.tailKeys.length + (hasLocation ? 2 : 0);
+        // event properties that replace a super property
+        int shadowed = 0;
+        if (eventProperties != null) {
+            Iterator<String> keys = eventProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (superProperties != null && superProperties.has(key)) {
+                    shadowed++;
+                }
+                if (isContextKey(context, hasLocation, key)) {
+                    overrides.put(key, eventProperties.opt(key));
+                } else {
+                    count++;
+                }
+            }
+        }
+        if (typedProperties != null) {
+            for (int i = 0, size = typedProperties.size(); i < size; i++) {
+                String key = typedProperties.keyAt(i);
+                if (superProperties != null && superProperties.has(key)) {
+                    shadowed++;
+                }
+                if (isContextKey(context, hasLocation, key)) {
+                    overrides.put(key, typedProperties.valueAt(i));
+                } else {
+                    count++;
+                }
+            }
+        }
+        if (writeWeight) {
+            count++;
+        }
+        // without collisions the super properties are copied in as one serialized block
+        boolean copySuperProperties = superProperties != null && shadowed == 0
+                && !superProperties.hasReservedKey;
+        if (copySuperProperties) {
+            count += superProperties.size();
+        } else if (superProperties != null) {
+            for (int i = 0; i < superProperties.keys.length; i++) {
+                String key = superProperties.keys[i];
+                if (eventHas(eventProperties, typedProperties, key)
+                        || (writeWeight && key.equals(SAMPLING_WEIGHT))) {
+                    continue;
+                }
+                if (isContextKey(context, hasLocation, key)) {
+                    overrides.put(key, superProperties.values[i]);
+                } else {
+                    count++;
+                }
+            }
+        }
+        if (count > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            out.append("{}");
+            return;
+        }
+
+        out.append('{');
+        boolean first = true;
+        first = writeId(idGenerator, first);
+        first = writeContext("_local_id", localId, first);
+        first = writeContext("_time", timestamp, first);
+        first = writeContext("_user", context.userId, first);
+        first = writeContext("_device_id", context.deviceId, first);
+        first = writeContext("_session_id", sessionId, first);
+        first = writeContext(context.headKeys, context.headValues, context.headJson, first);
+        if (hasLocation) {
+            first = writeContext("_latitude", location.getLatitude(), first);
+            first = writeContext("_longitude", location.getLongitude(), first);
+        }
+        first = writeContext(context.tailKeys, context.tailValues, context.tailJson, first);
+
+        if (eventProperties != null) {
+            Iterator<String> keys = eventProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isContextKey(context, hasLocation, key)) {
+                    continue;
+                }
+                first = writeEntry(key, eventProperties.opt(key), first);
+            }
+        }
+        if (typedProperties != null) {
+            for (int i = 0, size = typedProperties.size(); i < size; i++) {
+                String key = typedProperties.keyAt(i);
+                if (isContextKey(context, hasLocation, key)) {
+                    continue;
+                }
+                writeKey(key, first);
+                writeTyped(typedProperties, i);
+                first = false;
+            }
+        }
+        if (writeWeight) {
+            writeKey(SAMPLING_WEIGHT, first);
+            writeDouble(samplingWeight);
+            first = false;
+        }
+        if (copySuperProperties) {
+            if (superProperties.size() > 0) {
+                if (!first) {
+                    out.append(',');
+                }
+                out.append(superProperties.json);
+            }
+        } else if (superProperties != null) {
+            for (int i = 0; i < superProperties.keys.length; i++) {
+                String key = superProperties.keys[i];
+                if (isContextKey(context, hasLocation, key)
+                        || eventHas(eventProperties, typedProperties, key)
+                        || (writeWeight && key.equals(SAMPLING_WEIGHT))) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                out.append(superProperties.fragments[i]);
+                first = false;
+            }
+        }
+        out.append('}');
+    }
+
+    private static boolean eventHas(JSONObject eventProperties, EventProperties typedProperties,
+                                    String key) {
+        return (eventProperties != null && eventProperties.has(key))
+                || (typedProperties != null && typedProperties.has(key));
+    }
+
+    private static boolean isContextKey(DeviceContext context, boolean hasLocation, String key) {
+        // every context key starts with an underscore, skip the lookup for everything else
+        if (key.length() == 0 || key.charAt(0) != '_') {
+            return false;
+        }
+        if (context.hasKey(key)) {
+            return true;
+        }
+        return hasLocation && (key.equals("_latitude") || key.equals("_longitude"));
+    }
+
+    private boolean writeId(EventIdGenerator idGenerator, boolean first) throws JSONException {
+        if (!overrides.isEmpty() && overrides.containsKey("_id")) {
+            return writeEntry("_id", overrides.get("_id"), first);
+        }
+        if (idGenerator instanceof TimeOrderedEventIdGenerator) {
+            // the default ids are plain hex digits and dashes, nothing to escape or truncate
+            writeKey("_id", first);
+            out.append('"');
+            ((TimeOrderedEventIdGenerator) idGenerator).appendId(out);
+            out.append('"');
+            return false;
+        }
+        String id = idGenerator.generateId();
+        return writeEntry("_id", id == null ? JSONObject.NULL : id, first);
+    }
+
+    private boolean writeContext(String key, long value, boolean first) throws JSONException {
+        if (!overrides.isEmpty() && overrides.containsKey(key)) {
+            return writeEntry(key, overrides.get(key), first);
+        }
+        writeKey(key, first);
+        out.append(value);
+        return false;
+    }
+
+    private boolean writeContext(String key, double value, boolean first) throws JSONException {
+        if (!overrides.isEmpty() && overrides.containsKey(key)) {
+            return writeEntry(key, overrides.get(key), first);
+        }
+        writeKey(key, first);
+        writeDouble(value);
+        return false;
+    }
+
+    private boolean writeContext(String key, Object value, boolean first) throws JSONException {
+        if (!overrides.isEmpty() && overrides.containsKey(key)) {
+            value = overrides.get(key);
+        }
+        return writeEntry(key, value, first);
+    }
+
+    private boolean writeContext(String[] keys, Object[] values, String json, boolean first)
+            throws JSONException {
+        if (keys.length == 0) {
+            return first;
+        }
+        if (json != null && overrides.isEmpty()) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append(json);
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            first = writeContext(keys[i], values[i], first);
+        }
+        return first;
+    }
+
+    private boolean writeEntry(String key, Object value, boolean first) throws JSONException {
+        writeKey(key, first);
+        writeValue(value, true);
+        return false;
+    }
+
+    private void writeKey(String key, boolean first) {
+        if (!first) {
+            out.append(',');
+        }
+        writeString(key, Integer.MAX_VALUE);
+        out.append(':');
+    }
+
+    /**
+     * Write a value the way JSONStringer does. Strings, objects and arrays are only truncated
+     * when their class matches exactly, matching {@link RakamClient#truncate(JSONObject)}.
+     */
+    private void writeValue(Object value, boolean truncate) throws JSONException {
+        if (value instanceof JSONObject) {
+            writeObject((JSONObject) value, truncate && value.getClass() == JSONObject.class);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value, truncate && value.getClass() == JSONArray.class);
+        } else if (value == null || value instanceof Boolean || value == JSONObject.NULL) {
+            out.append(value);
+        } else if (value instanceof Number) {
+            writeNumber((Number) value);
+        } else if (value instanceof String) {
+            writeString((String) value, truncate ? Constants.MAX_STRING_LENGTH : Integer.MAX_VALUE);
+        } else {
+            writeString(value.toString(), Integer.MAX_VALUE);
+        }
+    }
+
+    private void writeTyped(EventProperties properties, int index) throws JSONException {
+        switch (properties.typeAt(index)) {
+            case EventProperties.TYPE_LONG:
+                out.append(properties.longAt(index));
+                break;
+            case EventProperties.TYPE_DOUBLE:
+                writeDouble(properties.doubleAt(index));
+                break;
+            case EventProperties.TYPE_BOOLEAN:
+                out.append(properties.booleanAt(index));
+                break;
+            default:
+                writeString(properties.stringAt(index), Constants.MAX_STRING_LENGTH);
+                break;
+        }
+    }
+
+    private void writeObject(JSONObject object, boolean truncate) throws JSONException {
+        if (truncate && object.length() > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            out.append("{}");
+            return;
+        }
+        out.append('{');
+        boolean first = true;
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            writeKey(key, first);
+            writeValue(object.opt(key), truncate);
+            first = false;
+        }
+        out.append('}');
+    }
+
+    private void writeArray(JSONArray array, boolean truncate) throws JSONException {
+        out.append('[');
+        for (int i = 0, length = array.length(); i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            writeValue(array.opt(i), truncate);
+        }
+        out.append(']');
+    }
+
+    /**
+     * Same output as {@code JSONObject.numberToString}, without the intermediate String for
+     * integral values.
+     */
+    private void writeNumber(Number number) throws JSONException {
+        if (number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte) {
+            out.append(number.longValue());
+        } else if (number instanceof Double) {
+            writeDouble(number.doubleValue());
+        } else {
+            out.append(JSONObject.numberToString(number));
+        }
+    }
+
+    private void writeDouble(double value) throws JSONException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Forbidden numeric value: " + value);
+        }
+        if (Double.doubleToLongBits(value) == NEGATIVE_ZERO_BITS) {
+            out.append("-0");
+            return;
+        }
+        long longValue = (long) value;
+        if (value == (double) longValue) {
+            out.append(longValue);
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * Write at most {@code limit} characters of a string with JSONStringer's escaping.
+     */
+    private void writeString(String value, int limit) {
+        out.append('"');
+        for (int i = 0, length = Math.min(value.length(), limit); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append("\\u00");
+                        out.append(Character.forDigit(c >> 4, 16));
+                        out.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Serialize a fixed list of properties as the comma separated fragment that goes between
+     * the braces of an object, so it can be copied into every event as is.
+     */
+    static String writeFragment(String[] keys, Object[] values) {
+        EventWriter writer = new EventWriter();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                writer.writeEntry(keys[i], values[i], i == 0);
+            }
+        } catch (JSONException e) {
+            return null;
+        }
+        return writer.out.toString();
+    }
+}
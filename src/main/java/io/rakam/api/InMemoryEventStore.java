@@ -0,0 +1,263 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link EventStore} that keeps everything in memory, for {@link StorageEngine#MEMORY} and for
+ * running the event pipeline without a database. Nothing survives the process, and since
+ * nothing can fail halfway {@link #runInTransaction} simply runs the operations.
+ */
+class InMemoryEventStore implements EventStore {
+
+    private static class Row {
+        final boolean identify;
+        final String event;
+        final long bytes;
+
+        Row(boolean identify, String event) {
+            this.identify = identify;
+            this.event = event;
+            this.bytes = event == null ? 0 : EventCodec.utf8(event).length;
+        }
+    }
+
+    private final TreeMap<Long, Row> log = new TreeMap<Long, Row>();
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Map<String, Long> longValues = new HashMap<String, Long>();
+    private long nextId = 1;
+    private volatile long eventCount = 0;
+    private volatile long identifyCount = 0;
+    private volatile long logBytes = 0;
+
+    @Override
+    public void setResetListener(ResetListener resetListener) {
+        // the store is never reset
+    }
+
+    @Override
+    public synchronized long addEvent(String event, String idKey, Map<String, Long> metadata) {
+        return add(false, event, idKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent, String idKey,
+                                         Map<String, Long> metadata) {
+        return add(true, identifyEvent, idKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEvents(List<String> events, String idKey,
+                                       Map<String, Long> metadata) {
+        if (events.isEmpty()) {
+            return -1;
+        }
+        for (String event : events) {
+            Row row = new Row(false, event);
+            log.put(nextId++, row);
+            logBytes += row.bytes;
+        }
+        eventCount += events.size();
+        return saved(nextId - 1, idKey, metadata);
+    }
+
+    private long add(boolean identify, String event, String idKey, Map<String, Long> metadata) {
+        Row row = new Row(identify, event);
+        log.put(nextId++, row);
+        logBytes += row.bytes;
+        if (identify) {
+            identifyCount++;
+        } else {
+            eventCount++;
+        }
+        return saved(nextId - 1, idKey, metadata);
+    }
+
+    private long saved(long id, String idKey, Map<String, Long> metadata) {
+        if (metadata != null) {
+            insertOrReplaceKeyLongValues(metadata);
+        }
+        if (idKey != null) {
+            longValues.put(idKey, id);
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized List<JSONObject> getLog(long upToId, long limit) throws JSONException {
+        List<JSONObject> events = new LinkedList<JSONObject>();
+        Map<Long, Row> rows = upToId >= 0 ? log.headMap(upToId, true) : log;
+        for (Map.Entry<Long, Row> entry : rows.entrySet()) {
+            if (limit >= 0 && events.size() >= limit) {
+                break;
+            }
+            String event = entry.getValue().event;
+            if (Utils.isEmptyString(event)) {
+                continue;
+            }
+            JSONObject obj = new JSONObject(event);
+            obj.put("event_id", entry.getKey());
+            events.add(obj);
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void removeLog(long maxId) {
+        Iterator<Row> rows = log.headMap(maxId, true).values().iterator();
+        while (rows.hasNext()) {
+            removed(rows.next());
+            rows.remove();
+        }
+    }
+
+    @Override
+    public synchronized void removeLogEntry(long id) {
+        Row row = log.remove(id);
+        if (row != null) {
+            removed(row);
+        }
+    }
+
+    @Override
+    public synchronized long removeOldestEvents(long n) {
+        return removeOldest(false, n);
+    }
+
+    @Override
+    public synchronized long removeOldestIdentifys(long n) {
+        return removeOldest(true, n);
+    }
+
+    private long removeOldest(boolean identify, long n) {
+        long removed = 0;
+        Iterator<Row> rows = log.values().iterator();
+        while (removed < n && rows.hasNext()) {
+            Row row = rows.next();
+            if (row.identify == identify) {
+                removed(row);
+                rows.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized long removeOldestBytes(long bytes) {
+        long freed = 0;
+        Iterator<Row> rows = log.values().iterator();
+        while (freed < bytes && rows.hasNext()) {
+            Row row = rows.next();
+            freed += row.bytes;
+            removed(row);
+            rows.remove();
+        }
+        return freed;
+    }
+
+    private void removed(Row row) {
+        logBytes -= row.bytes;
+        if (row.identify) {
+            identifyCount--;
+        } else {
+            eventCount--;
+        }
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        return identifyCount;
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return eventCount + identifyCount;
+    }
+
+    @Override
+    public long getCachedEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public long getCachedIdentifyCount() {
+        return identifyCount;
+    }
+
+    /**
+     * The size of the events as UTF-8, they are kept uncompressed.
+     */
+    @Override
+    public synchronized long getLogBytes() {
+        return logBytes;
+    }
+
+    @Override
+    public long getCachedLogBytes() {
+        return logBytes;
+    }
+
+    @Override
+    public long getFileBytes() {
+        return 0;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        return longValues.get(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        if (value == null) {
+            return values.remove(key) == null ? 0 : 1;
+        }
+        values.put(key, value);
+        return 1;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        if (value == null) {
+            return longValues.remove(key) == null ? 0 : 1;
+        }
+        longValues.put(key, value);
+        return 1;
+    }
+
+    @Override
+    public synchronized void insertOrReplaceKeyLongValues(Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            insertOrReplaceKeyLongValue(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized boolean runInTransaction(Runnable runnable) {
+        runnable.run();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the events live until the process ends
+    }
+}
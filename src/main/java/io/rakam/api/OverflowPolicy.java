@@ -0,0 +1,33 @@
+package io.rakam.api;
+
+/**
+ * What {@code logEvent} does when the buffer of events waiting for the background thread is
+ * full, for example when the disk is slow during a burst of events.
+ *
+ * @see RakamClient#setOverflowPolicy(OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the event being logged.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest waiting event to make room, like {@code eventMaxCount} drops the
+     * earliest unsent events. This is the default, the calling thread never waits or touches
+     * the disk and the dropped events are counted by {@code getDroppedEventCount}.
+     */
+    DROP_OLDEST,
+    /**
+     * Block the calling thread until there is room, dropping the event if the timeout set with
+     * {@code setOverflowBlockTimeoutMillis} passes first. Events logged from the SDK's
+     * background thread never block.
+     */
+    BLOCK_WITH_TIMEOUT,
+    /**
+     * Append events to a file until the background thread catches up, so no event is dropped.
+     * The calling thread pays for serializing the event and the file write, for every event
+     * logged until the background thread has replayed the file. Until the file is opened
+     * during initialize, logEvent blocks like {@link #BLOCK_WITH_TIMEOUT} instead.
+     */
+    SPILL_TO_DISK
+}
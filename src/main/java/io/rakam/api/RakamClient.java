@@ -1,22 +1,28 @@
 package io.rakam.api;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.sqlite.SQLiteDatabase;
+import android.content.res.Configuration;
 import android.location.Location;
 import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Pair;
 import okhttp3.*;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static io.rakam.api.Constants.EVENT_BATCH_ENDPOINT;
 import static io.rakam.api.Constants.MAX_STRING_LENGTH;
@@ -90,9 +96,10 @@ public class RakamClient {
      */
     protected OkHttpClient httpClient;
     /**
-     * The shared Rakam database helper instance.
+     * Where unsent events and metadata are kept, the shared Rakam database helper unless
+     * another {@link StorageEngine} was chosen.
      */
-    protected DatabaseHelper dbHelper;
+    protected EventStore eventStore;
     /**
      * The Rakam App API key.
      */
@@ -131,6 +138,18 @@ public class RakamClient {
     long previousSessionId = -1;
 
     private DeviceInfo deviceInfo;
+    /**
+     * Precomputed device and user properties attached to every event.
+     */
+    private volatile DeviceContext deviceContext;
+    /**
+     * Serializes events into a reused buffer.
+     */
+    private final EventWriter eventWriter = new EventWriter();
+    /**
+     * Generates the _id of every event.
+     */
+    private volatile EventIdGenerator eventIdGenerator = new TimeOrderedEventIdGenerator();
 
     /**
      * The current session ID value.
@@ -138,6 +157,9 @@ public class RakamClient {
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private long eventMaxBytes = Constants.EVENT_MAX_BYTES;
+    private volatile int groupCommitMaxEvents = Constants.GROUP_COMMIT_MAX_EVENTS;
+    private volatile long groupCommitMaxLatencyMillis = Constants.GROUP_COMMIT_MAX_LATENCY_MILLIS;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
@@ -146,7 +168,15 @@ public class RakamClient {
     private boolean usingForegroundTracking = false;
     private boolean trackingSessionEvents = false;
     private boolean inForeground = false;
-    private JSONObject superProperties;
+    /**
+     * The current super properties, replaced as a whole whenever they change.
+     */
+    private volatile SuperProperties superProperties;
+    /**
+     * Set while a database write of the super properties is waiting on logThread, later
+     * changes are picked up by that write.
+     */
+    private final AtomicBoolean superPropertiesDirty = new AtomicBoolean(false);
     private boolean flushEventsOnClose = true;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
@@ -171,6 +201,94 @@ public class RakamClient {
      * The background event uploading worker thread instance.
      */
     WorkerThread httpThread = new WorkerThread("httpThread");
+    /**
+     * Events handed off by logEvent, waiting to be processed on logThread.
+     */
+    final EventQueue pendingEvents = new EventQueue(Constants.PENDING_EVENT_QUEUE_CAPACITY);
+    /**
+     * Sampling and throttling state of the registered policies, by event type.
+     */
+    private final ConcurrentHashMap<String, EventPolicyState> eventPolicies =
+            new ConcurrentHashMap<String, EventPolicyState>();
+    /**
+     * What logEvent does when pendingEvents is full.
+     */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private StorageEngine storageEngine = StorageEngine.SQLITE;
+    private volatile long overflowBlockTimeoutMillis = Constants.OVERFLOW_BLOCK_TIMEOUT_MILLIS;
+    // how long a blocked producer sleeps between attempts
+    private static final long OVERFLOW_PARK_NANOS = 200 * 1000;
+    /**
+     * Events spilled to disk by the SPILL_TO_DISK overflow policy, set in initialize.
+     */
+    private volatile EventSpillFile spillFile;
+    /**
+     * Session and sequence values changed since they were last written to the database. They
+     * are written with the next saved event, or by checkpointMetadata. Only touched on
+     * logThread.
+     */
+    private final Map<String, Long> unsavedMetadata = new LinkedHashMap<String, Long>();
+    private boolean metadataCheckpointScheduled = false;
+    /**
+     * The event type and record of every event saved inside the open group commit, null when
+     * no group is open. They are saved again one by one if the group rolls back. Only touched
+     * on logThread.
+     */
+    private List<String[]> groupSaves = null;
+    // how many of groupSaves were lost with a database reset, the later ones are not in the group
+    private int groupSavesBeforeReset = -1;
+    // an upload is due once the open group commits
+    private boolean updateServerAfterGroup = false;
+    private final Runnable checkpointMetadataRunnable = new Runnable() {
+        @Override
+        public void run() {
+            metadataCheckpointScheduled = false;
+            checkpointMetadata();
+        }
+    };
+    private boolean trimMemoryCallbacksRegistered = false;
+    /**
+     * Duplicate suppression window, 0 when disabled, see enableDuplicateSuppression.
+     */
+    private volatile long duplicateWindowMillis = 0;
+    private volatile boolean countDuplicates = false;
+    /**
+     * Recent event fingerprints, only touched on logThread.
+     */
+    private final EventDeduplicator deduplicator =
+            new EventDeduplicator(Constants.DUPLICATE_RING_SIZE);
+    private final AtomicLong suppressedDuplicateCount = new AtomicLong(0);
+    private final Runnable flushRepeatedEventsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            repeatedEventsFlushScheduled = false;
+            flushRepeatedEvents();
+        }
+    };
+    // whether flushRepeatedEventsRunnable is posted, only touched on logThread
+    private boolean repeatedEventsFlushScheduled = false;
+    /**
+     * Totals from increment, only touched on logThread.
+     */
+    private final CounterAggregator counters = new CounterAggregator();
+    private final AtomicLong droppedEventCount = new AtomicLong(0);
+    // accepted events later evicted by the DROP_OLDEST overflow policy
+    private final AtomicLong evictedEventCount = new AtomicLong(0);
+    private final AtomicLong blockedEventCount = new AtomicLong(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    /**
+     * Queue and spill file positions that pending events must not be processed past until the
+     * matching runOnLogThread task has run. Keeps events ordered against setUserId, setOptOut,
+     * etc.
+     */
+    private final LinkedList<long[]> logThreadBarriers = new LinkedList<long[]>();
+    private final Runnable drainPendingEventsTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            drainPendingEvents();
+        }
+    };
 
     /**
      * Instantiates a new default instance RakamClient and starts worker threads.
@@ -244,6 +362,25 @@ public class RakamClient {
      * @return the RakamClient
      */
     public synchronized RakamClient initialize(final Context context, final URL apiUrl, final String apiKey, final String userId, final String platform, final boolean enableDiagnosticLogging) {
+        return initialize(context, apiUrl, apiKey, userId, platform, enableDiagnosticLogging, StorageProfile.DURABLE);
+    }
+
+    /**
+     * Initialize the Rakam SDK with the Android application context, your Rakam App API
+     * key, a user ID for the current user and the storage profile of the event database.
+     * <b>Note:</b> initialization is required before you log events and modify user properties.
+     *
+     * @param context                 the Android application context
+     * @param apiUrl                  your Rakam App API Url
+     * @param apiKey                  your Rakam App API key
+     * @param userId                  your Application User Id
+     * @param platform                The platform name
+     * @param enableDiagnosticLogging Enable error tracking to Rakam APIs
+     * @param storageProfile          how the event database trades durability for write speed
+     * @return the RakamClient
+     * @see StorageProfile
+     */
+    public synchronized RakamClient initialize(final Context context, final URL apiUrl, final String apiKey, final String userId, final String platform, final boolean enableDiagnosticLogging, final StorageProfile storageProfile) {
         if (context == null) {
             logger.e(TAG, "Argument context cannot be null in initialize()");
             return this;
@@ -258,7 +395,8 @@ public class RakamClient {
 
         this.context = context.getApplicationContext();
         this.apiKey = apiKey;
-        this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context, this.instanceName);
+        this.eventStore = openEventStore(storageProfile);
+        registerTrimMemoryCallbacks();
         this.platform = Utils.isEmptyString(platform) ? Constants.PLATFORM : platform;
 
         final RakamClient client = this;
@@ -268,9 +406,12 @@ public class RakamClient {
                 if (!initialized) {
                     // this try block is idempotent, so it's safe to retry initialize if failed
                     try {
+                        if (storageEngine != StorageEngine.SQLITE) {
+                            RakamClient.moveDatabaseToStore(context, instanceName, eventStore);
+                        }
                         if (instanceName.equals(Constants.DEFAULT_INSTANCE)) {
                             RakamClient.upgradePrefs(context);
-                            RakamClient.upgradeSharedPrefsToDB(context);
+                            RakamClient.upgradeSharedPrefsToDB(context, null, eventStore);
                         }
                         httpClient = new OkHttpClient();
                         deviceInfo = new DeviceInfo(context);
@@ -282,11 +423,12 @@ public class RakamClient {
 
                         if (userId != null) {
                             client.userId = userId;
-                            dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                            eventStore.insertOrReplaceKeyValue(USER_ID_KEY, userId);
                         } else {
-                            client.userId = dbHelper.getValue(USER_ID_KEY);
+                            client.userId = eventStore.getValue(USER_ID_KEY);
                         }
-                        final Long optOutLong = dbHelper.getLongValue(OPT_OUT_KEY);
+                        refreshDeviceContext();
+                        final Long optOutLong = eventStore.getLongValue(OPT_OUT_KEY);
                         optOut = optOutLong != null && optOutLong == 1;
 
                         // try to restore previous session id
@@ -300,26 +442,43 @@ public class RakamClient {
                         lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
                         lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
 
-                        // install database reset listener to re-insert metadata in memory
-                        dbHelper.setDatabaseResetListener(new DatabaseResetListener() {
+                        // install reset listener to re-insert metadata in memory
+                        eventStore.setResetListener(new EventStore.ResetListener() {
                             @Override
-                            public void onDatabaseReset(SQLiteDatabase db) {
-                                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.STORE_TABLE_NAME, DEVICE_ID_KEY, client.deviceId);
-                                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.STORE_TABLE_NAME, USER_ID_KEY, client.userId);
-                                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, OPT_OUT_KEY, client.optOut ? 1L : 0L);
-                                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, PREVIOUS_SESSION_ID_KEY, client.sessionId);
-                                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, LAST_EVENT_TIME_KEY, client.lastEventTime);
+                            public void onReset(Map<String, String> values, Map<String, Long> longValues) {
+                                values.put(DEVICE_ID_KEY, client.deviceId);
+                                values.put(USER_ID_KEY, client.userId);
+                                longValues.put(OPT_OUT_KEY, client.optOut ? 1L : 0L);
+                                longValues.put(PREVIOUS_SESSION_ID_KEY, client.sessionId);
+                                longValues.put(LAST_EVENT_TIME_KEY, client.lastEventTime);
+                                if (Thread.currentThread() == logThread && groupSaves != null) {
+                                    groupSavesBeforeReset = groupSaves.size();
+                                }
                             }
                         });
 
                         initialized = true;
 
-                        String value = dbHelper.getValue(SUPER_PROPERTIES_KEY);
-                        if (value != null) {
-                            try {
-                                superProperties = new JSONObject(value);
-                            } catch (JSONException e) {
-                                dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
+                        // replay events spilled by a previous process
+                        EventSpillFile spill = new EventSpillFile(new File(
+                                context.getFilesDir(), Constants.SPILL_FILE_PREFIX + instanceName));
+                        spill.recover();
+                        spillFile = spill;
+                        if (spill.isActive()) {
+                            scheduleDrain();
+                        }
+
+                        // super properties set before initialize replace the saved ones
+                        if (superPropertiesDirty.get()) {
+                            writeSuperProperties();
+                        } else {
+                            String value = eventStore.getValue(SUPER_PROPERTIES_KEY);
+                            if (value != null) {
+                                try {
+                                    superProperties = SuperProperties.of(new JSONObject(value));
+                                } catch (JSONException e) {
+                                    eventStore.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
+                                }
                             }
                         }
 
@@ -337,16 +496,62 @@ public class RakamClient {
         return this;
     }
 
+    private void registerTrimMemoryCallbacks() {
+        if (trimMemoryCallbacksRegistered) {
+            return;
+        }
+        trimMemoryCallbacksRegistered = true;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    closeDatabase();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+
+            @Override
+            public void onLowMemory() {
+                closeDatabase();
+            }
+        });
+    }
+
+    /**
+     * Internal method to release the database connection and its compiled statements, it is
+     * reopened by the next database call.
+     */
+    void closeDatabase() {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                eventStore.close();
+            }
+        });
+    }
+
     /**
      * Sets super property keys for the user.
      * Super properties allow you to continuously attach a property to every event you track automatically.
+     * Events logged before this call keep the super properties they were logged with.
      *
      * @param superProperties Super properties
      * @return the RakamClient
      */
     public RakamClient setSuperProperties(JSONObject superProperties) {
-        this.superProperties = superProperties;
-        dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, superProperties.toString());
+        if (superProperties == null) {
+            clearSuperProperties();
+            return this;
+        }
+        // later changes to the app's object do not affect the snapshot
+        SuperProperties snapshot = SuperProperties.of(superProperties);
+        if (snapshot == null) {
+            return this;
+        }
+        this.superProperties = snapshot;
+        saveSuperProperties();
         return this;
     }
 
@@ -356,7 +561,35 @@ public class RakamClient {
      * @return the super properties
      */
     public JSONObject getSuperProperties() {
-        return Utils.cloneJSONObject(superProperties);
+        SuperProperties current = superProperties;
+        return current == null ? null : current.toJSONObject();
+    }
+
+    /**
+     * Internal method to persist the current super properties on logThread. Changes made
+     * while a write is already waiting are saved by that write.
+     */
+    private void saveSuperProperties() {
+        if (superPropertiesDirty.getAndSet(true)) {
+            return;
+        }
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                // before initialize the write is left to the init runnable
+                if (eventStore != null) {
+                    writeSuperProperties();
+                }
+            }
+        });
+    }
+
+    private void writeSuperProperties() {
+        // clear before reading, so a change after the read schedules another write
+        superPropertiesDirty.set(false);
+        SuperProperties current = superProperties;
+        eventStore.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY,
+                current == null ? null : current.source);
     }
 
     /**
@@ -435,7 +668,10 @@ public class RakamClient {
                     throw new IllegalStateException(
                             "Must initialize before acting on location listening.");
                 }
+                flushRepeatedEvents();
+                flushCounters();
                 deviceInfo.setLocationListening(true);
+                refreshDeviceContext();
             }
         });
         return this;
@@ -455,7 +691,74 @@ public class RakamClient {
                     throw new IllegalStateException(
                             "Must initialize before acting on location listening.");
                 }
+                flushRepeatedEvents();
+                flushCounters();
                 deviceInfo.setLocationListening(false);
+                refreshDeviceContext();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Set how long a location lookup is reused across events. Looking up the location queries
+     * every enabled location provider, so by default the SDK reuses a location for 1 minute.
+     * Set to 0 to look up the location for every event.
+     *
+     * @param locationCacheTtlMillis the time in milliseconds
+     * @return the RakamClient
+     */
+    public RakamClient setLocationCacheTtlMillis(final long locationCacheTtlMillis) {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo == null) {
+                    throw new IllegalStateException(
+                            "Must initialize before acting on location listening.");
+                }
+                deviceInfo.setLocationCacheTtlMillis(locationCacheTtlMillis);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Keep the location attached to events current with locations other apps receive from the
+     * passive location provider, between cache lookups. This does not request any location
+     * updates of its own. Requires the ACCESS_FINE_LOCATION permission.
+     *
+     * @return the RakamClient
+     */
+    public RakamClient enablePassiveLocationUpdates() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo == null) {
+                    throw new IllegalStateException(
+                            "Must initialize before acting on location listening.");
+                }
+                if (!deviceInfo.startPassiveLocationUpdates(logThread.getLooper())) {
+                    logger.w(TAG, "Failed to start passive location updates");
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Stop the updates started by {@link #enablePassiveLocationUpdates()}.
+     *
+     * @return the RakamClient
+     */
+    public RakamClient disablePassiveLocationUpdates() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo == null) {
+                    throw new IllegalStateException(
+                            "Must initialize before acting on location listening.");
+                }
+                deviceInfo.stopPassiveLocationUpdates();
             }
         });
         return this;
@@ -487,6 +790,22 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets the bounds of group commit. When several events are waiting to be saved, the
+     * background thread saves them in one database transaction instead of one transaction
+     * each, up to {@code maxEvents} events or {@code maxLatencyMillis} per transaction. Events
+     * keep their order and ids either way. A {@code maxEvents} of 1 or less turns it off.
+     *
+     * @param maxEvents        the most events saved in one transaction
+     * @param maxLatencyMillis the longest a transaction stays open, in milliseconds
+     * @return the RakamClient
+     */
+    public RakamClient setGroupCommit(int maxEvents, long maxLatencyMillis) {
+        this.groupCommitMaxEvents = maxEvents;
+        this.groupCommitMaxLatencyMillis = maxLatencyMillis;
+        return this;
+    }
+
     /**
      * Sets event max count. This is the maximum number of unsent events to keep on the device
      * (for example if the device does not have internet connectivity and cannot upload events).
@@ -501,6 +820,231 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets the most storage the unsent events and identifys may take on the device, as stored
+     * (compressed). Event sizes vary widely, so this bounds the database where
+     * {@link #setEventMaxCount(int)} cannot. Once over, the SDK drops the earliest logged
+     * events and identifys. Defaults to {@link Constants#EVENT_MAX_BYTES}, 0 or less turns
+     * the limit off.
+     *
+     * @param eventMaxBytes the most bytes of unsent events to keep
+     * @return the RakamClient
+     * @see #getStorageUsage()
+     */
+    public RakamClient setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes;
+        return this;
+    }
+
+    /**
+     * Suppress events identical to one logged less than {@code windowMillis} milliseconds
+     * before, such as double taps. Events are identical when they have the same event type
+     * and properties. Events logged with {@code outOfSession} are only identical to other out
+     * of session events.
+     * <br><br>
+     * By default duplicates are dropped. With {@code countDuplicates}, the first event is still
+     * saved right away, and its first duplicate is held back for at most one window instead.
+     * Later duplicates are folded into it, and it is saved once with a {@code _repeat_count}
+     * property holding the number of times it was logged if there were more. Events without
+     * duplicates are never held. Calls such as setUserId or setOptOut save the held events
+     * first, so later duplicates start a new event.
+     *
+     * @param windowMillis    the window in milliseconds
+     * @param countDuplicates fold duplicates into one counted event instead of dropping them
+     * @return the RakamClient
+     */
+    public RakamClient enableDuplicateSuppression(long windowMillis, boolean countDuplicates) {
+        if (windowMillis <= 0) {
+            logger.w(TAG, String.format(
+                    "Invalid duplicate window %d ms, ignoring", windowMillis
+            ));
+            return this;
+        }
+        this.countDuplicates = countDuplicates;
+        this.duplicateWindowMillis = windowMillis;
+        return this;
+    }
+
+    /**
+     * Stop suppressing duplicate events. Events held back for counting duplicates are saved.
+     *
+     * @return the RakamClient
+     */
+    public RakamClient disableDuplicateSuppression() {
+        duplicateWindowMillis = 0;
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                flushRepeatedEvents();
+                deduplicator.clear();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Get the number of events dropped or folded as duplicates since the client was created.
+     *
+     * @return the number of duplicate events
+     */
+    public long getSuppressedDuplicateCount() {
+        return suppressedDuplicateCount.get();
+    }
+
+    /**
+     * Sets what logEvent does when events are logged faster than the SDK can write them and
+     * its buffer of {@link Constants#PENDING_EVENT_QUEUE_CAPACITY} pending events is full.
+     * Defaults to {@link OverflowPolicy#DROP_OLDEST}, so logEvent never waits or touches the disk
+     * on the calling thread. {@link OverflowPolicy#SPILL_TO_DISK} keeps every event at the cost
+     * of file writes on the calling thread.
+     *
+     * @param overflowPolicy the overflow policy
+     * @return the RakamClient
+     */
+    public RakamClient setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            logger.e(TAG, "Argument overflowPolicy cannot be null in setOverflowPolicy()");
+            return this;
+        }
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Sets where unsent events and the SDK's metadata are kept. Must be called before
+     * initialize, defaults to {@link StorageEngine#SQLITE}. When an app that used the
+     * database switches to another engine, the first initialize moves the device id, user id,
+     * opt-out, session and unsent events into the new store and deletes the database.
+     * Switching back to {@link StorageEngine#SQLITE} does not move anything back.
+     *
+     * @param storageEngine the storage engine
+     * @return the RakamClient
+     */
+    public synchronized RakamClient setStorageEngine(StorageEngine storageEngine) {
+        if (storageEngine == null) {
+            logger.e(TAG, "Argument storageEngine cannot be null in setStorageEngine()");
+            return this;
+        }
+        if (eventStore != null) {
+            logger.w(TAG, "setStorageEngine() must be called before initialize(), ignoring");
+            return this;
+        }
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    private EventStore openEventStore(StorageProfile storageProfile) {
+        if (storageEngine == StorageEngine.MEMORY) {
+            // initialize can run again, keep the events already in memory
+            return eventStore instanceof InMemoryEventStore ? eventStore : new InMemoryEventStore();
+        }
+        if (storageEngine == StorageEngine.MAPPED_SEGMENTS) {
+            return eventStore instanceof SegmentEventStore ? eventStore : new SegmentEventStore(
+                    new File(context.getFilesDir(), Constants.SEGMENT_DIR_PREFIX + instanceName));
+        }
+        DatabaseHelper helper = DatabaseHelper.getDatabaseHelper(context, instanceName);
+        helper.setStorageProfile(storageProfile);
+        // keep the database open while events are coming in, close it on logThread once idle
+        helper.setIdleCloseHandler(new Handler(logThread.getLooper()));
+        return helper;
+    }
+
+    /**
+     * Sets how long logEvent blocks with the {@link OverflowPolicy#BLOCK_WITH_TIMEOUT} overflow
+     * policy before dropping the event.
+     *
+     * @param overflowBlockTimeoutMillis the timeout in milliseconds
+     * @return the RakamClient
+     */
+    public RakamClient setOverflowBlockTimeoutMillis(long overflowBlockTimeoutMillis) {
+        this.overflowBlockTimeoutMillis = Math.max(0, overflowBlockTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Gets the number of events accepted into the pending event buffer, including events
+     * spilled to disk. Events later evicted by {@link OverflowPolicy#DROP_OLDEST} are not
+     * counted, they are part of {@link #getDroppedEventCount()} instead.
+     *
+     * @return the number of accepted events
+     */
+    public long getAcceptedEventCount() {
+        EventSpillFile spill = spillFile;
+        return pendingEvents.producedCount() + (spill == null ? 0 : spill.appendedCount())
+                - evictedEventCount.get();
+    }
+
+    /**
+     * Gets the number of events dropped because the pending event buffer was full.
+     *
+     * @return the number of dropped events
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    /**
+     * Gets the number of times logEvent had to wait for room in the pending event buffer with
+     * the {@link OverflowPolicy#BLOCK_WITH_TIMEOUT} overflow policy.
+     *
+     * @return the number of blocked events
+     */
+    public long getBlockedEventCount() {
+        return blockedEventCount.get();
+    }
+
+    /**
+     * Gets the number of events saved on the device and waiting to be uploaded, as last
+     * counted by the background thread. This does not touch the database.
+     *
+     * @return the number of unsent events, 0 before the SDK is initialized
+     */
+    public long getUnsentEventCount() {
+        EventStore helper = eventStore;
+        return helper == null ? 0 : helper.getCachedEventCount();
+    }
+
+    /**
+     * Gets the number of identify events saved on the device and waiting to be uploaded, as
+     * last counted by the background thread. This does not touch the database.
+     *
+     * @return the number of unsent identify events, 0 before the SDK is initialized
+     */
+    public long getUnsentIdentifyCount() {
+        EventStore helper = eventStore;
+        return helper == null ? 0 : helper.getCachedIdentifyCount();
+    }
+
+    /**
+     * Gets how much storage the SDK uses on the device: the unsent events as last counted by
+     * the background thread, and the current size of the storage engine's files. This does
+     * not query the database.
+     *
+     * @return the storage usage, all zero before the SDK is initialized
+     */
+    public StorageUsage getStorageUsage() {
+        EventStore helper = eventStore;
+        if (helper == null) {
+            return new StorageUsage(0, 0, 0, 0);
+        }
+        return new StorageUsage(helper.getCachedEventCount(), helper.getCachedIdentifyCount(),
+                helper.getCachedLogBytes(), helper.getFileBytes());
+    }
+
+    /**
+     * Sets the generator for the {@code _id} attached to every event. The default generator
+     * creates time-ordered ids in the UUID format without going through the shared SecureRandom
+     * for every event. Passing null restores the default.
+     *
+     * @param eventIdGenerator the event id generator
+     * @return the RakamClient
+     */
+    public RakamClient setEventIdGenerator(EventIdGenerator eventIdGenerator) {
+        this.eventIdGenerator = eventIdGenerator == null
+                ? new TimeOrderedEventIdGenerator() : eventIdGenerator;
+        return this;
+    }
+
     /**
      * Sets event upload period millis. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -538,9 +1082,25 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets the tracking options, controlling which device properties are attached to events.
+     * <b>Note:</b> options are applied when this is called, so call it again after disabling
+     * further fields on the same object.
+     *
+     * @param trackingOptions the tracking options
+     * @return the RakamClient
+     */
     public RakamClient setTrackingOptions(TrackingOptions trackingOptions) {
         this.trackingOptions = trackingOptions;
         this.apiPropertiesTrackingOptions = trackingOptions.getApiPropertiesTrackingOptions();
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                flushRepeatedEvents();
+                flushCounters();
+                refreshDeviceContext();
+            }
+        });
         return this;
     }
 
@@ -562,8 +1122,9 @@ public class RakamClient {
                 if (Utils.isEmptyString(apiKey)) { // in case initialization failed
                     return;
                 }
+                flushRepeatedEvents();
                 client.optOut = optOut;
-                dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
+                eventStore.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
             }
         });
         return this;
@@ -676,7 +1237,7 @@ public class RakamClient {
      * @param eventType the event type
      */
     public void logEvent(String eventType) {
-        logEvent(eventType, null);
+        logEvent(eventType, (JSONObject) null);
     }
 
     /**
@@ -704,18 +1265,127 @@ public class RakamClient {
      */
     public void logEvent(String eventType, JSONObject eventProperties, boolean outOfSession) {
         if (validateLogEvent(eventType)) {
-            logEvent(eventType, eventProperties, getCurrentTimeMillis(), outOfSession);
+            long timestamp = getCurrentTimeMillis();
+            double samplingWeight = admitEvent(eventType, timestamp);
+            if (samplingWeight != EventPolicy.REJECTED) {
+                logEventAsync(eventType, eventProperties, timestamp, outOfSession, samplingWeight);
+            }
+        }
+    }
+
+    /**
+     * Log an event with the specified event type and typed event properties. This avoids
+     * building and cloning a JSONObject for high frequency events with flat properties.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     */
+    public void logEvent(String eventType, EventProperties eventProperties) {
+        logEvent(eventType, eventProperties, false);
+    }
+
+    /**
+     * Log an event with the specified event type and typed event properties.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param outOfSession    the out of session
+     */
+    public void logEvent(String eventType, EventProperties eventProperties, boolean outOfSession) {
+        if (validateLogEvent(eventType)) {
+            long timestamp = getCurrentTimeMillis();
+            double samplingWeight = admitEvent(eventType, timestamp);
+            if (samplingWeight != EventPolicy.REJECTED) {
+                logEventAsync(eventType, eventProperties, timestamp, outOfSession, samplingWeight);
+            }
+        }
+    }
+
+    /**
+     * Log a list of events, for example actions queued while offline. The events are saved in
+     * order in a single database transaction, which is much cheaper than calling
+     * {@code logEvent} for each of them. Events with an invalid event type or rejected by
+     * their {@link EventPolicy} are skipped.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param events the events
+     * @see Event
+     */
+    public void logEvents(List<Event> events) {
+        if (events == null || events.isEmpty() || !contextAndApiKeySet("logEvents()")) {
+            return;
+        }
+        long timestamp = getCurrentTimeMillis();
+        List<EventQueue.PendingEvent> batch = new ArrayList<EventQueue.PendingEvent>(events.size());
+        for (Event event : events) {
+            if (event == null || TextUtils.isEmpty(event.eventType)) {
+                logger.e(TAG, "Argument eventType cannot be null or blank in logEvents()");
+                continue;
+            }
+            double samplingWeight = admitEvent(event.eventType, timestamp);
+            if (samplingWeight == EventPolicy.REJECTED) {
+                continue;
+            }
+            // the same snapshots logEventAsync takes for single events
+            batch.add(new EventQueue.PendingEvent(event.eventType,
+                    event.eventProperties == null
+                            ? null : Utils.cloneJSONObject(event.eventProperties),
+                    event.typedProperties == null ? null : event.typedProperties.snapshot(),
+                    timestamp, event.outOfSession, samplingWeight, superProperties));
+        }
+        if (!batch.isEmpty()) {
+            enqueueEvent(new EventQueue.EventBatch(batch));
         }
     }
 
+    /**
+     * Count an occurrence of an event type. Instead of saving one event per call, the SDK
+     * keeps a total in memory for each event type and set of properties within a session,
+     * and records it as a single event with {@code _count}, {@code _first_time} and
+     * {@code _last_time} properties when the session ends, the app leaves the foreground or
+     * events are uploaded.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType the event type
+     */
+    public void increment(String eventType) {
+        increment(eventType, null, 1);
+    }
+
+    /**
+     * Add {@code delta} to the count of an event type with the given properties. Calls with
+     * the same properties, in any key order, are counted together.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties, can be null
+     * @param delta           the amount to add
+     * @see #increment(String)
+     */
+    public void increment(String eventType, JSONObject eventProperties, long delta) {
+        if (!validateLogEvent(eventType)) {
+            return;
+        }
+        if (delta == 0) {
+            return;
+        }
+        JSONObject properties = eventProperties == null
+                ? null : Utils.cloneJSONObject(eventProperties);
+        enqueueEvent(new EventQueue.CounterIncrement(
+                eventType, properties, getCurrentTimeMillis(), false, delta, superProperties));
+    }
+
     /**
      * Log an event with the specified event type.
-     * <b>Note:</b> this is version is synchronous and blocks the main thread until done.
+     * <b>Note:</b> this is version is synchronous and blocks the calling thread until the event
+     * is written to the database. Prefer {@code logEvent} on the main thread.
      *
      * @param eventType the event type
      */
     public void logEventSync(String eventType) {
-        logEventSync(eventType, null);
+        logEventSync(eventType, (JSONObject) null);
     }
 
     /**
@@ -748,58 +1418,495 @@ public class RakamClient {
      */
     public void logEventSync(String eventType, JSONObject eventProperties, boolean outOfSession) {
         if (validateLogEvent(eventType)) {
-            logEvent(eventType, eventProperties, getCurrentTimeMillis(), outOfSession);
+            long timestamp = getCurrentTimeMillis();
+            double samplingWeight = admitEvent(eventType, timestamp);
+            if (samplingWeight != EventPolicy.REJECTED) {
+                logEvent(eventType, eventProperties, null, timestamp, outOfSession, samplingWeight,
+                        superProperties);
+            }
+        }
+    }
+
+    /**
+     * Validate the event type being logged. Also verifies that the context and API key
+     * have been set already with an initialize call.
+     *
+     * @param eventType the event type
+     * @return true if the event type is valid
+     */
+    protected boolean validateLogEvent(String eventType) {
+        if (TextUtils.isEmpty(eventType)) {
+            logger.e(TAG, "Argument eventType cannot be null or blank in logEvent()");
+            return false;
+        }
+
+        return contextAndApiKeySet("logEvent()");
+    }
+
+    /**
+     * Register a sampling and throttling policy for an event type, replacing any previous
+     * policy and resetting its drop counters. Events of that type logged with {@code logEvent}
+     * or {@code logEventSync} that the policy rejects are dropped before any serialization or
+     * database work. The policy's settings are copied, changing it later has no effect until
+     * it is set again. Passing a null policy removes it.
+     *
+     * @param eventType the event type
+     * @param policy    the policy
+     * @return the RakamClient
+     * @see EventPolicy
+     */
+    public RakamClient setEventPolicy(String eventType, EventPolicy policy) {
+        if (TextUtils.isEmpty(eventType)) {
+            logger.e(TAG, "Argument eventType cannot be null or blank in setEventPolicy()");
+            return this;
+        }
+        if (policy == null) {
+            eventPolicies.remove(eventType);
+        } else {
+            eventPolicies.put(eventType, new EventPolicyState(policy));
+        }
+        return this;
+    }
+
+    /**
+     * Get the number of events of a type dropped by the sample rate of its
+     * {@link EventPolicy} since the policy was set.
+     *
+     * @param eventType the event type
+     * @return the number of sampled out events
+     */
+    public long getSampledOutEventCount(String eventType) {
+        EventPolicyState policy = eventType == null ? null : eventPolicies.get(eventType);
+        return policy == null ? 0 : policy.getSampledOutCount();
+    }
+
+    /**
+     * Get the number of events of a type dropped by the throttle of its {@link EventPolicy}
+     * since the policy was set.
+     *
+     * @param eventType the event type
+     * @return the number of throttled events
+     */
+    public long getThrottledEventCount(String eventType) {
+        EventPolicyState policy = eventType == null ? null : eventPolicies.get(eventType);
+        return policy == null ? 0 : policy.getThrottledCount();
+    }
+
+    /**
+     * Apply the event type's policy, if it has one.
+     *
+     * @return EventPolicy.REJECTED, EventPolicy.NOT_SAMPLED or the sampling weight
+     */
+    private double admitEvent(String eventType, long timestamp) {
+        if (eventPolicies.isEmpty()) {
+            return EventPolicy.NOT_SAMPLED;
+        }
+        EventPolicyState policy = eventPolicies.get(eventType);
+        return policy == null ? EventPolicy.NOT_SAMPLED : policy.admit(timestamp);
+    }
+
+    /**
+     * Log event async. Internal method to hand an event off to the log thread. The calling
+     * thread only snapshots the properties, takes the current super properties and publishes
+     * the event into {@link #pendingEvents}; merging, serialization and the database write
+     * happen on logThread.
+     *
+     * @param eventType    the event type
+     * @param properties   the request properties
+     * @param timestamp    the timestamp
+     * @param outOfSession the out of session
+     */
+    protected void logEventAsync(final String eventType, JSONObject properties,
+                                 final long timestamp, final boolean outOfSession) {
+        logEventAsync(eventType, properties, timestamp, outOfSession, EventPolicy.NOT_SAMPLED);
+    }
+
+    private void logEventAsync(String eventType, JSONObject properties, long timestamp,
+                               boolean outOfSession, double samplingWeight) {
+        // Clone the incoming eventProperties object before sending over
+        // to the log thread. Helps avoid ConcurrentModificationException
+        // if the caller starts mutating the object they passed in.
+        // Only does a shallow copy, so it's still possible, though unlikely,
+        // to hit concurrent access if the caller mutates deep in the object.
+        if (properties != null) {
+            properties = Utils.cloneJSONObject(properties);
+        }
+
+        enqueueEvent(new EventQueue.PendingEvent(eventType, properties, null, timestamp,
+                outOfSession, samplingWeight, superProperties));
+    }
+
+    /**
+     * Log event async. Internal method to hand an event with typed properties off to the log
+     * thread. Instead of cloning, the properties are snapshotted, which shares their arrays.
+     *
+     * @param eventType    the event type
+     * @param properties   the request properties
+     * @param timestamp    the timestamp
+     * @param outOfSession the out of session
+     */
+    private void logEventAsync(String eventType, EventProperties properties, long timestamp,
+                               boolean outOfSession, double samplingWeight) {
+        enqueueEvent(new EventQueue.PendingEvent(eventType, null,
+                properties == null ? null : properties.snapshot(), timestamp, outOfSession,
+                samplingWeight, superProperties));
+    }
+
+    private void enqueueEvent(EventQueue.PendingEvent event) {
+        EventSpillFile spill = spillFile;
+        if (spill != null && spill.isActive()) {
+            // keep spilling until logThread has caught up, so events stay in order. Checked
+            // again under the lock finishIfDrained takes, so the event can not start a new
+            // file after logThread has gone back to the queue
+            synchronized (spill) {
+                if (spill.isActive()) {
+                    spillEvent(spill, event);
+                    return;
+                }
+            }
+        }
+
+        if (!pendingEvents.offer(event)) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    dropEvent(event);
+                    return;
+                case DROP_OLDEST:
+                    do {
+                        EventQueue.PendingEvent oldest = pendingEvents.poll();
+                        if (oldest != null) {
+                            evictedEventCount.incrementAndGet();
+                            dropEvent(oldest);
+                        }
+                    } while (!pendingEvents.offer(event));
+                    break;
+                case BLOCK_WITH_TIMEOUT:
+                    if (!offerWithTimeout(event)) {
+                        dropEvent(event);
+                        return;
+                    }
+                    break;
+                case SPILL_TO_DISK:
+                    if (spill == null) {
+                        // the spill file is opened in initialize, wait for room until then
+                        if (!offerWithTimeout(event)) {
+                            dropEvent(event);
+                            return;
+                        }
+                        break;
+                    }
+                    spillEvent(spill, event);
+                    return;
+            }
+        }
+        scheduleDrain();
+    }
+
+    private boolean offerWithTimeout(EventQueue.PendingEvent event) {
+        blockedEventCount.incrementAndGet();
+        scheduleDrain();
+        if (Thread.currentThread() == logThread) {
+            // logThread is the one that frees up space, waiting here would only time out
+            return false;
+        }
+        long deadline = System.nanoTime() + overflowBlockTimeoutMillis * 1000000L;
+        while (!pendingEvents.offer(event)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, OVERFLOW_PARK_NANOS));
+        }
+        return true;
+    }
+
+    private void spillEvent(EventSpillFile spill, EventQueue.PendingEvent event) {
+        if (event instanceof EventQueue.EventBatch) {
+            // spilled one record per event, they are replayed one by one
+            for (EventQueue.PendingEvent batched : ((EventQueue.EventBatch) event).events) {
+                if (!spill.append(batched)) {
+                    dropEvent(batched);
+                }
+            }
+        } else if (!spill.append(event)) {
+            dropEvent(event);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void dropEvent(EventQueue.PendingEvent event) {
+        droppedEventCount.addAndGet(event instanceof EventQueue.EventBatch
+                ? ((EventQueue.EventBatch) event).events.size() : 1);
+        logger.w(TAG, String.format(
+                "Pending event buffer is full, dropping event of type %s", event.eventType
+        ));
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            logThread.post(drainPendingEventsTask);
+        }
+    }
+
+    /**
+     * Internal method to process pending events up to the next ordering barrier.
+     * <b>Note:</b> always call this on logThread
+     */
+    void drainPendingEvents() {
+        long[] barrier;
+        synchronized (logThreadBarriers) {
+            barrier = logThreadBarriers.peek();
+        }
+        if (barrier == null) {
+            drainPendingEvents(Long.MAX_VALUE, Long.MAX_VALUE);
+        } else {
+            drainPendingEvents(barrier[0], barrier[1]);
+        }
+    }
+
+    private void drainPendingEvents(final long queueUpTo, final long spillUpTo) {
+        while (true) {
+            // while spilling nothing new goes into the queue, so it holds the oldest events
+            processPendingEvents(new PendingEventSource() {
+                @Override
+                public EventQueue.PendingEvent next() {
+                    return queueUpTo == Long.MAX_VALUE ? pendingEvents.poll()
+                            : pendingEvents.pollBefore(queueUpTo);
+                }
+            });
+
+            final EventSpillFile spill = spillFile;
+            if (spill == null || !spill.isActive()) {
+                return;
+            }
+            processPendingEvents(new PendingEventSource() {
+                @Override
+                public EventQueue.PendingEvent next() {
+                    return spill.consumedCount() < spillUpTo ? spill.poll() : null;
+                }
+            });
+            if (spillUpTo != Long.MAX_VALUE || !spill.finishIfDrained()) {
+                // either stopped at a barrier, or more events were spilled meanwhile and the
+                // producer that spilled them has scheduled another drain
+                return;
+            }
+            // spilling is over, go back for events that reached the queue since
+        }
+    }
+
+    private interface PendingEventSource {
+        /**
+         * @return the next event to process, or null if there is none
+         */
+        EventQueue.PendingEvent next();
+    }
+
+    /**
+     * Internal method to process every event from a source. Events that are already waiting
+     * are processed in groups of up to {@code groupCommitMaxEvents} events or
+     * {@code groupCommitMaxLatencyMillis}, each group saved in one database transaction. A
+     * single failed insert rolls the whole group back, so then its records are saved again one
+     * by one. Uploads wait for the group to commit, the ids of a rolled back group are handed
+     * out again.
+     * <b>Note:</b> always call this on logThread
+     */
+    private void processPendingEvents(final PendingEventSource source) {
+        EventQueue.PendingEvent event = source.next();
+        if (groupCommitMaxEvents <= 1 || eventStore == null) {
+            for (; event != null; event = source.next()) {
+                processPendingEvent(event);
+            }
+            return;
+        }
+        while (event != null) {
+            final EventQueue.PendingEvent first = event;
+            final boolean[] full = {false};
+            List<String[]> saves = new ArrayList<String[]>();
+            groupSaves = saves;
+            groupSavesBeforeReset = -1;
+            boolean committed;
+            try {
+                committed = eventStore.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        long deadline = SystemClock.uptimeMillis() + groupCommitMaxLatencyMillis;
+                        EventQueue.PendingEvent next = first;
+                        int count = 0;
+                        while (next != null) {
+                            processPendingEvent(next);
+                            if (++count >= groupCommitMaxEvents
+                                    || SystemClock.uptimeMillis() >= deadline) {
+                                full[0] = true;
+                                return;
+                            }
+                            next = source.next();
+                        }
+                    }
+                });
+            } finally {
+                groupSaves = null;
+            }
+            if (!committed) {
+                onTransactionRolledBack();
+                updateServerAfterGroup = false;
+                // the events were processed already, their session, counter and duplicate
+                // state stands, so only the records are saved again
+                int lost = groupSavesBeforeReset >= 0 ? groupSavesBeforeReset : saves.size();
+                for (String[] save : saves.subList(0, lost)) {
+                    saveEvent(save[0], save[1]);
+                }
+            }
+            if (updateServerAfterGroup) {
+                updateServerAfterGroup = false;
+                updateServer();
+            }
+            // the group hit a bound, commit it and start another with what is left
+            event = full[0] ? source.next() : null;
+        }
+    }
+
+    private void processPendingEvent(EventQueue.PendingEvent event) {
+        if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
+            return;
+        }
+        if (event instanceof EventQueue.CounterIncrement) {
+            addIncrement((EventQueue.CounterIncrement) event);
+        } else if (event instanceof EventQueue.EventBatch) {
+            logEventBatch(((EventQueue.EventBatch) event).events);
+        } else if (duplicateWindowMillis > 0) {
+            logEventUnlessDuplicate(event);
+        } else {
+            logEvent(event);
+        }
+    }
+
+    /**
+     * Internal method to save the events from {@code logEvents} in one transaction.
+     * <b>Note:</b> always call this on logThread
+     */
+    private void logEventBatch(List<EventQueue.PendingEvent> events) {
+        if (duplicateWindowMillis > 0 || containsIdentify(events)) {
+            // duplicates and identifies need the per event path
+            for (EventQueue.PendingEvent event : events) {
+                processPendingEvent(event);
+            }
+            return;
+        }
+        if (optOut) {
+            return;
         }
+
+        List<String> eventStrings = new ArrayList<String>(events.size());
+        DeviceContext context = getDeviceContext();
+        Location location = context.trackLatLng ? deviceInfo.getMostRecentLocation() : null;
+        // each event gets the id the one before it is saved with, as on the per event path
+        long localId = lastEventId;
+        for (EventQueue.PendingEvent event : events) {
+            logger.d(TAG, "Logged event to Rakam: " + event.eventType);
+            // the batch shares one timestamp, only the first event can start a session
+            updateSession(event.eventType, event.timestamp, event.outOfSession);
+            try {
+                eventStrings.add(eventWriter.write(event.eventType, eventIdGenerator,
+                        localId, event.timestamp, event.outOfSession ? -1 : sessionId,
+                        context, location, event.properties, event.typedProperties,
+                        event.samplingWeight, event.superProperties));
+                localId++;
+            } catch (JSONException e) {
+                logger.e(TAG, String.format(
+                        "JSON Serialization of event type %s failed, skipping: %s",
+                        event.eventType, e.toString()
+                ));
+                Diagnostics.getLogger().logError(
+                        String.format("Failed to JSON serialize event type %s", event.eventType), e
+                );
+            }
+        }
+        saveEvents(eventStrings);
+    }
+
+    private static boolean containsIdentify(List<EventQueue.PendingEvent> events) {
+        for (EventQueue.PendingEvent event : events) {
+            if (event.eventType.equals(Constants.IDENTIFY_EVENT)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Validate the event type being logged. Also verifies that the context and API key
-     * have been set already with an initialize call.
-     *
-     * @param eventType the event type
-     * @return true if the event type is valid
+     * Internal method to drop or fold an event identical to one logged within the duplicate
+     * window. <b>Note:</b> always call this on logThread
      */
-    protected boolean validateLogEvent(String eventType) {
-        if (TextUtils.isEmpty(eventType)) {
-            logger.e(TAG, "Argument eventType cannot be null or blank in logEvent()");
-            return false;
+    private void logEventUnlessDuplicate(EventQueue.PendingEvent event) {
+        String fingerprint = EventDeduplicator.fingerprint(event);
+        EventDeduplicator.Entry entry = deduplicator.match(
+                fingerprint, event.timestamp, duplicateWindowMillis);
+        if (entry == null) {
+            EventDeduplicator.Entry evicted = deduplicator.add(fingerprint, event.timestamp);
+            if (evicted != null) {
+                writeRepeatedEvent(evicted);
+            }
+            logEvent(event);
+            return;
+        }
+        if (!countDuplicates || entry.event != null) {
+            entry.repeats++;
+            suppressedDuplicateCount.incrementAndGet();
+            logger.d(TAG, "Suppressed duplicate event: " + event.eventType);
+            return;
         }
 
-        return contextAndApiKeySet("logEvent()");
+        if (optOut) {
+            return;
+        }
+        // the first duplicate is held for later ones to fold into, saved with the session it
+        // came in
+        updateSession(event.eventType, event.timestamp, event.outOfSession);
+        deduplicator.hold(entry, event, event.outOfSession ? -1 : sessionId);
+        if (!repeatedEventsFlushScheduled) {
+            repeatedEventsFlushScheduled = true;
+            logThread.postDelayed(flushRepeatedEventsRunnable, duplicateWindowMillis);
+        }
     }
 
     /**
-     * Log event async. Internal method to handle the synchronous logging of events.
-     *
-     * @param eventType    the event type
-     * @param properties   the request properties
-     * @param timestamp    the timestamp
-     * @param outOfSession the out of session
+     * Internal method to save the events held back for folding duplicates.
+     * <b>Note:</b> always call this on logThread
      */
-    protected void logEventAsync(final String eventType, JSONObject properties,
-                                 final long timestamp, final boolean outOfSession) {
-        // Clone the incoming eventProperties object before sending over
-        // to the log thread. Helps avoid ConcurrentModificationException
-        // if the caller starts mutating the object they passed in.
-        // Only does a shallow copy, so it's still possible, though unlikely,
-        // to hit concurrent access if the caller mutates deep in the object.
-        if (properties != null) {
-            properties = Utils.cloneJSONObject(properties);
+    void flushRepeatedEvents() {
+        for (EventDeduplicator.Entry entry : deduplicator.drainHeld()) {
+            writeRepeatedEvent(entry);
         }
+    }
 
-        final JSONObject copyProperties = properties;
-        runOnLogThread(new Runnable() {
-            @Override
-            public void run() {
-                if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
-                    return;
+    private void writeRepeatedEvent(EventDeduplicator.Entry entry) {
+        if (optOut) {
+            return;
+        }
+        EventQueue.PendingEvent event = entry.event;
+        JSONObject properties = event.properties;
+        EventProperties typedProperties = event.typedProperties;
+        try {
+            if (entry.repeats > 0) {
+                // the pending event owns its properties, no need to copy them
+                if (properties == null) {
+                    properties = typedProperties == null
+                            ? new JSONObject() : typedProperties.toJSONObject();
+                    typedProperties = null;
                 }
-
-                logEvent(
-                        eventType, copyProperties, timestamp, outOfSession
-                );
+                properties.put(EventDeduplicator.REPEAT_COUNT_KEY, entry.repeats + 1);
             }
-        });
+            writeEvent(event.eventType, properties, typedProperties, event.timestamp,
+                    entry.sessionId, event.samplingWeight, event.superProperties);
+        } catch (JSONException e) {
+            logger.e(TAG, e.toString());
+        }
+    }
+
+    private long logEvent(EventQueue.PendingEvent event) {
+        return logEvent(event.eventType, event.properties, event.typedProperties,
+                event.timestamp, event.outOfSession, event.samplingWeight, event.superProperties);
     }
 
     /**
@@ -813,12 +1920,25 @@ public class RakamClient {
      * @return the event ID if succeeded, else -1.
      */
     protected long logEvent(String eventType, JSONObject eventProperties, long timestamp, boolean outOfSession) {
+        return logEvent(eventType, eventProperties, null, timestamp, outOfSession,
+                EventPolicy.NOT_SAMPLED, superProperties);
+    }
+
+    private long logEvent(String eventType, JSONObject eventProperties,
+                          EventProperties typedProperties, long timestamp, boolean outOfSession,
+                          double samplingWeight, SuperProperties eventSuperProperties) {
         logger.d(TAG, "Logged event to Rakam: " + eventType);
 
         if (optOut) {
             return -1;
         }
 
+        updateSession(eventType, timestamp, outOfSession);
+        return writeEvent(eventType, eventProperties, typedProperties, timestamp,
+                outOfSession ? -1 : sessionId, samplingWeight, eventSuperProperties);
+    }
+
+    private void updateSession(String eventType, long timestamp, boolean outOfSession) {
         // skip session check if logging start_session or end_session events
         boolean loggingSessionEvent = trackingSessionEvents &&
                 (eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT));
@@ -831,98 +1951,23 @@ public class RakamClient {
                 refreshSessionTime(timestamp);
             }
         }
+    }
 
+    /**
+     * Serialize and save an event for the given session, without touching the session state.
+     * The super properties are the snapshot taken when the event was logged.
+     */
+    private long writeEvent(String eventType, JSONObject eventProperties,
+                            EventProperties typedProperties, long timestamp, long eventSessionId,
+                            double samplingWeight, SuperProperties eventSuperProperties) {
         long result = -1;
-        JSONObject properties = new JSONObject();
         try {
-            properties.put("_id", UUID.randomUUID().toString());
-            properties.put("_local_id", lastEventId);
-            properties.put("_time", timestamp);
-            properties.put("_user", replaceWithJSONNull(userId));
-            properties.put("_device_id", replaceWithJSONNull(deviceId));
-            properties.put("_session_id", outOfSession ? -1 : sessionId);
-
-            if (trackingOptions.shouldTrackVersionName()) {
-                properties.put("_version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            }
-
-            if (trackingOptions.shouldTrackOsName()) {
-                properties.put("_os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            }
-
-            if (trackingOptions.shouldTrackOsVersion()) {
-                properties.put("_os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            }
-
-            if (trackingOptions.shouldTrackDeviceBrand()) {
-                properties.put("_device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            }
-
-            if (trackingOptions.shouldTrackDeviceManufacturer()) {
-                properties.put("_device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            }
-
-            if (trackingOptions.shouldTrackDeviceModel()) {
-                properties.put("_device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            }
-
-            if (trackingOptions.shouldTrackCarrier()) {
-                properties.put("_carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            }
-
-            if (trackingOptions.shouldTrackCountry()) {
-                properties.put("_country_code", replaceWithJSONNull(deviceInfo.getCountry()));
-            }
-
-            if (trackingOptions.shouldTrackLanguage()) {
-                properties.put("_language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            }
-
-            if (trackingOptions.shouldTrackPlatform()) {
-                properties.put("_platform", platform);
-            }
-            properties.put("_library_name", Constants.LIBRARY);
-            properties.put("_library_version", Constants.VERSION);
-            properties.put("_ip", true);
-
-            if (trackingOptions.shouldTrackLatLng()) {
-                Location location = deviceInfo.getMostRecentLocation();
-                if (location != null) {
-                    properties.put("_latitude", location.getLatitude());
-                    properties.put("_longitude", location.getLongitude());
-                }
-            }
-
-            if (trackingOptions.shouldTrackAdid() && deviceInfo.getAdvertisingId() != null) {
-                properties.put("_android_adid", deviceInfo.getAdvertisingId());
-            }
-
-            properties.put("_limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
-            properties.put("_gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
-
-            if (eventProperties != null) {
-                Iterator<String> keys = eventProperties.keys();
-                while (keys.hasNext()) {
-                    String next = keys.next();
-                    properties.put(next, eventProperties.get(next));
-                }
-            }
-
-            if (superProperties != null) {
-                Iterator<String> keys = superProperties.keys();
-                while (keys.hasNext()) {
-                    String next = keys.next();
-                    if (eventProperties != null && eventProperties.has(next)) {
-                        continue;
-                    }
-                    properties.put(next, superProperties.get(next));
-                }
-            }
-
-            JSONObject event = new JSONObject();
-            event.put("properties", truncate(properties));
-            event.put("collection", replaceWithJSONNull(eventType));
-            result = saveEvent(eventType, event);
+            DeviceContext context = getDeviceContext();
+            Location location = context.trackLatLng ? deviceInfo.getMostRecentLocation() : null;
+            String eventString = eventWriter.write(eventType, eventIdGenerator,
+                    lastEventId, timestamp, eventSessionId, context, location,
+                    eventProperties, typedProperties, samplingWeight, eventSuperProperties);
+            result = saveEvent(eventType, eventString);
         } catch (JSONException e) {
             logger.e(TAG, String.format(
                     "JSON Serialization of event type %s failed, skipping: %s", eventType, e.toString()
@@ -935,6 +1980,66 @@ public class RakamClient {
         return result;
     }
 
+    /**
+     * Internal method to add an increment to its counter. <b>Note:</b> always call this on
+     * logThread
+     */
+    private void addIncrement(EventQueue.CounterIncrement increment) {
+        if (optOut) {
+            return;
+        }
+        // increments keep the session alive like any other event
+        updateSession(increment.eventType, increment.timestamp, increment.outOfSession);
+        int size = counters.add(increment.eventType, increment.properties,
+                increment.outOfSession ? -1 : sessionId, increment.superProperties,
+                increment.delta, increment.timestamp);
+        if (size > Constants.MAX_COUNTERS) {
+            flushCounters();
+        }
+    }
+
+    /**
+     * Internal method to write every in-memory counter out as one event each.
+     * <b>Note:</b> always call this on logThread
+     */
+    void flushCounters() {
+        // drain first, saving an event can trigger an upload that flushes again
+        List<CounterAggregator.Counter> drained = counters.drain();
+        if (optOut) {
+            return;
+        }
+        for (CounterAggregator.Counter counter : drained) {
+            try {
+                writeEvent(counter.eventType, counter.toEventProperties(), null,
+                        counter.lastTimestamp, counter.sessionId, EventPolicy.NOT_SAMPLED,
+                        counter.superProperties);
+            } catch (JSONException e) {
+                logger.e(TAG, e.toString());
+            }
+        }
+    }
+
+    private DeviceContext getDeviceContext() {
+        DeviceContext context = deviceContext;
+        if (context == null) {
+            refreshDeviceContext();
+            context = deviceContext;
+        }
+        return context;
+    }
+
+    /**
+     * Internal method to rebuild the device context attached to every event. Call this whenever
+     * the user id, device id, tracking options or location listening change, after flushing the
+     * counters that were taken under the old context.
+     */
+    void refreshDeviceContext() {
+        if (deviceInfo == null) {
+            return;
+        }
+        deviceContext = DeviceContext.build(deviceInfo, trackingOptions, platform, userId, deviceId);
+    }
+
     /**
      * Save event long. Internal method to save an event to the database.
      *
@@ -943,7 +2048,17 @@ public class RakamClient {
      * @return the event ID if succeeded, else -1
      */
     protected long saveEvent(String eventType, JSONObject event) {
-        String eventString = event.toString();
+        return saveEvent(eventType, event.toString());
+    }
+
+    /**
+     * Save event long. Internal method to save an already serialized event to the database.
+     *
+     * @param eventType   the event type, null for an event replayed from a batch
+     * @param eventString the serialized event
+     * @return the event ID if succeeded, else -1
+     */
+    protected long saveEvent(String eventType, String eventString) {
         if (Utils.isEmptyString(eventString)) {
             logger.e(TAG, String.format(
                     "Detected empty event string for event type %s, skipping", eventType
@@ -951,44 +2066,172 @@ public class RakamClient {
             return -1;
         }
 
-        if (eventType.equals(Constants.IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(eventString);
-            setLastIdentifyId(lastIdentifyId);
+        if (groupSaves != null) {
+            groupSaves.add(new String[]{eventType, eventString});
+        }
+        // the new id and any unsaved metadata are written in the same transaction as the event
+        if (Constants.IDENTIFY_EVENT.equals(eventType)) {
+            lastIdentifyId = eventStore.addIdentify(eventString, LAST_IDENTIFY_ID_KEY,
+                    unsavedMetadata);
+            onEventSaved(LAST_IDENTIFY_ID_KEY, lastIdentifyId);
         } else {
-            lastEventId = dbHelper.addEvent(eventString);
-            setLastEventId(lastEventId);
+            lastEventId = eventStore.addEvent(eventString, LAST_EVENT_ID_KEY, unsavedMetadata);
+            onEventSaved(LAST_EVENT_ID_KEY, lastEventId);
         }
 
+        // the counts are kept in memory, so checking them on every save is free. Eviction
+        // removes a whole batch, so it only runs again after that many more saves.
         int numEventsToRemove = Math.min(
                 Math.max(1, eventMaxCount/10),
                 Constants.EVENT_REMOVE_BATCH_SIZE
         );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
+        if (eventStore.getEventCount() > eventMaxCount) {
+            eventStore.removeOldestEvents(numEventsToRemove);
         }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
+        if (eventStore.getIdentifyCount() > eventMaxCount) {
+            eventStore.removeOldestIdentifys(numEventsToRemove);
         }
+        removeEventsOverMaxBytes();
 
-        long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
+        long totalEventCount = eventStore.getTotalEventCount(); // counts may have changed, refetch
         if ((totalEventCount % eventUploadThreshold) == 0 &&
                 totalEventCount >= eventUploadThreshold) {
-            updateServer();
+            updateServerAfterSave();
         } else {
             updateServerLater(eventUploadPeriodMillis);
         }
 
-        return (eventType.equals(Constants.IDENTIFY_EVENT)
+        return (Constants.IDENTIFY_EVENT.equals(eventType)
         ) ? lastIdentifyId : lastEventId;
     }
 
-    // fetches key from dbHelper longValueStore
+    /**
+     * Internal method to upload once a save reaches the upload threshold. Inside a group
+     * commit the upload waits for the commit, the rows may still be rolled back.
+     */
+    private void updateServerAfterSave() {
+        if (groupSaves != null) {
+            updateServerAfterGroup = true;
+        } else {
+            updateServer();
+        }
+    }
+
+    /**
+     * Drop the earliest events and identifys once they take more than eventMaxBytes. Like the
+     * count limit it frees a little more than needed, so it does not run on every save.
+     */
+    private void removeEventsOverMaxBytes() {
+        if (eventMaxBytes <= 0) {
+            return;
+        }
+        long logBytes = eventStore.getLogBytes();
+        if (logBytes > eventMaxBytes) {
+            eventStore.removeOldestBytes(logBytes - eventMaxBytes
+                    + Math.min(eventMaxBytes / 10, Constants.EVENT_REMOVE_BATCH_BYTES));
+        }
+    }
+
+    /**
+     * Internal method to save serialized events in one transaction. Eviction and the upload
+     * threshold are checked once for the whole batch.
+     *
+     * @param eventStrings the serialized events
+     * @return the ID of the last event if succeeded, else -1
+     */
+    private long saveEvents(List<String> eventStrings) {
+        if (eventStrings.isEmpty()) {
+            return -1;
+        }
+        if (groupSaves != null) {
+            // saved again one at a time if the group rolls back
+            for (String eventString : eventStrings) {
+                groupSaves.add(new String[]{null, eventString});
+            }
+        }
+        lastEventId = eventStore.addEvents(eventStrings, LAST_EVENT_ID_KEY, unsavedMetadata);
+        onEventSaved(LAST_EVENT_ID_KEY, lastEventId);
+
+        long eventCount = eventStore.getEventCount();
+        if (eventCount > eventMaxCount) {
+            // a large batch can overshoot by more than the usual removal size
+            int numEventsToRemove = (int) Math.max(
+                    Math.min(Math.max(1, eventMaxCount/10), Constants.EVENT_REMOVE_BATCH_SIZE),
+                    eventCount - eventMaxCount
+            );
+            eventStore.removeOldestEvents(numEventsToRemove);
+        }
+        removeEventsOverMaxBytes();
+
+        long totalEventCount = eventStore.getTotalEventCount(); // counts may have changed, refetch
+        long saved = lastEventId == -1 ? 0 : eventStrings.size();
+        // the batch may have stepped over a multiple of the threshold instead of landing on it
+        if (totalEventCount >= eventUploadThreshold &&
+                totalEventCount / eventUploadThreshold
+                        > (totalEventCount - saved) / eventUploadThreshold) {
+            updateServerAfterSave();
+        } else {
+            updateServerLater(eventUploadPeriodMillis);
+        }
+        return lastEventId;
+    }
+
+    // fetches key from eventStore longValueStore
     // if key does not exist, return defaultValue instead
     private long getLongvalue(String key, long defaultValue) {
-        Long value = dbHelper.getLongValue(key);
+        Long value = eventStore.getLongValue(key);
         return value == null ? defaultValue : value;
     }
 
+    private void onEventSaved(String idKey, long id) {
+        if (id == -1) {
+            // nothing was written, record the failed id like before
+            markMetadataUnsaved(idKey, id);
+        } else {
+            unsavedMetadata.clear();
+        }
+    }
+
+    /**
+     * Internal method to remember a metadata value that still has to be written to the
+     * database, and make sure a checkpoint is scheduled in case no event is saved first.
+     */
+    private void markMetadataUnsaved(String key, long value) {
+        unsavedMetadata.put(key, value);
+        if (!metadataCheckpointScheduled && logThread != null) {
+            metadataCheckpointScheduled = true;
+            logThread.postDelayed(checkpointMetadataRunnable,
+                    Constants.METADATA_CHECKPOINT_PERIOD_MILLIS);
+        }
+    }
+
+    /**
+     * Internal method to recover from a group of writes the store rolled back. The event ids
+     * handed out inside the group were never committed, so they are read back from the store,
+     * and the session values are written again with the next event or checkpoint.
+     * <b>Note:</b> always call this on logThread
+     */
+    private void onTransactionRolledBack() {
+        logger.w(TAG, "Group of writes rolled back, reloading the last event ids");
+        lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
+        lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
+        markMetadataUnsaved(PREVIOUS_SESSION_ID_KEY, previousSessionId);
+        markMetadataUnsaved(LAST_EVENT_TIME_KEY, lastEventTime);
+        markMetadataUnsaved(OPT_OUT_KEY, optOut ? 1L : 0L);
+    }
+
+    /**
+     * Internal method to write the unsaved metadata to the database in one transaction.
+     * <b>Note:</b> always call this on logThread
+     */
+    void checkpointMetadata() {
+        if (unsavedMetadata.isEmpty() || eventStore == null) {
+            return;
+        }
+        eventStore.insertOrReplaceKeyLongValues(unsavedMetadata);
+        unsavedMetadata.clear();
+    }
+
     /**
      * Internal method to set the last event time.
      *
@@ -996,7 +2239,7 @@ public class RakamClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        markMetadataUnsaved(LAST_EVENT_TIME_KEY, timestamp);
     }
 
     /**
@@ -1006,7 +2249,7 @@ public class RakamClient {
      */
     void setLastEventId(long eventId) {
         lastEventId = eventId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
+        markMetadataUnsaved(LAST_EVENT_ID_KEY, eventId);
     }
 
     /**
@@ -1016,7 +2259,7 @@ public class RakamClient {
      */
     void setLastIdentifyId(long identifyId) {
         lastIdentifyId = identifyId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
+        markMetadataUnsaved(LAST_IDENTIFY_ID_KEY, identifyId);
     }
 
     /**
@@ -1035,7 +2278,7 @@ public class RakamClient {
      */
     void setPreviousSessionId(long timestamp) {
         previousSessionId = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, timestamp);
+        markMetadataUnsaved(PREVIOUS_SESSION_ID_KEY, timestamp);
     }
 
     /**
@@ -1075,6 +2318,8 @@ public class RakamClient {
 
     private void startNewSession(long timestamp) {
         // end previous session
+        flushRepeatedEvents();
+        flushCounters();
         if (trackingSessionEvents) {
             sendSessionEvent(END_SESSION_EVENT);
         }
@@ -1141,16 +2386,29 @@ public class RakamClient {
                 }
                 refreshSessionTime(timestamp);
                 inForeground = false;
+                flushRepeatedEvents();
+                flushCounters();
                 if (flushEventsOnClose) {
                     updateServer();
                 }
 
-                // re-persist metadata into database for good measure
-                dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
-                dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
-                dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
-                dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, sessionId);
-                dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, lastEventTime);
+                // re-persist metadata into database for good measure, in one commit. The
+                // store skips the values that did not change.
+                boolean committed = eventStore.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        eventStore.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
+                        eventStore.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                        unsavedMetadata.put(OPT_OUT_KEY, optOut ? 1L : 0L);
+                        unsavedMetadata.put(PREVIOUS_SESSION_ID_KEY, sessionId);
+                        unsavedMetadata.put(LAST_EVENT_TIME_KEY, lastEventTime);
+                        // the app may be killed in the background, do not wait for the timer
+                        checkpointMetadata();
+                    }
+                });
+                if (!committed) {
+                    onTransactionRolledBack();
+                }
             }
         });
     }
@@ -1221,18 +2479,18 @@ public class RakamClient {
             return;
         }
 
-        // sanitize and truncate properties before trying to convert to identify
-        JSONObject sanitized = truncate(userProperties);
-        if (sanitized.length() == 0) {
+        // values are truncated when the identify is serialized, only the key count is checked here
+        if (userProperties.length() > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
             return;
         }
 
         Identify identify = new Identify();
-        Iterator<?> keys = sanitized.keys();
+        Iterator<?> keys = userProperties.keys();
         while (keys.hasNext()) {
             String key = (String) keys.next();
             try {
-                identify.setUserProperty(key, sanitized.get(key));
+                identify.setUserProperty(key, userProperties.get(key));
             } catch (JSONException e) {
                 logger.e(TAG, e.toString());
                 Diagnostics.getLogger().logError(
@@ -1263,8 +2521,8 @@ public class RakamClient {
      * Super Properties</a>
      */
     public void clearSuperProperties() {
-        dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
         superProperties = null;
+        saveSuperProperties();
     }
 
 
@@ -1304,7 +2562,10 @@ public class RakamClient {
 
     /**
      * Truncate values in a JSON object. Any string values longer than 1024 characters will be
-     * truncated to 1024 characters.
+     * truncated to 1024 characters. The object passed in is never modified: if nothing needs
+     * truncating it is returned as is, otherwise a copy with the truncated values is returned.
+     * <b>Note:</b> events and identifies are truncated while they are serialized, there is no
+     * need to call this before logging them.
      *
      * @param object the object
      * @return the truncated JSON object
@@ -1319,31 +2580,34 @@ public class RakamClient {
             return new JSONObject();
         }
 
+        JSONObject truncated = null;
         Iterator<?> keys = object.keys();
         while (keys.hasNext()) {
             String key = (String) keys.next();
+            Object value = object.opt(key);
+            Object truncatedValue = truncateValue(value);
+            if (truncatedValue == value) {
+                continue;
+            }
 
             try {
-                Object value = object.get(key);
-                // do not truncate revenue receipt and receipt sig fields
-                if (value.getClass().equals(String.class)) {
-                    object.put(key, truncate((String) value));
-                } else if (value.getClass().equals(JSONObject.class)) {
-                    object.put(key, truncate((JSONObject) value));
-                } else if (value.getClass().equals(JSONArray.class)) {
-                    object.put(key, truncate((JSONArray) value));
+                if (truncated == null) {
+                    // copy on the first change, cloning keeps the key order
+                    truncated = Utils.cloneJSONObject(object);
                 }
+                truncated.put(key, truncatedValue);
             } catch (JSONException e) {
                 logger.e(TAG, e.toString());
             }
         }
 
-        return object;
+        return truncated == null ? object : truncated;
     }
 
     /**
      * Truncate values in a JSON array. Any string values longer than 1024 characters will be
-     * truncated to 1024 characters.
+     * truncated to 1024 characters. Like {@link #truncate(JSONObject)} the array passed in is
+     * never modified.
      *
      * @param array the array
      * @return the truncated JSON array
@@ -1353,18 +2617,43 @@ public class RakamClient {
         if (array == null) {
             return new JSONArray();
         }
-
-        for (int i = 0; i < array.length(); i++) {
-            Object value = array.get(i);
-            if (value.getClass().equals(String.class)) {
-                array.put(i, truncate((String) value));
-            } else if (value.getClass().equals(JSONObject.class)) {
-                array.put(i, truncate((JSONObject) value));
-            } else if (value.getClass().equals(JSONArray.class)) {
-                array.put(i, truncate((JSONArray) value));
+        return truncateArray(array);
+    }
+
+    private JSONArray truncateArray(JSONArray array) {
+        JSONArray truncated = null;
+        for (int i = 0, length = array.length(); i < length; i++) {
+            Object value = array.opt(i);
+            Object truncatedValue = truncateValue(value);
+            if (truncated == null && truncatedValue != value) {
+                truncated = new JSONArray();
+                for (int j = 0; j < i; j++) {
+                    truncated.put(array.opt(j));
+                }
+            }
+            if (truncated != null) {
+                truncated.put(truncatedValue);
             }
         }
-        return array;
+        return truncated == null ? array : truncated;
+    }
+
+    /**
+     * Returns the value itself when it does not need truncating, so callers can tell whether
+     * anything changed by comparing references.
+     */
+    private Object truncateValue(Object value) {
+        // do not truncate revenue receipt and receipt sig fields
+        if (value == null) {
+            return null;
+        } else if (value.getClass().equals(String.class)) {
+            return truncate((String) value);
+        } else if (value.getClass().equals(JSONObject.class)) {
+            return truncate((JSONObject) value);
+        } else if (value.getClass().equals(JSONArray.class)) {
+            return truncateArray((JSONArray) value);
+        }
+        return value;
     }
 
     /**
@@ -1416,6 +2705,9 @@ public class RakamClient {
                 if (Utils.isEmptyString(client.apiKey)) {  // in case initialization failed
                     return;
                 }
+                // held duplicates and counters are saved under the user they came in with
+                flushRepeatedEvents();
+                flushCounters();
 
                 // end previous session
                 if (startNewSession && trackingSessionEvents) {
@@ -1423,7 +2715,8 @@ public class RakamClient {
                 }
 
                 client.userId = userId;
-                dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                eventStore.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                refreshDeviceContext();
 
                 // start new session
                 if (startNewSession) {
@@ -1471,8 +2764,11 @@ public class RakamClient {
                 if (Utils.isEmptyString(client.apiKey)) {  // in case initialization failed
                     return;
                 }
+                flushRepeatedEvents();
+                flushCounters();
                 client.deviceId = deviceId;
                 saveDeviceId(deviceId);
+                refreshDeviceContext();
             }
         });
         return this;
@@ -1560,7 +2856,10 @@ public class RakamClient {
 
         // if returning out of this block, always be sure to set uploadingCurrently to false!!
         if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
+            // held events and counters go out with the upload instead of waiting
+            flushRepeatedEvents();
+            flushCounters();
+            long totalEventCount = eventStore.getTotalEventCount();
             long batchSize = Math.min(
                     limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
                     totalEventCount
@@ -1572,21 +2871,18 @@ public class RakamClient {
             }
 
             try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
+                // events and identifys share one id sequence, so the batch is already in order
+                List<JSONObject> events = eventStore.getLog(
+                        Math.max(lastEventId, lastIdentifyId), batchSize);
+                if (events.isEmpty()) {
                     uploadingCurrently.set(false);
                     return;
                 }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
+                final long maxId = events.get(events.size() - 1).getLong("event_id");
 
                 final String body;
                 try {
-                    body = new JSONObject().put("api", getApi()).put("events", merged.second).toString();
+                    body = new JSONObject().put("api", getApi()).put("events", new JSONArray(events)).toString();
                 } catch (JSONException e) {
                     uploadingCurrently.set(false);
                     logger.e(TAG, e.toString());
@@ -1596,7 +2892,7 @@ public class RakamClient {
                 httpThread.post(new Runnable() {
                     @Override
                     public void run() {
-                        makeEventUploadPostRequest(httpClient, body, maxEventId, maxIdentifyId);
+                        makeEventUploadPostRequest(httpClient, body, maxId);
                     }
                 });
             } catch (JSONException e) {
@@ -1616,67 +2912,6 @@ public class RakamClient {
         }
     }
 
-    /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
-     *
-     * @param events    the events
-     * @param identifys the identifys
-     * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
-     */
-    protected Pair<Pair<Long, Long>, JSONArray> mergeEventsAndIdentifys(List<JSONObject> events,
-                                                                        List<JSONObject> identifys, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
-        long maxEventId = -1;
-        long maxIdentifyId = -1;
-
-        while (merged.length() < numEvents) {
-            boolean noEvents = events.isEmpty();
-            boolean noIdentifys = identifys.isEmpty();
-
-            // case 0: no events or identifys, nothing to grab
-            // this case should never happen, as it means there are less identifys and events
-            // than expected
-            if (noEvents && noIdentifys) {
-                logger.w(TAG, String.format(
-                        "mergeEventsAndIdentifys: number of events and identifys " +
-                                "less than expected by %d", numEvents - merged.length())
-                );
-                break;
-
-                // case 1: no identifys, grab from events
-            } else if (noIdentifys) {
-                JSONObject event = events.remove(0);
-                maxEventId = event.getLong("event_id");
-                merged.put(event);
-
-                // case 2: no events, grab from identifys
-            } else if (noEvents) {
-                JSONObject identify = identifys.remove(0);
-                maxIdentifyId = identify.getLong("event_id");
-                merged.put(identify);
-
-                // case 3: need to compare sequence numbers
-            } else {
-                // events logged before v2.1.0 won't have a sequence number, put those first
-                if (!events.get(0).has("event_id") ||
-                        events.get(0).getLong("event_id") <
-                                identifys.get(0).getLong("event_id")) {
-                    JSONObject event = events.remove(0);
-                    maxEventId = event.getLong("event_id");
-                    merged.put(event);
-                } else {
-                    JSONObject identify = identifys.remove(0);
-                    maxIdentifyId = identify.getLong("event_id");
-                    merged.put(identify);
-                }
-            }
-        }
-
-        return new Pair<Pair<Long, Long>, JSONArray>(new Pair<Long, Long>(maxEventId, maxIdentifyId), merged);
-    }
-
     private JSONObject getApi()
             throws JSONException {
         return new JSONObject()
@@ -1692,10 +2927,9 @@ public class RakamClient {
      *
      * @param client        the client
      * @param body        request body
-     * @param maxEventId    the max event id
-     * @param maxIdentifyId the max identify id
+     * @param maxId       the id of the last event or identify in the request
      */
-    protected void makeEventUploadPostRequest(OkHttpClient client, String body, final long maxEventId, final long maxIdentifyId) {
+    protected void makeEventUploadPostRequest(OkHttpClient client, String body, final long maxId) {
         Request request;
         try {
             request = new Request.Builder()
@@ -1719,10 +2953,9 @@ public class RakamClient {
                 logThread.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
+                        eventStore.removeLog(maxId);
                         uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
+                        if (eventStore.getTotalEventCount() > eventUploadThreshold) {
                             logThread.post(new Runnable() {
                                 @Override
                                 public void run() {
@@ -1747,14 +2980,13 @@ public class RakamClient {
 
                 // If blocked by one massive event, drop it
                 if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
+                    eventStore.removeLogEntry(maxId);
                     // maybe we want to reset backoffUploadBatchSize after dropping massive event
                 }
 
                 // Server complained about length of request, backoff and try again
                 backoffUpload = true;
-                int numEvents = Math.min((int) dbHelper.getEventCount(), backoffUploadBatchSize);
+                int numEvents = Math.min((int) eventStore.getEventCount(), backoffUploadBatchSize);
                 backoffUploadBatchSize = (int) Math.ceil(numEvents / 2.0);
                 logger.w(TAG, String.format("Request too large or invalid: %s, will decrease size and attempt to reupload", response.code()));
                 logThread.post(new Runnable() {
@@ -1829,7 +3061,7 @@ public class RakamClient {
         Set<String> invalidIds = getInvalidDeviceIds();
 
         // see if device id already stored in db
-        String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
+        String deviceId = eventStore.getValue(DEVICE_ID_KEY);
         String sharedPrefDeviceId = Utils.getStringFromSharedPreferences(context, instanceName, DEVICE_ID_KEY);
         if (!(Utils.isEmptyString(deviceId) || invalidIds.contains(deviceId))) {
             // compare against device id stored in backup storage and update if necessary
@@ -1865,15 +3097,34 @@ public class RakamClient {
     }
 
     private void saveDeviceId(String deviceId) {
-        dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
+        eventStore.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
         Utils.writeStringToSharedPreferences(context, instanceName, DEVICE_ID_KEY, deviceId);
     }
 
-    private void runOnLogThread(Runnable r) {
-        if (Thread.currentThread() != logThread) {
-            logThread.post(r);
-        } else {
+    private void runOnLogThread(final Runnable r) {
+        if (Thread.currentThread() == logThread) {
             r.run();
+            return;
+        }
+
+        // events logged before this call must be processed before r, later ones after it
+        synchronized (logThreadBarriers) {
+            EventSpillFile spill = spillFile;
+            final long[] barrier = {
+                    pendingEvents.producedCount(), spill == null ? 0 : spill.appendedCount()
+            };
+            logThreadBarriers.add(barrier);
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    drainPendingEvents(barrier[0], barrier[1]);
+                    synchronized (logThreadBarriers) {
+                        logThreadBarriers.poll();
+                    }
+                    r.run();
+                    drainPendingEvents();
+                }
+            });
         }
     }
 
@@ -2067,12 +3318,26 @@ public class RakamClient {
      * @return the boolean
      */
     static boolean upgradeSharedPrefsToDB(Context context, String sourcePkgName) {
+        return upgradeSharedPrefsToDB(context, sourcePkgName,
+                DatabaseHelper.getDatabaseHelper(context));
+    }
+
+    /**
+     * Upgrade shared prefs into the given store, which is the database unless another
+     * {@link StorageEngine} was chosen.
+     *
+     * @param context       the context
+     * @param sourcePkgName the source pkg name
+     * @param dbHelper      the store of the default instance
+     * @return the boolean
+     */
+    static boolean upgradeSharedPrefsToDB(Context context, String sourcePkgName,
+                                          EventStore dbHelper) {
         if (sourcePkgName == null) {
             sourcePkgName = Constants.PACKAGE_NAME;
         }
 
         // check if upgrade needed
-        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
         String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
         Long previousSessionId = dbHelper.getLongValue(PREVIOUS_SESSION_ID_KEY);
         Long lastEventTime = dbHelper.getLongValue(LAST_EVENT_TIME_KEY);
@@ -2116,7 +3381,7 @@ public class RakamClient {
         return true;
     }
 
-    private static void migrateLongValue(SharedPreferences prefs, String prefKey, long defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateLongValue(SharedPreferences prefs, String prefKey, long defValue, EventStore dbHelper, String dbKey) {
         Long value = dbHelper.getLongValue(dbKey);
         if (value != null) { // if value already exists don't need to migrate
             return;
@@ -2126,7 +3391,7 @@ public class RakamClient {
         prefs.edit().remove(prefKey).apply();
     }
 
-    private static void migrateStringValue(SharedPreferences prefs, String prefKey, String defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateStringValue(SharedPreferences prefs, String prefKey, String defValue, EventStore dbHelper, String dbKey) {
         String value = dbHelper.getValue(dbKey);
         if (!Utils.isEmptyString(value)) {
             return;
@@ -2138,7 +3403,7 @@ public class RakamClient {
         }
     }
 
-    private static void migrateBooleanValue(SharedPreferences prefs, String prefKey, boolean defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateBooleanValue(SharedPreferences prefs, String prefKey, boolean defValue, EventStore dbHelper, String dbKey) {
         Long value = dbHelper.getLongValue(dbKey);
         if (value != null) {
             return;
@@ -2148,6 +3413,57 @@ public class RakamClient {
         prefs.edit().remove(prefKey).apply();
     }
 
+    /**
+     * Move the metadata and unsent events of an earlier run from the instance's database into
+     * another store, then delete the database. Switching an existing install to another
+     * {@link StorageEngine} keeps its device id, user id, opt-out, session and the events not
+     * uploaded yet. Does nothing if there is no database.
+     *
+     * @param context      the context
+     * @param instanceName the instance name
+     * @param store        the store the instance uses now
+     * @return true if a database was moved
+     */
+    static boolean moveDatabaseToStore(Context context, String instanceName, EventStore store) {
+        String databaseName = DatabaseHelper.getDatabaseName(instanceName);
+        if (!context.getDatabasePath(databaseName).exists()) {
+            return false;
+        }
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, instanceName);
+        try {
+            for (String key : new String[]{DEVICE_ID_KEY, USER_ID_KEY, SUPER_PROPERTIES_KEY}) {
+                String value = dbHelper.getValue(key);
+                if (value != null && store.getValue(key) == null) {
+                    store.insertOrReplaceKeyValue(key, value);
+                }
+            }
+            for (String key : new String[]{OPT_OUT_KEY, PREVIOUS_SESSION_ID_KEY,
+                    LAST_EVENT_TIME_KEY}) {
+                Long value = dbHelper.getLongValue(key);
+                if (value != null && store.getLongValue(key) == null) {
+                    store.insertOrReplaceKeyLongValue(key, value);
+                }
+            }
+            // the store hands out its own ids, the last ones are stored for the next upload
+            for (JSONObject event : dbHelper.getLog(-1, -1)) {
+                event.remove("event_id");
+                if (Constants.IDENTIFY_EVENT.equals(event.optString("collection"))) {
+                    store.addIdentify(event.toString(), LAST_IDENTIFY_ID_KEY, null);
+                } else {
+                    store.addEvent(event.toString(), LAST_EVENT_ID_KEY, null);
+                }
+            }
+        } catch (JSONException e) {
+            // keep the database, the next initialize tries again
+            logger.e(TAG, "Failed to move the database to " + store.getClass().getSimpleName(), e);
+            return false;
+        }
+        dbHelper.close();
+        DatabaseHelper.instances.remove(Utils.normalizeInstanceName(instanceName));
+        context.deleteDatabase(databaseName);
+        return true;
+    }
+
     /**
      * Internal method to fetch the current time millis. Used for testing.
      *
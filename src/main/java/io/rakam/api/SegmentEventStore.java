@@ -0,0 +1,821 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * {@link EventStore} for {@link StorageEngine#MAPPED_SEGMENTS}. Events and identifys are
+ * appended to fixed-size segment files mapped in memory, so an append is a copy into the page
+ * cache. System calls are only needed when a segment fills up and the next one is mapped.
+ * Each record is
+ * <pre>
+ * length (4) | crc32 (4) | deleted (1) | type (1) | id (8) | payload (length)
+ * </pre>
+ * where the payload is the event compressed by {@link EventCodec} and the checksum covers the
+ * type, id and payload. A zero length marks the end of a segment.
+ * <p>
+ * Ids up to the read cursor have been uploaded. The cursor is kept in its own file and a
+ * segment is deleted as a whole once every record in it is uploaded or removed. Records
+ * removed out of order are only flagged as deleted.
+ * <p>
+ * Appended records survive the process as soon as the append returns, a segment is forced to
+ * disk when it fills up and on {@link #close}. After a power loss the tail of the last segment
+ * may be torn, opening the store checks every record and drops everything from the first one
+ * that does not match its checksum.
+ * <p>
+ * The key-value metadata lives in memory and is rewritten to a small file when it is set. The
+ * values handed in with an append are written behind, with the next metadata write or on
+ * {@link #close}, so the last of them can be lost with the process. The ids stored under
+ * {@code idKey} are recovered from the segments instead.
+ */
+class SegmentEventStore implements EventStore {
+
+    private static final String TAG = SegmentEventStore.class.getName();
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String CURSOR_FILE = "cursor";
+    static final String METADATA_FILE = "metadata";
+
+    private static final int CRC_OFFSET = 4;
+    private static final int DELETED_OFFSET = 8;
+    private static final int TYPE_OFFSET = 9;
+    private static final int ID_OFFSET = 10;
+    static final int HEADER_SIZE = 18;
+
+    private static final byte EVENT_TYPE = 0;
+    private static final byte IDENTIFY_TYPE = 1;
+    private static final byte[] ZEROS = new byte[4096];
+
+    private static class Segment {
+        final File file;
+        final long firstId;
+        final MappedByteBuffer buffer;
+        int end = 0;
+        long lastId;
+        int live = 0;
+
+        Segment(File file, long firstId, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstId = firstId;
+            this.buffer = buffer;
+            this.lastId = firstId - 1;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final EventCodec codec = new EventCodec();
+    private final CRC32 crc = new CRC32();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Map<String, Long> longValues = new HashMap<String, Long>();
+    // keys that store the id of the last event or identify, true for identifys
+    private final Map<String, Boolean> idKeys = new HashMap<String, Boolean>();
+    private boolean opened = false;
+    private long cursor = 0;
+    private long nextId = 1;
+    private int transactionDepth = 0;
+    private boolean metadataChanged = false;
+    // metadata from appends that is not in the metadata file yet
+    private boolean appendMetadataUnsaved = false;
+    private volatile long eventCount = 0;
+    private volatile long identifyCount = 0;
+    private volatile long logBytes = 0;
+
+    SegmentEventStore(File directory) {
+        this(directory, Constants.SEGMENT_SIZE_BYTES);
+    }
+
+    SegmentEventStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public void setResetListener(ResetListener resetListener) {
+        // corrupt records are dropped on their own, the store is never reset as a whole
+    }
+
+    /**
+     * Map the segments and rebuild the counts, the cursor and the metadata, dropping any torn
+     * records. Does nothing if the store is already open.
+     *
+     * @return false if the store could not be opened
+     */
+    private boolean open() {
+        if (opened) {
+            return true;
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create " + directory);
+            }
+            cursor = readCursor();
+            readMetadata();
+            eventCount = 0;
+            identifyCount = 0;
+            logBytes = 0;
+
+            TreeMap<Long, File> files = new TreeMap<Long, File>();
+            File[] children = directory.listFiles();
+            for (File file : children == null ? new File[0] : children) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    files.put(Long.parseLong(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.w(TAG, "Ignoring unknown file " + file);
+                }
+            }
+
+            long[] lastIds = {0, 0};
+            for (Map.Entry<Long, File> entry : files.entrySet()) {
+                Segment segment = mapSegment(entry.getValue(), entry.getKey());
+                recover(segment, lastIds);
+                segments.put(segment.firstId, segment);
+            }
+            nextId = Math.max(cursor, Math.max(lastIds[0], lastIds[1])) + 1;
+            for (Map.Entry<String, Boolean> entry : idKeys.entrySet()) {
+                long lastId = lastIds[entry.getValue() ? 1 : 0];
+                Long stored = longValues.get(entry.getKey());
+                if (lastId > 0 && (stored == null || stored < lastId)) {
+                    longValues.put(entry.getKey(), lastId);
+                }
+            }
+            opened = true;
+            dropConsumedSegments();
+            return true;
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to open event segments in " + directory, e);
+            Diagnostics.getLogger().logError("Segments: Failed to open", e);
+            segments.clear();
+            return false;
+        }
+    }
+
+    private Segment mapSegment(File file, long firstId) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(file, firstId, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Walk the records of a segment read from disk, counting the live ones. The first record
+     * that is cut short, out of order or fails its checksum is where a write was torn, it is
+     * zeroed along with everything after it.
+     */
+    private void recover(Segment segment, long[] lastIds) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            long id = length > 0 && position + HEADER_SIZE + length <= buffer.capacity()
+                    ? buffer.getLong(position + ID_OFFSET) : -1;
+            if (id <= segment.lastId || buffer.getInt(position + CRC_OFFSET)
+                    != checksum(buffer, position, length)) {
+                logger.w(TAG, String.format("Dropping torn records at %s:%d",
+                        segment.file.getName(), position));
+                Diagnostics.getLogger().logError(String.format(
+                        "Segments: Dropped torn records after event %d", segment.lastId));
+                zero(buffer, position, buffer.capacity());
+                break;
+            }
+            boolean identify = buffer.get(position + TYPE_OFFSET) == IDENTIFY_TYPE;
+            segment.lastId = id;
+            lastIds[identify ? 1 : 0] = id;
+            if (isLive(segment, position)) {
+                segment.live++;
+                counted(identify, 1);
+                logBytes += length;
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.end = position;
+    }
+
+    private int checksum(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[HEADER_SIZE - TYPE_OFFSET + length];
+        at(buffer, position + TYPE_OFFSET).get(bytes);
+        crc.reset();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void zero(ByteBuffer buffer, int from, int to) {
+        ByteBuffer target = at(buffer, from);
+        while (from < to) {
+            int length = Math.min(ZEROS.length, to - from);
+            target.put(ZEROS, 0, length);
+            from += length;
+        }
+    }
+
+    /**
+     * A view of the buffer starting at the position. Newer JDKs add covariant overrides of
+     * duplicate and position to the buffer subclasses, so both are called through the base
+     * types to link against methods that older runtimes have.
+     */
+    private static ByteBuffer at(ByteBuffer buffer, int position) {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(position);
+        return view;
+    }
+
+    private boolean isLive(Segment segment, int position) {
+        return segment.buffer.get(position + DELETED_OFFSET) == 0
+                && segment.buffer.getLong(position + ID_OFFSET) > cursor;
+    }
+
+    private static int next(Segment segment, int position) {
+        return position + HEADER_SIZE + segment.buffer.getInt(position);
+    }
+
+    @Override
+    public synchronized long addEvent(String event, String idKey, Map<String, Long> metadata) {
+        return add(false, Collections.singletonList(event), idKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent, String idKey,
+                                         Map<String, Long> metadata) {
+        return add(true, Collections.singletonList(identifyEvent), idKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEvents(List<String> events, String idKey,
+                                       Map<String, Long> metadata) {
+        if (events.isEmpty()) {
+            return -1;
+        }
+        return add(false, events, idKey, metadata);
+    }
+
+    private long add(boolean identify, List<String> events, String idKey,
+                     Map<String, Long> metadata) {
+        if (!open()) {
+            return -1;
+        }
+        List<byte[]> payloads = new ArrayList<byte[]>(events.size());
+        for (String event : events) {
+            byte[] payload = codec.encode(event);
+            if (HEADER_SIZE + payload.length > segmentSize) {
+                logger.e(TAG, String.format("Event of %d bytes does not fit in a segment",
+                        payload.length));
+                return -1;
+            }
+            payloads.add(payload);
+        }
+
+        Segment tail = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        Segment segment = tail;
+        int tailEnd = tail == null ? 0 : tail.end;
+        long tailLastId = tail == null ? 0 : tail.lastId;
+        int tailLive = tail == null ? 0 : tail.live;
+        long firstId = nextId;
+        long bytes = logBytes;
+        List<Segment> created = new ArrayList<Segment>();
+        try {
+            for (byte[] payload : payloads) {
+                if (segment == null || segment.end + HEADER_SIZE + payload.length
+                        > segment.buffer.capacity()) {
+                    if (segment != null) {
+                        segment.buffer.force();
+                    }
+                    File file = new File(directory,
+                            String.format(Locale.US, "%019d", nextId) + SEGMENT_SUFFIX);
+                    segment = mapSegment(file, nextId);
+                    created.add(segment);
+                }
+                write(segment, identify, payload);
+            }
+        } catch (IOException e) {
+            // put everything back the way it was so the batch is not half saved
+            for (Segment newSegment : created) {
+                newSegment.file.delete();
+            }
+            if (tail != null) {
+                zero(tail.buffer, tailEnd, tail.end);
+                tail.end = tailEnd;
+                tail.lastId = tailLastId;
+                tail.live = tailLive;
+            }
+            nextId = firstId;
+            logBytes = bytes;
+            logger.e(TAG, "Failed to create an event segment", e);
+            Diagnostics.getLogger().logError("Segments: Failed to append", e);
+            return -1;
+        }
+        for (Segment newSegment : created) {
+            segments.put(newSegment.firstId, newSegment);
+        }
+        counted(identify, payloads.size());
+        dropConsumedSegments();
+
+        long id = nextId - 1;
+        if (metadata != null && !metadata.isEmpty()) {
+            putLongValues(metadata);
+            appendMetadataUnsaved = true;
+        }
+        if (idKey != null) {
+            longValues.put(idKey, id);
+            // the key itself has to be saved so its id can be recovered
+            if (idKeys.put(idKey, identify) == null) {
+                saveMetadata();
+            }
+        }
+        return id;
+    }
+
+    private void write(Segment segment, boolean identify, byte[] payload) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.end;
+        buffer.put(position + DELETED_OFFSET, (byte) 0);
+        buffer.put(position + TYPE_OFFSET, identify ? IDENTIFY_TYPE : EVENT_TYPE);
+        buffer.putLong(position + ID_OFFSET, nextId);
+        at(buffer, position + HEADER_SIZE).put(payload);
+        buffer.putInt(position + CRC_OFFSET, checksum(buffer, position, payload.length));
+        // the length goes last, until then the record reads as the end of the segment
+        buffer.putInt(position, payload.length);
+
+        segment.end = position + HEADER_SIZE + payload.length;
+        segment.lastId = nextId++;
+        segment.live++;
+        logBytes += payload.length;
+    }
+
+    @Override
+    public synchronized List<JSONObject> getLog(long upToId, long limit) throws JSONException {
+        List<JSONObject> events = new LinkedList<JSONObject>();
+        if (!open()) {
+            return events;
+        }
+        for (Segment segment : segments.values()) {
+            if (upToId >= 0 && segment.firstId > upToId) {
+                break;
+            }
+            for (int position = 0; segment.live > 0 && position < segment.end;
+                 position = next(segment, position)) {
+                long id = segment.buffer.getLong(position + ID_OFFSET);
+                if (upToId >= 0 && id > upToId || limit >= 0 && events.size() >= limit) {
+                    return events;
+                }
+                if (!isLive(segment, position)) {
+                    continue;
+                }
+                byte[] payload = new byte[segment.buffer.getInt(position)];
+                at(segment.buffer, position + HEADER_SIZE).get(payload);
+                String event;
+                try {
+                    event = codec.decode(payload);
+                } catch (DataFormatException e) {
+                    logger.e(TAG, String.format("Skipping corrupt event %d", id), e);
+                    Diagnostics.getLogger().logError("Segments: Failed to decode event", e);
+                    continue;
+                }
+                if (Utils.isEmptyString(event)) {
+                    continue;
+                }
+                JSONObject obj = new JSONObject(event);
+                obj.put("event_id", id);
+                events.add(obj);
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void removeLog(long maxId) {
+        if (!open()) {
+            return;
+        }
+        // never move past the ids handed out, new events would be born uploaded
+        maxId = Math.min(maxId, nextId - 1);
+        if (maxId <= cursor) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            if (segment.firstId > maxId) {
+                break;
+            }
+            for (int position = 0; segment.live > 0 && position < segment.end;
+                 position = next(segment, position)) {
+                if (segment.buffer.getLong(position + ID_OFFSET) > maxId) {
+                    break;
+                }
+                if (isLive(segment, position)) {
+                    segment.live--;
+                    counted(segment.buffer.get(position + TYPE_OFFSET) == IDENTIFY_TYPE, -1);
+                    logBytes -= segment.buffer.getInt(position);
+                }
+            }
+        }
+        cursor = maxId;
+        try {
+            writeCursor();
+        } catch (IOException e) {
+            // the uploaded events come back after a restart, the server drops the duplicates
+            logger.e(TAG, "Failed to save the read cursor", e);
+            Diagnostics.getLogger().logError("Segments: Failed to save cursor", e);
+        }
+        dropConsumedSegments();
+    }
+
+    @Override
+    public synchronized void removeLogEntry(long id) {
+        if (!open() || id <= cursor) {
+            return;
+        }
+        Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+        if (entry == null) {
+            return;
+        }
+        Segment segment = entry.getValue();
+        for (int position = 0; position < segment.end; position = next(segment, position)) {
+            if (segment.buffer.getLong(position + ID_OFFSET) == id) {
+                if (isLive(segment, position)) {
+                    delete(segment, position);
+                    dropConsumedSegments();
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized long removeOldestEvents(long n) {
+        return removeOldest(false, n);
+    }
+
+    @Override
+    public synchronized long removeOldestIdentifys(long n) {
+        return removeOldest(true, n);
+    }
+
+    private long removeOldest(boolean identify, long n) {
+        if (!open()) {
+            return 0;
+        }
+        byte type = identify ? IDENTIFY_TYPE : EVENT_TYPE;
+        long removed = 0;
+        for (Segment segment : segments.values()) {
+            for (int position = 0; removed < n && segment.live > 0 && position < segment.end;
+                 position = next(segment, position)) {
+                if (segment.buffer.get(position + TYPE_OFFSET) == type
+                        && isLive(segment, position)) {
+                    delete(segment, position);
+                    removed++;
+                }
+            }
+        }
+        dropConsumedSegments();
+        return removed;
+    }
+
+    @Override
+    public synchronized long removeOldestBytes(long bytes) {
+        if (!open()) {
+            return 0;
+        }
+        long freed = 0;
+        for (Segment segment : segments.values()) {
+            for (int position = 0; freed < bytes && segment.live > 0 && position < segment.end;
+                 position = next(segment, position)) {
+                if (isLive(segment, position)) {
+                    freed += segment.buffer.getInt(position);
+                    delete(segment, position);
+                }
+            }
+        }
+        dropConsumedSegments();
+        return freed;
+    }
+
+    private void delete(Segment segment, int position) {
+        segment.buffer.put(position + DELETED_OFFSET, (byte) 1);
+        logBytes -= segment.buffer.getInt(position);
+        segment.live--;
+        counted(segment.buffer.get(position + TYPE_OFFSET) == IDENTIFY_TYPE, -1);
+    }
+
+    private void counted(boolean identify, long delta) {
+        if (identify) {
+            identifyCount += delta;
+        } else {
+            eventCount += delta;
+        }
+    }
+
+    /**
+     * Delete every segment with nothing left to upload, except the last one that new events
+     * are appended to.
+     */
+    private void dropConsumedSegments() {
+        long last = segments.isEmpty() ? 0 : segments.lastKey();
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.firstId == last || segment.live > 0) {
+                continue;
+            }
+            if (!segment.file.delete()) {
+                logger.w(TAG, "Failed to delete " + segment.file);
+            }
+            iterator.remove();
+        }
+    }
+
+    private long readCursor() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(directory, CURSOR_FILE)));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCursor() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        new DataOutputStream(bytes).writeLong(cursor);
+        replace(CURSOR_FILE, bytes.toByteArray());
+    }
+
+    private void readMetadata() throws IOException {
+        values.clear();
+        longValues.clear();
+        idKeys.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(directory, METADATA_FILE)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            for (int i = in.readInt(); i > 0; i--) {
+                values.put(in.readUTF(), in.readUTF());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                longValues.put(in.readUTF(), in.readLong());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                idKeys.put(in.readUTF(), in.readBoolean());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rewrite the metadata file, or mark it changed while a transaction is running.
+     */
+    private void saveMetadata() {
+        if (transactionDepth > 0) {
+            metadataChanged = true;
+            return;
+        }
+        metadataChanged = false;
+        appendMetadataUnsaved = false;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(values.size());
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.writeInt(longValues.size());
+            for (Map.Entry<String, Long> entry : longValues.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(idKeys.size());
+            for (Map.Entry<String, Boolean> entry : idKeys.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue());
+            }
+            replace(METADATA_FILE, bytes.toByteArray());
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to save metadata", e);
+            Diagnostics.getLogger().logError("Segments: Failed to save metadata", e);
+        }
+    }
+
+    /**
+     * Write a temporary file, sync it and rename it over {@code name}, so a crash leaves
+     * either the old or the new content.
+     */
+    private void replace(String name, byte[] content) throws IOException {
+        File temp = new File(directory, name + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(content);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(directory, name))) {
+            throw new IOException("Failed to replace " + name);
+        }
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        open();
+        return eventCount;
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        open();
+        return identifyCount;
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        open();
+        return eventCount + identifyCount;
+    }
+
+    @Override
+    public long getCachedEventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public long getCachedIdentifyCount() {
+        return identifyCount;
+    }
+
+    /**
+     * The size of the payloads not uploaded or removed yet, without the record headers.
+     */
+    @Override
+    public synchronized long getLogBytes() {
+        open();
+        return logBytes;
+    }
+
+    @Override
+    public long getCachedLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * The size of the files in the store's directory. Segments are allocated at their full
+     * size when they are created.
+     */
+    @Override
+    public long getFileBytes() {
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        return open() ? values.get(key) : null;
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        return open() ? longValues.get(key) : null;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        if (!open()) {
+            return -1;
+        }
+        if (value == null) {
+            if (values.remove(key) == null) {
+                return 0;
+            }
+        } else if (value.equals(values.put(key, value))) {
+            return 1;
+        }
+        saveMetadata();
+        return 1;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        if (!open()) {
+            return -1;
+        }
+        if (value == null) {
+            if (longValues.remove(key) == null) {
+                return 0;
+            }
+        } else if (value.equals(longValues.put(key, value))) {
+            return 1;
+        }
+        saveMetadata();
+        return 1;
+    }
+
+    @Override
+    public synchronized void insertOrReplaceKeyLongValues(Map<String, Long> values) {
+        if (!open()) {
+            return;
+        }
+        putLongValues(values);
+        saveMetadata();
+    }
+
+    private void putLongValues(Map<String, Long> values) {
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                longValues.remove(entry.getKey());
+            } else {
+                longValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Runs the operations holding the lock and writes the metadata once at the end. Appends
+     * are not rolled back if the runnable throws.
+     */
+    @Override
+    public synchronized boolean runInTransaction(Runnable runnable) {
+        transactionDepth++;
+        try {
+            runnable.run();
+        } finally {
+            transactionDepth--;
+            if (transactionDepth == 0 && metadataChanged) {
+                saveMetadata();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Force the segments to disk and unmap them, the next call opens and checks them again.
+     * Metadata written behind by appends is saved first.
+     */
+    @Override
+    public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+        if (appendMetadataUnsaved) {
+            saveMetadata();
+        }
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        opened = false;
+    }
+}
@@ -0,0 +1,25 @@
+package io.rakam.api;
+
+/**
+ * Where unsent events and the SDK's metadata are kept.
+ *
+ * @see RakamClient#setStorageEngine(StorageEngine)
+ */
+public enum StorageEngine {
+    /**
+     * A SQLite database in the app's data directory, tuned by the {@link StorageProfile}
+     * passed to initialize. This is the default.
+     */
+    SQLITE,
+    /**
+     * Kept in memory only. Unsent events, the device id and the session are lost when the
+     * process ends, for ephemeral use and tests.
+     */
+    MEMORY,
+    /**
+     * Append-only segment files mapped in memory, in the app's files directory. Appending does
+     * no system call, for apps that log events at a very high rate. The newest events can be
+     * lost if the device loses power, the events before them are kept.
+     */
+    MAPPED_SEGMENTS
+}
@@ -0,0 +1,44 @@
+package io.rakam.api;
+
+/**
+ * How the event database trades durability for write speed. Every profile keeps the database
+ * consistent after a crash, they differ in how many of the most recent events may be lost if
+ * the device loses power.
+ *
+ * @see RakamClient#initialize(android.content.Context, java.net.URL, String, String, String, boolean, StorageProfile)
+ */
+public enum StorageProfile {
+    /**
+     * Rollback journal with full synchronous writes, every saved event is synced to disk before
+     * the insert returns. This is the default.
+     */
+    DURABLE(false, "FULL", 0, 0),
+    /**
+     * Write-ahead log with normal synchronous writes. Inserts only append to the log and the
+     * log is synced at checkpoints, so the last events may be lost on power loss but never
+     * corrupt the database.
+     */
+    BALANCED(true, "NORMAL", 0, 0),
+    /**
+     * {@link #BALANCED} plus a larger page cache and memory-mapped reads, for apps that log
+     * many events. Uses more memory.
+     */
+    THROUGHPUT(true, "NORMAL", Constants.THROUGHPUT_CACHE_SIZE_KIB,
+            Constants.THROUGHPUT_MMAP_SIZE_BYTES);
+
+    final boolean writeAheadLogging;
+    // value for PRAGMA synchronous
+    final String synchronous;
+    // page cache size in KiB, 0 keeps the SQLite default
+    final int cacheSizeKib;
+    // memory-mapped I/O size in bytes, 0 keeps it off
+    final long mmapSizeBytes;
+
+    StorageProfile(boolean writeAheadLogging, String synchronous, int cacheSizeKib,
+                   long mmapSizeBytes) {
+        this.writeAheadLogging = writeAheadLogging;
+        this.synchronous = synchronous;
+        this.cacheSizeKib = cacheSizeKib;
+        this.mmapSizeBytes = mmapSizeBytes;
+    }
+}
@@ -0,0 +1,56 @@
+package io.rakam.api;
+
+/**
+ * How much storage the SDK uses on the device, as returned by
+ * {@link RakamClient#getStorageUsage()}.
+ */
+public class StorageUsage {
+
+    private final long eventCount;
+    private final long identifyCount;
+    private final long queueBytes;
+    private final long fileBytes;
+
+    StorageUsage(long eventCount, long identifyCount, long queueBytes, long fileBytes) {
+        this.eventCount = eventCount;
+        this.identifyCount = identifyCount;
+        this.queueBytes = queueBytes;
+        this.fileBytes = fileBytes;
+    }
+
+    /**
+     * @return the number of unsent events
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return the number of unsent identify events
+     */
+    public long getIdentifyCount() {
+        return identifyCount;
+    }
+
+    /**
+     * @return the size of the unsent events and identifys as stored, which is what
+     * {@link RakamClient#setEventMaxBytes(long)} limits
+     */
+    public long getQueueBytes() {
+        return queueBytes;
+    }
+
+    /**
+     * @return the size of the storage engine's files, including space the database has not
+     * given back to the file system yet. 0 for {@link StorageEngine#MEMORY}.
+     */
+    public long getFileBytes() {
+        return fileBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StorageUsage{events=%d, identifys=%d, queueBytes=%d, fileBytes=%d}",
+                eventCount, identifyCount, queueBytes, fileBytes);
+    }
+}
@@ -0,0 +1,116 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the super properties. {@code RakamClient.setSuperProperties} builds a
+ * new snapshot and swaps it in, so logThread never reads an object the app may still be
+ * changing. Every property is serialized once up front, in most events EventWriter copies the
+ * whole snapshot into the event with a single append.
+ */
+class SuperProperties {
+
+    private static final String TAG = SuperProperties.class.getName();
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    final String[] keys;
+    // the values, owned by this snapshot, for properties that replace context properties
+    final Object[] values;
+    // each property serialized as "key":value
+    final String[] fragments;
+    // every fragment joined with commas, the way they appear in an event
+    final String json;
+    // the properties as JSONObject.toString() returns them, persisted in the database
+    final String source;
+    // whether any key starts with an underscore and may collide with a context property
+    final boolean hasReservedKey;
+
+    private final Set<String> keySet;
+
+    private SuperProperties(List<String> keys, List<Object> values, List<String> fragments,
+                            String source) {
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.values = values.toArray(new Object[values.size()]);
+        this.fragments = fragments.toArray(new String[fragments.size()]);
+        this.source = source;
+        this.keySet = new HashSet<String>(keys);
+
+        StringBuilder joined = new StringBuilder();
+        boolean reserved = false;
+        for (int i = 0; i < this.fragments.length; i++) {
+            if (i > 0) {
+                joined.append(',');
+            }
+            joined.append(this.fragments[i]);
+            reserved |= this.keys[i].length() > 0 && this.keys[i].charAt(0) == '_';
+        }
+        this.json = joined.toString();
+        this.hasReservedKey = reserved;
+    }
+
+    /**
+     * Take a snapshot of the given properties.
+     *
+     * @return the snapshot, or null if the properties cannot be serialized
+     */
+    static SuperProperties of(JSONObject properties) {
+        String source = properties.toString();
+        if (source == null) {
+            logger.e(TAG, "Failed to serialize super properties, ignoring");
+            return null;
+        }
+        JSONObject copy;
+        try {
+            copy = new JSONObject(source);
+        } catch (JSONException e) {
+            logger.e(TAG, "Failed to copy super properties: " + e.toString());
+            return null;
+        }
+
+        List<String> keys = new ArrayList<String>(properties.length());
+        List<Object> values = new ArrayList<Object>(properties.length());
+        List<String> fragments = new ArrayList<String>(properties.length());
+        Iterator<String> names = properties.keys();
+        while (names.hasNext()) {
+            String key = names.next();
+            Object value = properties.opt(key);
+            // serialized from the app's own values so events match what they held
+            String fragment = EventWriter.writeFragment(new String[]{key}, new Object[]{value});
+            if (fragment == null) {
+                logger.w(TAG, String.format("Invalid value for super property %s, ignoring", key));
+                continue;
+            }
+            keys.add(key);
+            values.add(copy.opt(key));
+            fragments.add(fragment);
+        }
+        return new SuperProperties(keys, values, fragments, source);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    boolean has(String key) {
+        return keySet.contains(key);
+    }
+
+    /**
+     * A new JSONObject with the same properties, for the app to read.
+     */
+    JSONObject toJSONObject() {
+        try {
+            return new JSONObject(source);
+        } catch (JSONException e) {
+            logger.e(TAG, e.toString());
+            return new JSONObject();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.rakam.api;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default {@link EventIdGenerator}. Ids have the UUID text format, but instead of drawing
+ * 122 random bits from the shared SecureRandom for every event they are built from:
+ * <ul>
+ * <li>the current time in milliseconds (48 bits), so ids sort roughly by creation time,</li>
+ * <li>a per-instance counter, so ids generated in the same millisecond never repeat,</li>
+ * <li>a per-instance random seed drawn once, so two installs do not generate the same ids.</li>
+ * </ul>
+ * The layout follows UUID version 7. Generating an id takes one atomic increment, no locks, and
+ * {@link #appendId} writes it without creating any intermediate String.
+ */
+class TimeOrderedEventIdGenerator implements EventIdGenerator {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final long RANDOM_BITS_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+    private final long seed;
+    private final AtomicLong counter = new AtomicLong(0);
+
+    TimeOrderedEventIdGenerator() {
+        this(new SecureRandom().nextLong());
+    }
+
+    TimeOrderedEventIdGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public String generateId() {
+        StringBuilder builder = new StringBuilder(36);
+        appendId(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Append the next id to the builder.
+     */
+    void appendId(StringBuilder out) {
+        appendId(out, System.currentTimeMillis(), counter.getAndIncrement());
+    }
+
+    void appendId(StringBuilder out, long timestamp, long count) {
+        // timestamp, version 7 and the low 12 bits of the counter
+        long mostSigBits = (timestamp << 16) | 0x7000L | (count & 0xFFF);
+        // variant 10, then the seed offset by the rest of the counter
+        long leastSigBits = 0x8000000000000000L | ((seed + (count >>> 12)) & RANDOM_BITS_MASK);
+
+        appendHex(out, mostSigBits >>> 32, 8);
+        out.append('-');
+        appendHex(out, mostSigBits >>> 16, 4);
+        out.append('-');
+        appendHex(out, mostSigBits, 4);
+        out.append('-');
+        appendHex(out, leastSigBits >>> 48, 4);
+        out.append('-');
+        appendHex(out, leastSigBits, 12);
+    }
+
+    private static void appendHex(StringBuilder out, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+}
@@ -19,154 +19,181 @@ public class TrackingOptions {
 
     public static final String TAG = "io.rakam.api.TrackingOptions";
 
+    // bit flags for each tracking field, combined into disabledMask
+    static final int FIELD_ADID = 1 << 0;
+    static final int FIELD_CARRIER = 1 << 1;
+    static final int FIELD_CITY = 1 << 2;
+    static final int FIELD_COUNTRY = 1 << 3;
+    static final int FIELD_DEVICE_BRAND = 1 << 4;
+    static final int FIELD_DEVICE_MANUFACTURER = 1 << 5;
+    static final int FIELD_DEVICE_MODEL = 1 << 6;
+    static final int FIELD_DMA = 1 << 7;
+    static final int FIELD_IP_ADDRESS = 1 << 8;
+    static final int FIELD_LANGUAGE = 1 << 9;
+    static final int FIELD_LAT_LNG = 1 << 10;
+    static final int FIELD_OS_NAME = 1 << 11;
+    static final int FIELD_OS_VERSION = 1 << 12;
+    static final int FIELD_PLATFORM = 1 << 13;
+    static final int FIELD_REGION = 1 << 14;
+    static final int FIELD_VERSION_NAME = 1 << 15;
+
     Set<String> disabledFields = new HashSet<String>();
+    private int disabledMask = 0;
 
     public TrackingOptions disableAdid() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_ADID);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_ADID, FIELD_ADID);
         return this;
     }
 
     boolean shouldTrackAdid() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_ADID);
+        return shouldTrackField(FIELD_ADID);
     }
 
     public TrackingOptions disableCarrier() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_CARRIER);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_CARRIER, FIELD_CARRIER);
         return this;
     }
 
     boolean shouldTrackCarrier() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_CARRIER);
+        return shouldTrackField(FIELD_CARRIER);
     }
 
     public TrackingOptions disableCity() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_CITY);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_CITY, FIELD_CITY);
         return this;
     }
 
     boolean shouldTrackCity() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_CITY);
+        return shouldTrackField(FIELD_CITY);
     }
 
     public TrackingOptions disableCountry() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_COUNTRY);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_COUNTRY, FIELD_COUNTRY);
         return this;
     }
 
     boolean shouldTrackCountry() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_COUNTRY);
+        return shouldTrackField(FIELD_COUNTRY);
     }
 
     public TrackingOptions disableDeviceBrand() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_BRAND);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_BRAND, FIELD_DEVICE_BRAND);
         return this;
     }
 
     boolean shouldTrackDeviceBrand() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_BRAND);
+        return shouldTrackField(FIELD_DEVICE_BRAND);
     }
 
     public TrackingOptions disableDeviceManufacturer() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER, FIELD_DEVICE_MANUFACTURER);
         return this;
     }
 
     boolean shouldTrackDeviceManufacturer() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER);
+        return shouldTrackField(FIELD_DEVICE_MANUFACTURER);
     }
 
     public TrackingOptions disableDeviceModel() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_MODEL);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_DEVICE_MODEL, FIELD_DEVICE_MODEL);
         return this;
     }
 
     boolean shouldTrackDeviceModel() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_MODEL);
+        return shouldTrackField(FIELD_DEVICE_MODEL);
     }
 
     public TrackingOptions disableDma() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_DMA);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_DMA, FIELD_DMA);
         return this;
     }
 
     boolean shouldTrackDma() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DMA);
+        return shouldTrackField(FIELD_DMA);
     }
 
     public TrackingOptions disableIpAddress() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_IP_ADDRESS);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_IP_ADDRESS, FIELD_IP_ADDRESS);
         return this;
     }
 
     boolean shouldTrackIpAddress() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_IP_ADDRESS);
+        return shouldTrackField(FIELD_IP_ADDRESS);
     }
 
     public TrackingOptions disableLanguage() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_LANGUAGE);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_LANGUAGE, FIELD_LANGUAGE);
         return this;
     }
 
     boolean shouldTrackLanguage() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_LANGUAGE);
+        return shouldTrackField(FIELD_LANGUAGE);
     }
 
     public TrackingOptions disableLatLng() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_LAT_LNG);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_LAT_LNG, FIELD_LAT_LNG);
         return this;
     }
 
     boolean shouldTrackLatLng() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_LAT_LNG);
+        return shouldTrackField(FIELD_LAT_LNG);
     }
 
     public TrackingOptions disableOsName() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_OS_NAME);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_OS_NAME, FIELD_OS_NAME);
         return this;
     }
 
     boolean shouldTrackOsName() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_OS_NAME);
+        return shouldTrackField(FIELD_OS_NAME);
     }
 
     public TrackingOptions disableOsVersion() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_OS_VERSION);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_OS_VERSION, FIELD_OS_VERSION);
         return this;
     }
 
     boolean shouldTrackOsVersion() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_OS_VERSION);
+        return shouldTrackField(FIELD_OS_VERSION);
     }
 
     public TrackingOptions disablePlatform() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_PLATFORM);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_PLATFORM, FIELD_PLATFORM);
         return this;
     }
 
     boolean shouldTrackPlatform() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_PLATFORM);
+        return shouldTrackField(FIELD_PLATFORM);
     }
 
     public TrackingOptions disableRegion() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_REGION);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_REGION, FIELD_REGION);
         return this;
     }
 
     boolean shouldTrackRegion() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_REGION);
+        return shouldTrackField(FIELD_REGION);
     }
 
     public TrackingOptions disableVersionName() {
-        disableTrackingField(Constants.AMP_TRACKING_OPTION_VERSION_NAME);
+        disableTrackingField(Constants.AMP_TRACKING_OPTION_VERSION_NAME, FIELD_VERSION_NAME);
         return this;
     }
 
     boolean shouldTrackVersionName() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_VERSION_NAME);
+        return shouldTrackField(FIELD_VERSION_NAME);
     }
 
-    private void disableTrackingField(String field) {
+    private void disableTrackingField(String field, int flag) {
         disabledFields.add(field);
+        disabledMask |= flag;
+    }
+
+    /**
+     * The disabled fields compiled into a bitmask of {@code FIELD_*} flags.
+     */
+    int getDisabledMask() {
+        return disabledMask;
     }
 
     protected JSONObject getApiPropertiesTrackingOptions() {
@@ -187,7 +214,7 @@ public class TrackingOptions {
         return apiPropertiesTrackingOptions;
     }
 
-    private boolean shouldTrackField(String field) {
-        return !disabledFields.contains(field);
+    private boolean shouldTrackField(int flag) {
+        return (disabledMask & flag) == 0;
     }
 }
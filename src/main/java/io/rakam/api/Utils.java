@@ -7,7 +7,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Created by danieljih on 4/18/16.
@@ -96,6 +99,28 @@ public class Utils {
         return false;
     }
 
+    /**
+     * Append the top level properties in key order, so objects with the same properties in a
+     * different order produce the same string. Used to group identical events.
+     */
+    static StringBuilder appendSortedProperties(StringBuilder out, JSONObject properties) {
+        if (properties == null || properties.length() == 0) {
+            return out;
+        }
+        List<String> names = new ArrayList<String>(properties.length());
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            names.add(keys.next());
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            Object value = properties.opt(name);
+            out.append('\0').append(JSONObject.quote(name)).append(':');
+            out.append(value instanceof String ? JSONObject.quote((String) value) : value);
+        }
+        return out;
+    }
+
     public static boolean isEmptyString(String s) {
         return (s == null || s.length() == 0);
     }
@@ -0,0 +1,92 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CounterAggregatorTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testSameTypeAndPropertiesAreSummed() throws JSONException {
+        CounterAggregator counters = new CounterAggregator();
+        JSONObject first = new JSONObject().put("screen", "home").put("slot", 2);
+        JSONObject second = new JSONObject().put("slot", 2).put("screen", "home");
+
+        assertEquals(1, counters.add("impression", first, 10, null, 1, 1000));
+        assertEquals(1, counters.add("impression", second, 10, null, 4, 3000));
+        assertEquals(1, counters.add("impression", first, 10, null, 2, 2000));
+
+        List<CounterAggregator.Counter> drained = counters.drain();
+        assertEquals(1, drained.size());
+        JSONObject properties = drained.get(0).toEventProperties();
+        assertEquals("home", properties.getString("screen"));
+        assertEquals(2, properties.getInt("slot"));
+        assertEquals(7, properties.getLong(CounterAggregator.COUNT_KEY));
+        assertEquals(1000, properties.getLong(CounterAggregator.FIRST_TIME_KEY));
+        assertEquals(3000, properties.getLong(CounterAggregator.LAST_TIME_KEY));
+        assertEquals(0, counters.size());
+    }
+
+    @Test
+    public void testDifferentKeysAreSeparate() throws JSONException {
+        CounterAggregator counters = new CounterAggregator();
+        counters.add("impression", null, 10, null, 1, 1000);
+        counters.add("impression", new JSONObject().put("slot", 1), 10, null, 1, 1000);
+        // a number and a string that print the same are different properties
+        counters.add("impression", new JSONObject().put("slot", "1"), 10, null, 1, 1000);
+        counters.add("impression", null, 11, null, 1, 1000);
+        assertEquals(5, counters.add("click", null, 10, null, 1, 1000));
+
+        List<CounterAggregator.Counter> drained = counters.drain();
+        assertEquals(5, drained.size());
+        // oldest first
+        assertEquals("impression", drained.get(0).eventType);
+        assertNull(drained.get(0).properties);
+        assertEquals("click", drained.get(4).eventType);
+    }
+
+    @Test
+    public void testDifferentSuperPropertiesAreSeparate() throws JSONException {
+        CounterAggregator counters = new CounterAggregator();
+        SuperProperties free = SuperProperties.of(new JSONObject().put("plan", "free"));
+        SuperProperties paid = SuperProperties.of(new JSONObject().put("plan", "paid"));
+        counters.add("impression", null, 10, free, 1, 1000);
+        counters.add("impression", null, 10, SuperProperties.of(
+                new JSONObject().put("plan", "free")), 1, 2000);
+        assertEquals(2, counters.add("impression", null, 10, paid, 1, 3000));
+
+        List<CounterAggregator.Counter> drained = counters.drain();
+        assertEquals(2, drained.get(0).count);
+        assertSame(free, drained.get(0).superProperties);
+        assertSame(paid, drained.get(1).superProperties);
+    }
+
+    @Test
+    public void testDrainClears() {
+        CounterAggregator counters = new CounterAggregator();
+        assertTrue(counters.drain().isEmpty());
+        counters.add("impression", null, 10, null, 1, 1000);
+        assertEquals(1, counters.drain().size());
+        assertTrue(counters.drain().isEmpty());
+    }
+}
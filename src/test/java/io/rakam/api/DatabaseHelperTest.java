@@ -1,22 +1,38 @@
 package io.rakam.api;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.powermock.api.mockito.PowerMockito;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
@@ -70,13 +86,290 @@ public class DatabaseHelperTest extends BaseTest {
 
     protected Long getLongValue(String key) { return dbInstance.getLongValue(key); }
 
+    @Test
+    public void testIdleClose() {
+        // closed after every call by default
+        addEvent("closed");
+        assertFalse(dbInstance.isOpen());
+
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        dbInstance.setIdleCloseHandler(new Handler(rakam.logThread.getLooper()));
+        assertEquals(2, addEvent("open"));
+        assertEquals(2, dbInstance.getEventCount());
+        assertTrue(dbInstance.isOpen());
+
+        // closed once idle, and reopened by the next call
+        looper.runToEndOfTasks();
+        assertFalse(dbInstance.isOpen());
+        assertEquals(3, addEvent("reopened"));
+        assertEquals(3, dbInstance.getNthEventId(3));
+        dbInstance.removeEvents(2);
+        assertEquals(1, dbInstance.getEventCount());
+
+        dbInstance.close();
+        assertFalse(dbInstance.isOpen());
+        assertEquals(1, dbInstance.getEventCount());
+        dbInstance.setIdleCloseHandler(null);
+    }
+
+    @Test
+    public void testAddEventWithMetadata() {
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("session", 100L);
+        metadata.put("time", 200L);
+        long id = dbInstance.addEvent("{}", "last_id", metadata);
+        assertEquals(1, id);
+        assertEquals(Long.valueOf(1), getLongValue("last_id"));
+        assertEquals(Long.valueOf(100), getLongValue("session"));
+        assertEquals(Long.valueOf(200), getLongValue("time"));
+
+        metadata.put("time", null);
+        dbInstance.insertOrReplaceKeyLongValues(metadata);
+        assertEquals(Long.valueOf(100), getLongValue("session"));
+        assertNull(getLongValue("time"));
+    }
+
+    @Test
+    public void testRetryAfterResetKeepsMetadata() {
+        DatabaseHelper helper = PowerMockito.spy(dbInstance);
+        final Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("last_event_time", 5L);
+        // the client may save or clear its unsaved metadata while the database resets
+        helper.setDatabaseResetListener(new DatabaseResetListener() {
+            @Override
+            public void onDatabaseReset(SQLiteDatabase db) {
+                metadata.clear();
+            }
+        });
+        PowerMockito.doThrow(new SQLiteException("test")).doCallRealMethod().when(helper)
+                .insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class),
+                        anyString(), Matchers.any(ContentValues.class));
+
+        assertEquals(1, helper.addEvent("{\"i\":1}", "last_id", metadata));
+        assertEquals(1, helper.getEventCount());
+        assertEquals(Long.valueOf(5), helper.getLongValue("last_event_time"));
+    }
+
+    @Test
+    public void testAddEvents() throws JSONException {
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("session", 100L);
+        addEvent("before");
+        long id = dbInstance.addEvents(
+                Arrays.asList("{\"i\":1}", "{\"i\":2}", "{\"i\":3}"), "last_id", metadata);
+        assertEquals(4, id);
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(Long.valueOf(4), getLongValue("last_id"));
+        assertEquals(Long.valueOf(100), getLongValue("session"));
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(1, events.get(1).getInt("i"));
+        assertEquals(3, events.get(3).getInt("i"));
+        assertEquals(4, events.get(3).getLong("event_id"));
+
+        assertEquals(-1, dbInstance.addEvents(new ArrayList<String>(), "last_id", null));
+        assertEquals(4, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testRunInTransaction() {
+        final long[] ids = new long[3];
+        dbInstance.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                ids[0] = dbInstance.addEvent("{\"i\":1}");
+                // the database stays open between the operations of the group
+                assertTrue(dbInstance.isOpen());
+                ids[1] = dbInstance.addIdentify("{\"i\":2}");
+                ids[2] = dbInstance.addEvent("{\"i\":3}");
+                assertEquals(2, dbInstance.getEventCount());
+            }
+        });
+        assertEquals(1, ids[0]);
+        assertEquals(2, ids[1]);
+        assertEquals(3, ids[2]);
+        // without an idle close handler the database is closed once the group commits
+        assertFalse(dbInstance.isOpen());
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+    }
+
+    @Test
+    public void testRunInTransactionRolledBackByFailedInsert() {
+        final DatabaseHelper helper = PowerMockito.spy(dbInstance);
+        final long[] ids = new long[2];
+        boolean committed = helper.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                ids[0] = helper.addEvent("{\"i\":1}", "last_id", null);
+                // the insert fails without an exception, ending its nested transaction
+                PowerMockito.doReturn(-1L).when(helper).insertEventContentValuesIntoTable(
+                        Matchers.any(SQLiteDatabase.class), anyString(),
+                        Matchers.any(ContentValues.class));
+                ids[1] = helper.addEvent("{\"i\":2}", "last_id", null);
+            }
+        });
+        assertFalse(committed);
+        assertEquals(1, ids[0]);
+        assertEquals(-1, ids[1]);
+        // SQLite rolled back the first insert too, the cached count and value went with it
+        assertEquals(0, helper.getEventCount());
+        assertNull(helper.getLongValue("last_id"));
+    }
+
+    @Test
+    public void testRowCounts() {
+        dbInstance.setIdleCloseHandler(new Handler());
+        assertEquals(0, dbInstance.getEventCount());
+        for (int i = 0; i < 5; i++) {
+            addEvent("test_event");
+        }
+        addIdentify("test_identify");
+        dbInstance.addEvents(Arrays.asList("{}", "{}"), null, null);
+        assertEquals(7, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(8, dbInstance.getTotalEventCount());
+        assertEquals(7, dbInstance.getCachedEventCount());
+
+        dbInstance.removeEvents(3);
+        dbInstance.removeEvent(5);
+        dbInstance.removeEvent(5);
+        dbInstance.removeIdentify(6);
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getIdentifyCount());
+
+        // counted again after the database is reopened
+        dbInstance.close();
+        assertEquals(3, dbInstance.getCachedEventCount());
+        assertEquals(3, dbInstance.getEventCount());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testRemoveOldestEvents() {
+        dbInstance.setIdleCloseHandler(new Handler());
+        assertEquals(0, dbInstance.removeOldestEvents(3));
+        for (int i = 0; i < 10; i++) {
+            addEvent("test_event");
+        }
+        addIdentify("test_identify");
+
+        addEvent("test_event");
+
+        assertEquals(3, dbInstance.removeOldestEvents(3));
+        assertEquals(8, dbInstance.getEventCount());
+        assertEquals(4, dbInstance.getNthEventId(1));
+        assertEquals(1, dbInstance.getIdentifyCount());
+
+        // gaps in the ids are skipped
+        dbInstance.removeEvent(5);
+        assertEquals(2, dbInstance.removeOldestEvents(2));
+        assertEquals(7, dbInstance.getNthEventId(1));
+        assertEquals(5, dbInstance.getEventCount());
+
+        // the identify in between the events is kept
+        dbInstance.removeEvents(9);
+        assertEquals(1, dbInstance.removeOldestEvents(1));
+        assertEquals(12, dbInstance.getNthEventId(1));
+        assertEquals(1, dbInstance.getIdentifyCount());
+
+        assertEquals(1, dbInstance.removeOldestIdentifys(5));
+        assertEquals(0, dbInstance.getIdentifyCount());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testCompressedStorage() throws JSONException {
+        // a row saved as TEXT by version 3
+        dbInstance.getWritableDatabase().execSQL("INSERT INTO " + DatabaseHelper.LOG_TABLE_NAME
+                + " (type, event) VALUES (0, '{\"collection\":\"old_event\"}')");
+        addEvent("new_event");
+
+        Cursor cursor = dbInstance.getReadableDatabase().rawQuery(
+                "SELECT typeof(event) FROM " + DatabaseHelper.LOG_TABLE_NAME + " ORDER BY id", null);
+        try {
+            assertTrue(cursor.moveToNext());
+            assertEquals("text", cursor.getString(0));
+            assertTrue(cursor.moveToNext());
+            assertEquals("blob", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals("old_event", events.get(0).getString("collection"));
+        assertEquals("new_event", events.get(1).getString("collection"));
+    }
+
+    @Test
+    public void testUpgradeVersion3ToVersion4() throws JSONException {
+        addEvent("test_upgrade");
+        dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 3, 4);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals("test_upgrade", dbInstance.getEvents(-1, -1).get(0).getString("collection"));
+    }
+
+    @Test
+    public void testUpgradeVersion4ToVersion5() throws JSONException {
+        // the separate tables of version 4, with ids from two sequences
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.LOG_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT)");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT)");
+        db.execSQL("INSERT INTO events (id, event) VALUES (1, '{\"collection\":\"e1\"}')");
+        db.execSQL("INSERT INTO events (id, event) VALUES (3, '{\"collection\":\"e3\"}')");
+        db.execSQL("INSERT INTO identifys (id, event) VALUES (1, '{\"collection\":\"i1\"}')");
+        db.execSQL("INSERT INTO identifys (id, event) VALUES (2, '{\"collection\":\"i2\"}')");
+        insertOrReplaceKeyLongValue(RakamClient.LAST_EVENT_ID_KEY, 3L);
+        insertOrReplaceKeyLongValue(RakamClient.LAST_IDENTIFY_ID_KEY, 2L);
+
+        dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 4, 5);
+
+        // merged in the order uploads used, an identify goes first on equal ids
+        List<JSONObject> log = dbInstance.getLog(-1, -1);
+        assertEquals(4, log.size());
+        String[] order = {"i1", "e1", "i2", "e3"};
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(order[i], log.get(i).getString("collection"));
+            assertEquals(i + 1, log.get(i).getLong("event_id"));
+        }
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(2, dbInstance.getIdentifyCount());
+        assertEquals(Long.valueOf(4), getLongValue(RakamClient.LAST_EVENT_ID_KEY));
+        assertEquals(Long.valueOf(3), getLongValue(RakamClient.LAST_IDENTIFY_ID_KEY));
+        assertEquals(5, addEvent("after_upgrade"));
+    }
+
+    @Test
+    public void testGetLog() throws JSONException {
+        addEvent("e1");
+        addIdentify("i2");
+        addEvent("e3");
+        addIdentify("i4");
+
+        List<JSONObject> log = dbInstance.getLog(3, -1);
+        assertEquals(3, log.size());
+        assertEquals("i2", log.get(1).getString("collection"));
+        assertEquals(2, dbInstance.getLog(-1, 2).size());
+
+        dbInstance.removeLog(2);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        dbInstance.removeLogEntry(4);
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals("e3", dbInstance.getLog(-1, -1).get(0).getString("collection"));
+    }
+
     @Test
     public void testCreate() {
         dbInstance.onCreate(dbInstance.getWritableDatabase());
         assertEquals(1, insertOrReplaceKeyValue("test_key", "test_value"));
         assertEquals(1, insertOrReplaceKeyLongValue("test_key", 1L));
         assertEquals(1, addEvent("test_create"));
-        assertEquals(1, addIdentify("test_create"));
+        assertEquals(2, addIdentify("test_create"));
     }
 
     // need separate tests for different version to version upgrades since insertion failure
@@ -96,24 +389,16 @@ public class DatabaseHelperTest extends BaseTest {
                 "DROP TABLE IF EXISTS " + DatabaseHelper.LONG_STORE_TABLE_NAME);
         assertEquals(-1, insertOrReplaceKeyLongValue(key, longValue));
 
-        // identify table doesn't exist in v1, insert will fail
-        dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
-        assertEquals(-1, addIdentify("test_upgrade"));
-
         // only event inserts will work
         assertEquals(1, addEvent("test_upgrade"));
 
         // after v2 upgrade, can insert into store table
-        // still can't insert into identify table or long store table
+        // still can't insert into long store table
         dbInstance.getWritableDatabase().execSQL(
                 "DROP TABLE IF EXISTS " + DatabaseHelper.STORE_TABLE_NAME);
-        dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
         dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 1, 2);
         assertEquals(2, addEvent("test_upgrade"));
         assertEquals(1, insertOrReplaceKeyValue(key, value));
-        assertEquals(-1, addIdentify("test_upgrade"));
         dbInstance.getWritableDatabase().execSQL(
                 "DROP TABLE IF EXISTS " + DatabaseHelper.LONG_STORE_TABLE_NAME);
         assertEquals(-1, insertOrReplaceKeyLongValue(key, longValue));
@@ -121,11 +406,6 @@ public class DatabaseHelperTest extends BaseTest {
 
     @Test
     public void testUpgradeVersion2ToVersion3() {
-        // identify table doesn't exist in v2, insert will fail
-        dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
-        assertEquals(-1, addIdentify("test_upgrade"));
-
         // long store table doesn't exist in v2, insert will fail
         String key = "test_key";
         Long longValue = 1L;
@@ -138,13 +418,13 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(1, insertOrReplaceKeyValue(key, value));
         assertEquals(1, addEvent("test_upgrade"));
 
-        // after v3 upgrade, can insert into identify table and long store
+        // after v3 upgrade, can insert into long store
         dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+                "DROP TABLE IF EXISTS " + DatabaseHelper.LONG_STORE_TABLE_NAME);
         dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 2, 3);
         assertEquals(2, addEvent("test_upgrade"));
         assertEquals(2, insertOrReplaceKeyValue(key, value));
-        assertEquals(1, addIdentify("test_upgrade"));
+        assertEquals(3, addIdentify("test_upgrade"));
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
@@ -157,11 +437,6 @@ public class DatabaseHelperTest extends BaseTest {
         String value = "test_value";
         assertEquals(-1, insertOrReplaceKeyValue(key, value));
 
-        // identify table doesn't exist in v1, insert will fail
-        dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
-        assertEquals(-1, addIdentify("test_upgrade"));
-
         // long store table doesn't exist in v1, insert will fail
         Long longValue = 1L;
         dbInstance.getWritableDatabase().execSQL(
@@ -171,17 +446,15 @@ public class DatabaseHelperTest extends BaseTest {
         // only event inserts will work
         assertEquals(1, addEvent("test_upgrade"));
 
-        // after v3 upgrade, can insert into store and identify tables
+        // after v3 upgrade, can insert into store and long store tables
         dbInstance.getWritableDatabase().execSQL(
                 "DROP TABLE IF EXISTS " + DatabaseHelper.STORE_TABLE_NAME);
-        dbInstance.getWritableDatabase().execSQL(
-                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
         dbInstance.getWritableDatabase().execSQL(
                 "DROP TABLE IF EXISTS " + DatabaseHelper.LONG_STORE_TABLE_NAME);
         dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 1, 3);
         assertEquals(2, addEvent("test_upgrade"));
         assertEquals(1, insertOrReplaceKeyValue(key, value));
-        assertEquals(1, addIdentify("test_upgrade"));
+        assertEquals(3, addIdentify("test_upgrade"));
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
@@ -230,6 +503,64 @@ public class DatabaseHelperTest extends BaseTest {
         assertNull(getValue(key));
     }
 
+    @Test
+    public void testLogBytes() {
+        dbInstance.setIdleCloseHandler(new Handler());
+        assertEquals(0, dbInstance.getLogBytes());
+        addEvent("e1");
+        addIdentify("i2");
+        addEvent("e3");
+        addEvent("e4");
+
+        // tracked on every insert and delete, the same as summing again after a reopen
+        long bytes = dbInstance.getLogBytes();
+        assertTrue(bytes > 0);
+        assertEquals(bytes, dbInstance.getCachedLogBytes());
+        dbInstance.removeLogEntry(3);
+        bytes = dbInstance.getLogBytes();
+        dbInstance.close();
+        assertEquals(bytes, dbInstance.getLogBytes());
+
+        // the oldest rows go first whatever their type
+        long freed = dbInstance.removeOldestBytes(bytes / 2);
+        assertTrue(freed >= bytes / 2);
+        assertEquals(bytes - freed, dbInstance.getLogBytes());
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals("e4", getLastUnsentEvent().optString("collection"));
+        dbInstance.close();
+        assertEquals(bytes - freed, dbInstance.getLogBytes());
+
+        assertTrue(dbInstance.getFileBytes() > 0);
+    }
+
+    @Test
+    public void testKeyValueCache() {
+        dbInstance.setIdleCloseHandler(new Handler());
+        assertEquals(1, insertOrReplaceKeyValue("test_key", "test_value"));
+        assertEquals(1, insertOrReplaceKeyLongValue("test_key", 1L));
+        assertEquals("test_value", getValue("test_key"));
+
+        // read from memory while the database stays open
+        dbInstance.getWritableDatabase().execSQL(
+                "UPDATE " + DatabaseHelper.STORE_TABLE_NAME + " SET value = 'changed'");
+        assertEquals("test_value", getValue("test_key"));
+        assertEquals(Long.valueOf(1), getLongValue("test_key"));
+
+        // unchanged values are not written again
+        assertEquals(0, insertOrReplaceKeyValue("test_key", "test_value"));
+        assertEquals(0, insertOrReplaceKeyLongValue("test_key", 1L));
+        assertEquals(0, insertOrReplaceKeyValue("missing_key", null));
+        assertEquals(2, insertOrReplaceKeyLongValue("test_key", 2L));
+        assertEquals(Long.valueOf(2), getLongValue("test_key"));
+
+        // read again once reopened
+        dbInstance.close();
+        assertEquals("changed", getValue("test_key"));
+        assertEquals(1, insertOrReplaceKeyValue("test_key", null));
+        assertNull(getValue("test_key"));
+    }
+
     @Test
     public void testAddEvent() {
         assertEquals(1, addEvent("test_add_event"));
@@ -461,16 +792,18 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(4, dbInstance.getEventCount());
         assertEquals(0, dbInstance.getIdentifyCount());
 
-        assertEquals(1, addIdentify("test_add_identify_id_1"));
-        assertEquals(2, addIdentify("test_add_identify_id_2"));
+        // events and identifys share one id sequence
+        assertEquals(5, addIdentify("test_add_identify_id_1"));
+        assertEquals(6, addIdentify("test_add_identify_id_2"));
         assertEquals(4, dbInstance.getEventCount());
         assertEquals(2, dbInstance.getIdentifyCount());
 
         dbInstance.removeEvent(1);
+        dbInstance.removeIdentify(1);
         assertEquals(3, dbInstance.getEventCount());
         assertEquals(2, dbInstance.getIdentifyCount());
 
-        dbInstance.removeIdentify(1);
+        dbInstance.removeIdentify(5);
         assertEquals(3, dbInstance.getEventCount());
         assertEquals(1, dbInstance.getIdentifyCount());
 
@@ -547,5 +880,44 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(dbHelper2.getIdentifyCount(), 0);
         assertEquals(dbHelper3.getIdentifyCount(), 1);
     }
-}
 
+    @Test
+    public void testStorageProfileReopensDatabase() {
+        assertEquals(StorageProfile.DURABLE, dbInstance.getStorageProfile());
+        dbInstance.setIdleCloseHandler(new Handler());
+        dbInstance.addEvent("test_event");
+        assertTrue(dbInstance.isOpen());
+
+        // switching profiles closes the database so it is reopened with the new settings
+        dbInstance.setStorageProfile(StorageProfile.BALANCED);
+        assertFalse(dbInstance.isOpen());
+        assertEquals(StorageProfile.BALANCED, dbInstance.getStorageProfile());
+        dbInstance.addEvent("test_event");
+        assertTrue(dbInstance.isOpen());
+        assertEquals(2, dbInstance.getEventCount());
+
+        // null and the same profile leave the open database alone
+        dbInstance.setStorageProfile(null);
+        dbInstance.setStorageProfile(StorageProfile.BALANCED);
+        assertTrue(dbInstance.isOpen());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testStorageProfileInserts() throws JSONException {
+        int inserts = 200;
+        for (StorageProfile profile : StorageProfile.values()) {
+            DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(
+                    context, "profile_" + profile.name());
+            dbHelper.setStorageProfile(profile);
+            dbHelper.setIdleCloseHandler(new Handler());
+
+            for (int i = 0; i < inserts; i++) {
+                dbHelper.addEvent("{\"event_type\":\"test_event\",\"i\":" + i + "}");
+            }
+            assertEquals(inserts, dbHelper.getEventCount());
+            assertEquals(inserts, dbHelper.getEvents(-1, -1).size());
+            dbHelper.close();
+        }
+    }
+}
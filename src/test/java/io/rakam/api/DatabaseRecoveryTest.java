@@ -24,9 +24,11 @@ import java.io.RandomAccessFile;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.reset;
 
@@ -90,11 +92,23 @@ public class DatabaseRecoveryTest extends BaseTest {
         // add helper method specifically for mocking / testing
         DatabaseHelper mockDbHelper = PowerMockito.spy(dbInstance);
         PowerMockito.doThrow(new SQLiteException("test")).when(mockDbHelper).insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class), anyString(), Matchers.any(ContentValues.class));
-        rakam.dbHelper = mockDbHelper;
+        rakam.eventStore = mockDbHelper;
+
+        // a write-ahead log left next to the file must not outlive the reset
+        File wal = new File(dbInstance.file.getPath() + "-wal");
+        File shm = new File(dbInstance.file.getPath() + "-shm");
+        try {
+            assertTrue(wal.createNewFile());
+            assertTrue(shm.createNewFile());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
 
         // log an event to trigger SQLException that we set up with mocks
         rakam.logEvent("test");
         looper.runToEndOfTasks();
+        assertFalse(wal.exists());
+        assertFalse(shm.exists());
 
         // verify that the metadata has been persisted back into database
         String newDeviceId = dbInstance.getValue(RakamClient.DEVICE_ID_KEY);
@@ -144,7 +158,7 @@ public class DatabaseRecoveryTest extends BaseTest {
         // add helper method specifically for mocking / testing
         DatabaseHelper mockDbHelper = PowerMockito.spy(dbInstance);
         PowerMockito.doThrow(new SQLiteException("test")).when(mockDbHelper).insertKeyValueContentValuesIntoTable(Matchers.any(SQLiteDatabase.class), anyString(), Matchers.any(ContentValues.class));
-        rakam.dbHelper = mockDbHelper;
+        rakam.eventStore = mockDbHelper;
 
         // log an event to trigger SQLException that we set up with mocks
         rakam.logEvent("test");
@@ -196,11 +210,11 @@ public class DatabaseRecoveryTest extends BaseTest {
         // add helper method specifically for mocking / testing
         DatabaseHelper mockDbHelper = PowerMockito.spy(dbInstance);
         PowerMockito.doThrow(new SQLiteException("test")).when(mockDbHelper).insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class), anyString(), Matchers.any(ContentValues.class));
-        rakam.dbHelper = mockDbHelper;
+        rakam.eventStore = mockDbHelper;
 
         // log an event to trigger SQLException that we set up with mocks
         rakam.logEvent("test");
-        looper.runOneTask();
+        looper.runToEndOfTasks();
 
         // verify that the metadata has been persisted back into database
         String newDeviceId = dbInstance.getValue(RakamClient.DEVICE_ID_KEY);
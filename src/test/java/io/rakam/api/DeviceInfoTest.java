@@ -247,6 +247,45 @@ public class DeviceInfoTest {
         assertEquals(loc, deviceInfo.getMostRecentLocation());
     }
 
+    @Test
+    public void testLocationCache() {
+        DeviceInfo deviceInfo = new DeviceInfo(context);
+        ShadowLocationManager locationManager = Shadows.shadowOf((LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE));
+        locationManager.setProviderEnabled(LocationManager.NETWORK_PROVIDER, true);
+        Location first = makeLocation(LocationManager.NETWORK_PROVIDER, TEST_LOCATION_LAT,
+                TEST_LOCATION_LNG);
+        locationManager.simulateLocation(first);
+        assertEquals(first, deviceInfo.getMostRecentLocation());
+
+        // the cached location is reused until the ttl passes
+        Location second = makeLocation(LocationManager.NETWORK_PROVIDER, 0, 0);
+        second.setTime(first.getTime() + 1000);
+        locationManager.simulateLocation(second);
+        assertEquals(first, deviceInfo.getMostRecentLocation());
+
+        deviceInfo.setLocationCacheTtlMillis(0);
+        assertEquals(second, deviceInfo.getMostRecentLocation());
+    }
+
+    @Test
+    public void testPassiveLocationUpdates() {
+        DeviceInfo deviceInfo = new DeviceInfo(context);
+        Location first = makeLocation(LocationManager.PASSIVE_PROVIDER, TEST_LOCATION_LAT,
+                TEST_LOCATION_LNG);
+        deviceInfo.updateCachedLocation(first);
+        assertEquals(first, deviceInfo.getMostRecentLocation());
+
+        // an older update does not replace a newer location
+        Location older = makeLocation(LocationManager.PASSIVE_PROVIDER, 0, 0);
+        older.setTime(first.getTime() - 1000);
+        deviceInfo.updateCachedLocation(older);
+        assertEquals(first, deviceInfo.getMostRecentLocation());
+
+        deviceInfo.setLocationListening(false);
+        assertNull(deviceInfo.getMostRecentLocation());
+    }
+
     @Test
     public void testNoLocation() {
         DeviceInfo deviceInfo = new DeviceInfo(context);
@@ -0,0 +1,79 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventCodecTest extends BaseTest {
+
+    private static final String EVENT = "{\"properties\":{\"_id\":\"0a1b2c3d-1111-2222-3333-444455556666\","
+            + "\"_local_id\":41,\"_time\":1700000000000,\"_user\":null,"
+            + "\"_device_id\":\"abcdef12-3456-7890-abcd-ef1234567890R\",\"_session_id\":1700000000000,"
+            + "\"_version_name\":\"1.0\",\"_os_name\":\"android\",\"_os_version\":\"13\","
+            + "\"_device_brand\":\"google\",\"_device_manufacturer\":\"Google\","
+            + "\"_device_model\":\"Pixel 7\",\"_carrier\":\"T-Mobile\",\"_country_code\":\"US\","
+            + "\"_language\":\"en\",\"_platform\":\"Android\",\"_library_name\":\"rakam-android\","
+            + "\"_library_version\":\"2.7.14\",\"_ip\":true,\"button\":\"play\"},"
+            + "\"collection\":\"Clicked Button\"}";
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        EventCodec codec = new EventCodec();
+        byte[] stored = codec.encode(EVENT);
+        assertEquals(EventCodec.FORMAT_DEFLATE, stored[0]);
+        // the dictionary covers the context every event repeats
+        assertTrue(stored.length * 2 < EVENT.length());
+        assertEquals(EVENT, codec.decode(stored));
+
+        // the codec is reused for every event
+        String unicode = "{\"properties\":{\"name\":\"\u00e7a va \u2713\"},\"collection\":\"x\"}";
+        assertEquals(unicode, codec.decode(codec.encode(unicode)));
+        assertEquals("", codec.decode(codec.encode("")));
+    }
+
+    @Test
+    public void testDecodeText() throws Exception {
+        EventCodec codec = new EventCodec();
+        // rows saved as TEXT before version 4 read back as their UTF-8 bytes
+        assertEquals(EVENT, codec.decode(EVENT.getBytes("UTF-8")));
+        assertEquals("", codec.decode(new byte[0]));
+        assertNull(codec.decode(null));
+    }
+
+    @Test
+    public void testDecodeCorrupt() {
+        EventCodec codec = new EventCodec();
+        byte[] stored = codec.encode(EVENT);
+        try {
+            codec.decode(Arrays.copyOf(stored, stored.length / 2));
+            fail("expected DataFormatException");
+        } catch (DataFormatException e) {
+            // expected
+        }
+        // a failure does not break the next event
+        try {
+            assertEquals(EVENT, codec.decode(stored));
+        } catch (DataFormatException e) {
+            fail(e.toString());
+        }
+    }
+}
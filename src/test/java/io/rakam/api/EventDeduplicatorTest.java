@@ -0,0 +1,92 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventDeduplicatorTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    private static EventQueue.PendingEvent event(String type, JSONObject properties,
+                                                 long timestamp) {
+        return new EventQueue.PendingEvent(type, properties, timestamp, false);
+    }
+
+    @Test
+    public void testFingerprintIgnoresKeyOrder() throws JSONException {
+        String first = EventDeduplicator.fingerprint(event("tap",
+                new JSONObject().put("a", 1).put("b", "x"), 0));
+        String second = EventDeduplicator.fingerprint(event("tap",
+                new JSONObject().put("b", "x").put("a", 1), 0));
+        EventProperties typed = new EventProperties().putString("b", "x").putLong("a", 1);
+        String third = EventDeduplicator.fingerprint(new EventQueue.PendingEvent(
+                "tap", null, typed, 0, false, EventPolicy.NOT_SAMPLED, null));
+        assertEquals(first, second);
+        assertEquals(first, third);
+
+        String other = EventDeduplicator.fingerprint(event("tap",
+                new JSONObject().put("a", "1").put("b", "x"), 0));
+        assertTrue(!first.equals(other));
+    }
+
+    @Test
+    public void testMatchWithinWindow() {
+        EventDeduplicator deduplicator = new EventDeduplicator(4);
+        String fingerprint = EventDeduplicator.fingerprint(event("tap", null, 1000));
+        assertNull(deduplicator.match(fingerprint, 1000, 500));
+        deduplicator.add(fingerprint, 1000);
+
+        EventDeduplicator.Entry entry = deduplicator.match(fingerprint, 1499, 500);
+        assertNotNull(entry);
+        // the first event is saved, nothing is held until a duplicate comes in
+        assertNull(entry.event);
+        assertNull(deduplicator.match(fingerprint, 1500, 500));
+        assertTrue(deduplicator.drainHeld().isEmpty());
+    }
+
+    @Test
+    public void testRingEvictsOldest() {
+        EventDeduplicator deduplicator = new EventDeduplicator(2);
+        EventQueue.PendingEvent first = event("first", null, 1100);
+        EventQueue.PendingEvent second = event("second", null, 1100);
+        String firstFingerprint = EventDeduplicator.fingerprint(first);
+        String secondFingerprint = EventDeduplicator.fingerprint(second);
+        assertNull(deduplicator.add(firstFingerprint, 1000));
+        assertNull(deduplicator.add(secondFingerprint, 1000));
+        deduplicator.hold(deduplicator.match(firstFingerprint, 1100, 500), first, 5);
+        deduplicator.hold(deduplicator.match(secondFingerprint, 1100, 500), second, 5);
+
+        EventDeduplicator.Entry evicted = deduplicator.add(
+                EventDeduplicator.fingerprint(event("third", null, 1200)), 1200);
+        assertSame(first, evicted.event);
+        assertEquals(5, evicted.sessionId);
+        assertNull(deduplicator.match(firstFingerprint, 1200, 500));
+
+        List<EventDeduplicator.Entry> held = deduplicator.drainHeld();
+        assertEquals(1, held.size());
+        assertSame(second, held.get(0).event);
+        assertTrue(deduplicator.drainHeld().isEmpty());
+        // released entries still match, so the next duplicate is held anew
+        assertNotNull(deduplicator.match(secondFingerprint, 1300, 500));
+    }
+}
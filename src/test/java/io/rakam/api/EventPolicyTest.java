@@ -0,0 +1,98 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventPolicyTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testDefaultAdmitsEverything() {
+        EventPolicyState policy = new EventPolicyState(new EventPolicy());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(i), 0);
+        }
+        assertEquals(0, policy.getSampledOutCount());
+        assertEquals(0, policy.getThrottledCount());
+    }
+
+    @Test
+    public void testThrottle() {
+        EventPolicyState policy = new EventPolicyState(new EventPolicy().setThrottle(2, 1000));
+        assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(5000), 0);
+        assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(5100), 0);
+        assertEquals(EventPolicy.REJECTED, policy.admit(5999), 0);
+        // next window
+        assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(6000), 0);
+        assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(6001), 0);
+        assertEquals(EventPolicy.REJECTED, policy.admit(6002), 0);
+        // the clock moving backwards starts a new window
+        assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(100), 0);
+        assertEquals(2, policy.getThrottledCount());
+    }
+
+    @Test
+    public void testSampleRate() {
+        EventPolicyState policy = new EventPolicyState(new EventPolicy().setSampleRate(0.25));
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            double weight = policy.admit(i);
+            if (weight != EventPolicy.REJECTED) {
+                assertEquals(4, weight, 0);
+                kept++;
+            }
+        }
+        assertEquals(10000 - kept, policy.getSampledOutCount());
+        assertTrue(kept > 2000 && kept < 3000);
+    }
+
+    @Test
+    public void testSampledOutEventsDoNotUseThrottle() {
+        EventPolicyState policy = new EventPolicyState(
+                new EventPolicy().setSampleRate(0.5).setThrottle(1000, 1000000));
+        for (int i = 0; i < 1000; i++) {
+            policy.admit(i);
+        }
+        assertEquals(0, policy.getThrottledCount());
+    }
+
+    @Test
+    public void testSettingsCopied() {
+        EventPolicy settings = new EventPolicy().setThrottle(1, 1000);
+        EventPolicyState first = new EventPolicyState(settings);
+        settings.setThrottle(2, 1000);
+        EventPolicyState second = new EventPolicyState(settings);
+
+        // each registration has its own settings and window
+        assertEquals(EventPolicy.NOT_SAMPLED, first.admit(0), 0);
+        assertEquals(EventPolicy.REJECTED, first.admit(1), 0);
+        assertEquals(EventPolicy.NOT_SAMPLED, second.admit(0), 0);
+        assertEquals(EventPolicy.NOT_SAMPLED, second.admit(1), 0);
+        assertEquals(1, first.getThrottledCount());
+        assertEquals(0, second.getThrottledCount());
+    }
+
+    @Test
+    public void testInvalidValuesIgnored() {
+        EventPolicyState policy = new EventPolicyState(new EventPolicy()
+                .setSampleRate(0).setSampleRate(1.5).setSampleRate(Double.NaN)
+                .setThrottle(0, 1000).setThrottle(10, -1));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(EventPolicy.NOT_SAMPLED, policy.admit(0), 0);
+        }
+    }
+}
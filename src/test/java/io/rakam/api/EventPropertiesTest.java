@@ -0,0 +1,84 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventPropertiesTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testPut() throws JSONException {
+        EventProperties properties = new EventProperties(1)
+                .putLong("long", 5)
+                .putDouble("double", 1.5)
+                .putBoolean("boolean", true)
+                .putString("string", "value");
+        assertEquals(4, properties.size());
+
+        JSONObject expected = new JSONObject();
+        expected.put("long", 5L);
+        expected.put("double", 1.5);
+        expected.put("boolean", true);
+        expected.put("string", "value");
+        assertEquals(expected.toString(), properties.toJSONObject().toString());
+    }
+
+    @Test
+    public void testReplaceKeepsPosition() {
+        EventProperties properties = new EventProperties()
+                .putLong("a", 1)
+                .putString("b", "b")
+                .putLong("c", 3)
+                .putString("a", "replaced");
+        assertEquals("{\"a\":\"replaced\",\"b\":\"b\",\"c\":3}",
+                properties.toJSONObject().toString());
+    }
+
+    @Test
+    public void testInvalidValues() {
+        EventProperties properties = new EventProperties()
+                .putDouble("nan", Double.NaN)
+                .putDouble("infinity", Double.POSITIVE_INFINITY)
+                .putLong(null, 1)
+                .putLong("", 1)
+                .putString("removed", "value")
+                .putString("removed", null);
+        assertEquals(0, properties.size());
+        assertFalse(properties.has("removed"));
+    }
+
+    @Test
+    public void testSnapshotIsIsolated() {
+        EventProperties properties = new EventProperties(2)
+                .putLong("a", 1)
+                .putString("b", "b");
+        EventProperties snapshot = properties.snapshot();
+
+        // appending, replacing, removing and growing after the snapshot
+        properties.putLong("c", 3);
+        properties.putLong("a", 10);
+        properties.putString("b", null);
+        properties.putLong("d", 4).putLong("e", 5);
+
+        assertEquals("{\"a\":1,\"b\":\"b\"}", snapshot.toJSONObject().toString());
+        assertEquals("{\"a\":10,\"c\":3,\"d\":4,\"e\":5}", properties.toJSONObject().toString());
+        assertTrue(snapshot.has("b"));
+    }
+}
@@ -0,0 +1,170 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventQueueTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    private EventQueue.PendingEvent event(String type, long timestamp) {
+        return new EventQueue.PendingEvent(type, null, timestamp, false);
+    }
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        EventQueue queue = new EventQueue(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        assertTrue(queue.offer(event("a", 1)));
+        assertTrue(queue.offer(event("b", 2)));
+        assertEquals(2, queue.size());
+
+        assertEquals("a", queue.poll().eventType);
+        assertEquals("b", queue.poll().eventType);
+        assertNull(queue.poll());
+        assertEquals(2, queue.producedCount());
+        assertEquals(2, queue.consumedCount());
+    }
+
+    @Test
+    public void testBounded() {
+        EventQueue queue = new EventQueue(2);
+        assertTrue(queue.offer(event("a", 1)));
+        assertTrue(queue.offer(event("b", 2)));
+        assertFalse(queue.offer(event("c", 3)));
+
+        // slots are reused once consumed
+        assertEquals("a", queue.poll().eventType);
+        assertTrue(queue.offer(event("c", 3)));
+        assertEquals("b", queue.poll().eventType);
+        assertEquals("c", queue.poll().eventType);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPollBeforeWaitsForClaimedSlot() throws InterruptedException {
+        final EventQueue queue = new EventQueue(4);
+        // the barrier counts a slot whose event is published only later
+        long barrier = queue.producedCount() + 1;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {}
+                queue.offer(event("a", 1));
+            }
+        });
+        producer.start();
+        assertEquals("a", queue.pollBefore(barrier).eventType);
+        producer.join();
+
+        assertTrue(queue.offer(event("b", 2)));
+        assertNull(queue.pollBefore(barrier));
+        assertEquals("b", queue.poll().eventType);
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        try {
+            new EventQueue(3);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void testConcurrentConsumers() throws InterruptedException {
+        final int events = 4000;
+        final EventQueue queue = new EventQueue(8192);
+        for (int i = 0; i < events; i++) {
+            queue.offer(event("e", i));
+        }
+
+        final Set<Long> seen = Collections.synchronizedSet(new HashSet<Long>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    EventQueue.PendingEvent event;
+                    while ((event = queue.poll()) != null) {
+                        assertTrue(seen.add(event.timestamp));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(events, seen.size());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 1000;
+        final EventQueue queue = new EventQueue(8192);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(event("p" + producer, i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<String> seen = new HashSet<String>();
+        long[] lastTimestamp = new long[producers];
+        EventQueue.PendingEvent event;
+        while ((event = queue.poll()) != null) {
+            int producer = Integer.parseInt(event.eventType.substring(1));
+            // each producer's events come out in the order they were offered
+            if (event.timestamp > 0) {
+                assertEquals(lastTimestamp[producer] + 1, event.timestamp);
+            }
+            lastTimestamp[producer] = event.timestamp;
+            seen.add(event.eventType + ":" + event.timestamp);
+        }
+        assertEquals(producers * perProducer, seen.size());
+    }
+}
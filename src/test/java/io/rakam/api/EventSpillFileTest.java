@@ -0,0 +1,85 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventSpillFileTest extends BaseTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        file = new File(context.getFilesDir(), "spill_test");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testAppendAndPollInOrder() throws JSONException {
+        EventSpillFile spill = new EventSpillFile(file);
+        assertFalse(spill.isActive());
+
+        JSONObject properties = new JSONObject().put("key", "value\nwith newline");
+        assertTrue(spill.append(new EventQueue.PendingEvent("a", properties, 1, false)));
+        assertTrue(spill.append(new EventQueue.PendingEvent("b", null,
+                new EventProperties().putLong("count", 2), 2, true, 4,
+                SuperProperties.of(new JSONObject().put("plan", "pro")))));
+        assertTrue(spill.isActive());
+        assertEquals(2, spill.appendedCount());
+
+        EventQueue.PendingEvent a = spill.poll();
+        assertEquals("a", a.eventType);
+        assertEquals("value\nwith newline", a.properties.optString("key"));
+        assertEquals(1, a.timestamp);
+        assertNull(a.superProperties);
+        assertFalse(spill.finishIfDrained());
+
+        EventQueue.PendingEvent b = spill.poll();
+        assertEquals("b", b.eventType);
+        assertEquals(2, b.properties.optLong("count"));
+        assertTrue(b.outOfSession);
+        assertEquals(4, b.samplingWeight, 0);
+        assertEquals("{\"plan\":\"pro\"}", b.superProperties.source);
+        assertNull(spill.poll());
+
+        assertTrue(spill.finishIfDrained());
+        assertFalse(spill.isActive());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testRecover() {
+        EventSpillFile spill = new EventSpillFile(file);
+        spill.append(new EventQueue.PendingEvent("a", null, 1, false));
+        spill.append(new EventQueue.PendingEvent("b", null, 2, false));
+
+        // a new process picks up what was left
+        EventSpillFile recovered = new EventSpillFile(file);
+        recovered.recover();
+        assertTrue(recovered.isActive());
+        assertEquals("a", recovered.poll().eventType);
+        assertEquals("b", recovered.poll().eventType);
+        assertNull(recovered.poll());
+        assertTrue(recovered.finishIfDrained());
+    }
+}
@@ -0,0 +1,327 @@
+package io.rakam.api;
+
+import android.location.Location;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricTestRunner.class)
+// the JSONObject of older runtimes prints its keys in hash order, see EventWriter
+@Config(manifest = Config.NONE, sdk = 21)
+public class EventWriterTest extends BaseTest {
+
+    private static final EventIdGenerator FIXED_ID = new EventIdGenerator() {
+        @Override
+        public String generateId() {
+            return "id";
+        }
+    };
+
+    private DeviceContext deviceContext;
+    private EventWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        deviceContext = DeviceContext.build(new DeviceInfo(context), new TrackingOptions(),
+                Constants.PLATFORM, "user\"1", null);
+        writer = new EventWriter();
+    }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    /**
+     * Builds the record the way logEvent did before the writer existed.
+     */
+    private String expected(String eventType, DeviceContext context, Location location,
+                            JSONObject eventProperties, JSONObject superProperties)
+            throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put("_id", "id");
+        properties.put("_local_id", 7L);
+        properties.put("_time", 1000L);
+        properties.put("_user", context.userId);
+        properties.put("_device_id", context.deviceId);
+        properties.put("_session_id", -1L);
+        for (int i = 0; i < context.headKeys.length; i++) {
+            properties.put(context.headKeys[i], context.headValues[i]);
+        }
+        if (location != null) {
+            properties.put("_latitude", location.getLatitude());
+            properties.put("_longitude", location.getLongitude());
+        }
+        for (int i = 0; i < context.tailKeys.length; i++) {
+            properties.put(context.tailKeys[i], context.tailValues[i]);
+        }
+        if (eventProperties != null) {
+            Iterator<String> keys = eventProperties.keys();
+            while (keys.hasNext()) {
+                String next = keys.next();
+                properties.put(next, eventProperties.get(next));
+            }
+        }
+        if (superProperties != null) {
+            Iterator<String> keys = superProperties.keys();
+            while (keys.hasNext()) {
+                String next = keys.next();
+                if (eventProperties != null && eventProperties.has(next)) {
+                    continue;
+                }
+                properties.put(next, superProperties.get(next));
+            }
+        }
+        JSONObject event = new JSONObject();
+        event.put("properties", rakam.truncate(properties));
+        event.put("collection", eventType);
+        return event.toString();
+    }
+
+    private String actual(String eventType, DeviceContext context, Location location,
+                          JSONObject eventProperties, JSONObject superProperties)
+            throws JSONException {
+        return writer.write(eventType, FIXED_ID, 7, 1000, -1, context, location,
+                eventProperties, null, EventPolicy.NOT_SAMPLED, snapshot(superProperties));
+    }
+
+    private static SuperProperties snapshot(JSONObject superProperties) {
+        return superProperties == null ? null : SuperProperties.of(superProperties);
+    }
+
+    private void assertSameOutput(String eventType, Location location,
+                                  JSONObject eventProperties, JSONObject superProperties)
+            throws JSONException {
+        // serialize the expected record from copies, truncate modifies nested objects
+        String expected = expected(eventType, deviceContext, location,
+                copy(eventProperties), copy(superProperties));
+        assertEquals(expected, actual(eventType, deviceContext, location,
+                eventProperties, superProperties));
+    }
+
+    @Test
+    public void testAllocationsPerEvent() throws JSONException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        long thread = Thread.currentThread().getId();
+
+        // one of the properties replaces a context property
+        JSONObject eventProperties = new JSONObject().put("screen", "home").put("slot", 2)
+                .put("_os_name", "custom");
+        int events = 10000;
+        for (int i = 0; i < events; i++) {
+            expected("test", deviceContext, null, eventProperties, null);
+            actual("test", deviceContext, null, eventProperties, null);
+        }
+        long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < events; i++) {
+            expected("test", deviceContext, null, eventProperties, null);
+        }
+        long old = (allocations.getThreadAllocatedBytes(thread) - start) / events;
+        start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < events; i++) {
+            actual("test", deviceContext, null, eventProperties, null);
+        }
+        long streamed = (allocations.getThreadAllocatedBytes(thread) - start) / events;
+
+        // the writer allocates little more than the record it returns
+        int record = actual("test", deviceContext, null, eventProperties, null).length();
+        assertTrue(old + " bytes before, " + streamed + " now", streamed * 3 < old);
+        assertTrue(streamed + " bytes for " + record + " chars", streamed < record * 2 + 256);
+    }
+
+    // deep copy that keeps the value types, reparsing would turn -0d into 0
+    private JSONObject copy(JSONObject object) throws JSONException {
+        if (object == null) {
+            return null;
+        }
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, copyValue(object.get(key)));
+        }
+        return copy;
+    }
+
+    private Object copyValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            return copy((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+                copy.put(copyValue(array.get(i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    @Test
+    public void testNoProperties() throws JSONException {
+        assertSameOutput("test", null, null, null);
+    }
+
+    @Test
+    public void testEscapingAndNumbers() throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put("quote\"key", "a/b\\c\"d");
+        properties.put("control", "\t\b\n\r\f\u0001\u001f  \u00e9 \u2028");
+        properties.put("int", 12);
+        properties.put("long", Long.MAX_VALUE);
+        properties.put("double", 1.5);
+        properties.put("integral double", 3.0);
+        properties.put("small double", 1e-7);
+        properties.put("negative zero", -0d);
+        properties.put("float", 1.1f);
+        properties.put("boolean", false);
+        properties.put("null", JSONObject.NULL);
+        properties.put("array", new JSONArray().put(1).put("two").put(JSONObject.NULL).put(2.5));
+        properties.put("object", new JSONObject().put("nested", new JSONObject().put("k", "v")));
+        assertSameOutput("escape \"me\"/\n", null, properties, null);
+    }
+
+    @Test
+    public void testOverrides() throws JSONException {
+        JSONObject eventProperties = new JSONObject();
+        eventProperties.put("first", 1);
+        eventProperties.put("_user", "override user");
+        eventProperties.put("_library_name", 5);
+        eventProperties.put("_gps_enabled", "maybe");
+        eventProperties.put("_latitude", "not a location");
+        eventProperties.put("shared", "event");
+
+        JSONObject superProperties = new JSONObject();
+        superProperties.put("shared", "super");
+        superProperties.put("_session_id", 99);
+        superProperties.put("_user", "super user");
+        superProperties.put("super only", true);
+        assertSameOutput("test", null, eventProperties, superProperties);
+    }
+
+    @Test
+    public void testSuperPropertiesSnapshot() throws JSONException {
+        JSONObject nested = new JSONObject().put("level", 1);
+        JSONObject superProperties = new JSONObject().put("plan", "free").put("nested", nested);
+        SuperProperties snapshot = SuperProperties.of(superProperties);
+        String expected = expected("test", deviceContext, null, null, copy(superProperties));
+
+        // changes after the snapshot is taken do not show up in events
+        superProperties.put("plan", "paid");
+        nested.put("level", 2);
+        assertEquals(expected, writer.write("test", FIXED_ID, 7, 1000, -1, deviceContext, null,
+                null, null, EventPolicy.NOT_SAMPLED, snapshot));
+
+        // an event property shadowing one super property leaves the others in place
+        JSONObject eventProperties = new JSONObject().put("plan", "trial");
+        assertEquals(expected("test", deviceContext, null, copy(eventProperties),
+                new JSONObject().put("plan", "free").put("nested", new JSONObject().put("level", 1))),
+                writer.write("test", FIXED_ID, 7, 1000, -1, deviceContext, null,
+                        eventProperties, null, EventPolicy.NOT_SAMPLED, snapshot));
+    }
+
+    @Test
+    public void testLocation() throws JSONException {
+        Location location = new Location("network");
+        location.setLatitude(37.7749);
+        location.setLongitude(-122);
+
+        JSONObject eventProperties = new JSONObject().put("_longitude", "override");
+        assertSameOutput("test", location, eventProperties, null);
+    }
+
+    @Test
+    public void testTruncation() throws JSONException {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < Constants.MAX_STRING_LENGTH * 2; i++) {
+            longString.append(i % 10 == 0 ? '"' : 'a');
+        }
+        String value = longString.toString();
+
+        JSONObject eventProperties = new JSONObject();
+        eventProperties.put("string", value);
+        eventProperties.put("nested", new JSONObject().put("string", value));
+        eventProperties.put("array", new JSONArray().put(value).put(new JSONArray().put(value)));
+        eventProperties.put(value, "long keys are kept");
+
+        JSONObject superProperties = new JSONObject().put("super", value);
+        assertSameOutput(value, null, eventProperties, superProperties);
+
+        // the caller's properties are left untouched
+        assertEquals(value, eventProperties.getJSONObject("nested").getString("string"));
+    }
+
+    @Test
+    public void testTooManyProperties() throws JSONException {
+        JSONObject eventProperties = new JSONObject();
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS; i++) {
+            eventProperties.put("key" + i, i);
+        }
+        assertSameOutput("test", null, eventProperties, null);
+
+        JSONObject nested = new JSONObject();
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS + 1; i++) {
+            nested.put("key" + i, i);
+        }
+        assertSameOutput("test", null, new JSONObject().put("nested", nested), null);
+    }
+
+    @Test
+    public void testDisabledTrackingFields() throws JSONException {
+        TrackingOptions options = new TrackingOptions().disableCarrier().disablePlatform()
+                .disableOsName();
+        deviceContext = DeviceContext.build(new DeviceInfo(context), options,
+                Constants.PLATFORM, null, "device");
+        JSONObject eventProperties = new JSONObject().put("_carrier", "set by the app");
+        assertSameOutput("test", null, eventProperties, null);
+    }
+
+    @Test
+    public void testTypedProperties() throws JSONException {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < Constants.MAX_STRING_LENGTH + 10; i++) {
+            longString.append('/');
+        }
+        EventProperties typed = new EventProperties()
+                .putLong("long", -3)
+                .putDouble("double", 2.25)
+                .putDouble("integral", 4)
+                .putDouble("negative zero", -0d)
+                .putBoolean("boolean", true)
+                .putString("string", longString.toString())
+                .putString("_user", "override")
+                .putString("shared", "event");
+        JSONObject superProperties = new JSONObject().put("shared", "super").put("other", 1);
+
+        String expected = expected("test", deviceContext, null, typed.toJSONObject(),
+                copy(superProperties));
+        assertEquals(expected, writer.write("test", FIXED_ID, 7, 1000, -1, deviceContext, null,
+                null, typed, EventPolicy.NOT_SAMPLED, snapshot(superProperties)));
+    }
+
+    @Test
+    public void testWriterIsReused() throws JSONException {
+        JSONObject large = new JSONObject().put("a", "b");
+        String first = actual("one", deviceContext, null, large, null);
+        String second = actual("two", deviceContext, null, null, null);
+        assertEquals(expected("one", deviceContext, null, large, null), first);
+        assertEquals(expected("two", deviceContext, null, null, null), second);
+    }
+}
@@ -0,0 +1,147 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class InMemoryEventStoreTest extends BaseTest {
+
+    private InMemoryEventStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        store = new InMemoryEventStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testLog() throws JSONException {
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("time", 100L);
+        assertEquals(1, store.addEvent("{\"collection\":\"e1\"}", "last_event_id", metadata));
+        assertEquals(2, store.addIdentify("{\"collection\":\"i2\"}", "last_identify_id", null));
+        assertEquals(4, store.addEvents(
+                Arrays.asList("{\"collection\":\"e3\"}", "{\"collection\":\"e4\"}"),
+                "last_event_id", null));
+        assertEquals(Long.valueOf(4), store.getLongValue("last_event_id"));
+        assertEquals(Long.valueOf(2), store.getLongValue("last_identify_id"));
+        assertEquals(Long.valueOf(100), store.getLongValue("time"));
+        assertEquals(3, store.getEventCount());
+        assertEquals(1, store.getIdentifyCount());
+
+        List<JSONObject> log = store.getLog(3, -1);
+        assertEquals(3, log.size());
+        assertEquals("i2", log.get(1).getString("collection"));
+        assertEquals(2, log.get(1).getLong("event_id"));
+        assertEquals(2, store.getLog(-1, 2).size());
+
+        // the identify in between the events is kept
+        assertEquals(2, store.removeOldestEvents(2));
+        assertEquals("i2", store.getLog(-1, -1).get(0).getString("collection"));
+        store.removeLog(2);
+        assertEquals(0, store.getIdentifyCount());
+        store.removeLogEntry(4);
+        assertEquals(0, store.getTotalEventCount());
+        assertEquals(0, store.getLogBytes());
+        assertTrue(store.getLog(-1, -1).isEmpty());
+
+        store.addEvents(Arrays.asList("{\"collection\":\"e5\"}", "{\"collection\":\"e6\"}"),
+                null, null);
+        long bytes = store.getLogBytes();
+        assertTrue(store.removeOldestBytes(1) >= 1);
+        assertEquals(1, store.getEventCount());
+        assertEquals(bytes / 2, store.getLogBytes());
+    }
+
+    @Test
+    public void testKeyValues() {
+        assertNull(store.getValue("key"));
+        store.insertOrReplaceKeyValue("key", "value");
+        assertEquals("value", store.getValue("key"));
+        store.insertOrReplaceKeyValue("key", null);
+        assertNull(store.getValue("key"));
+
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        values.put("a", 1L);
+        values.put("b", 2L);
+        store.insertOrReplaceKeyLongValues(values);
+        values.put("a", null);
+        store.insertOrReplaceKeyLongValues(values);
+        assertNull(store.getLongValue("a"));
+        assertEquals(Long.valueOf(2), store.getLongValue("b"));
+    }
+
+    @Test
+    public void testMemoryEngine() throws JSONException {
+        RakamClient client = new RakamClient("memory_engine");
+        client.setStorageEngine(StorageEngine.MEMORY);
+        client.initialize(context, server == null ? null : server.url("/").url(), apiKey);
+        ShadowLooper looper = Shadows.shadowOf(client.logThread.getLooper());
+        looper.runToEndOfTasks();
+        assertTrue(client.eventStore instanceof InMemoryEventStore);
+
+        client.setOffline(true);
+        client.logEvent("test_event");
+        client.identify(new Identify().set("key", "value"));
+        looper.runToEndOfTasks();
+        assertEquals(1, client.getUnsentEventCount());
+        assertEquals(1, client.getUnsentIdentifyCount());
+        assertEquals("test_event",
+                client.eventStore.getLog(-1, -1).get(0).getString("collection"));
+
+        // too late once initialized
+        client.setStorageEngine(StorageEngine.SQLITE);
+        assertTrue(client.eventStore instanceof InMemoryEventStore);
+        assertFalse(DatabaseHelper.instances.containsKey("memory_engine"));
+    }
+
+    @Test
+    public void testMemoryEngineMovesDatabase() throws JSONException {
+        // an install that used the database before
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, "memory_move");
+        dbHelper.insertOrReplaceKeyValue(RakamClient.DEVICE_ID_KEY, "old_device");
+        dbHelper.insertOrReplaceKeyValue(RakamClient.USER_ID_KEY, "old_user");
+        dbHelper.insertOrReplaceKeyLongValue(RakamClient.OPT_OUT_KEY, 0L);
+        dbHelper.addEvent("{\"collection\":\"unsent_event\"}");
+        dbHelper.addIdentify("{\"collection\":\"$identify\"}");
+        dbHelper.close();
+
+        RakamClient client = new RakamClient("memory_move");
+        client.setStorageEngine(StorageEngine.MEMORY);
+        client.initialize(context, server == null ? null : server.url("/").url(), apiKey);
+        ShadowLooper looper = Shadows.shadowOf(client.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        assertEquals("old_device", client.getDeviceId());
+        assertEquals("old_user", client.getUserId());
+        List<JSONObject> log = client.eventStore.getLog(-1, -1);
+        assertEquals(2, log.size());
+        assertEquals("unsent_event", log.get(0).getString("collection"));
+        assertEquals(Long.valueOf(log.get(1).getLong("event_id")),
+                client.eventStore.getLongValue(RakamClient.LAST_IDENTIFY_ID_KEY));
+        assertFalse(context.getDatabasePath(DatabaseHelper.getDatabaseName("memory_move")).exists());
+        assertFalse(DatabaseHelper.instances.containsKey("memory_move"));
+    }
+}
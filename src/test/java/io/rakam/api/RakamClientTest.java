@@ -1,6 +1,8 @@
 package io.rakam.api;
 
+import android.content.ContentValues;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -39,6 +41,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -119,6 +122,140 @@ public class RakamClientTest extends BaseTest {
         assertEquals(event2.optJSONObject("properties").optString("_user"), userId2);
     }
 
+    @Test
+    public void testLogEventDoesNotBlock() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.logEvent("event1");
+        // nothing is written until logThread drains the pending queue
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(rakam.pendingEvents.size(), 1);
+
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 1);
+        assertTrue(rakam.pendingEvents.isEmpty());
+    }
+
+    @Test
+    public void testEventMaxBytes() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        rakam.setOffline(true);
+        rakam.logEvent("event1");
+        looper.runToEndOfTasks();
+
+        StorageUsage usage = rakam.getStorageUsage();
+        assertEquals(1, usage.getEventCount());
+        assertEquals(0, usage.getIdentifyCount());
+        long eventBytes = usage.getQueueBytes();
+        assertTrue(eventBytes > 0);
+        assertTrue(usage.getFileBytes() > 0);
+
+        // room for about three events, the earliest are dropped
+        long maxBytes = eventBytes * 3 + eventBytes / 2;
+        rakam.setEventMaxBytes(maxBytes);
+        for (int i = 2; i <= 6; i++) {
+            rakam.logEvent("event" + i);
+        }
+        looper.runToEndOfTasks();
+        usage = rakam.getStorageUsage();
+        assertTrue(usage.getQueueBytes() <= maxBytes);
+        assertTrue(usage.getEventCount() < 6);
+        assertEquals(usage.getEventCount(), getUnsentEventCount());
+        List<JSONObject> events = rakam.eventStore.getLog(-1, -1);
+        assertFalse("event1".equals(events.get(0).getString("collection")));
+        assertEquals("event6", events.get(events.size() - 1).getString("collection"));
+    }
+
+    @Test
+    public void testLogEventOrderedWithSetUserId() {
+        // messages posted at uptime 0 jump to the front of the queue
+        Robolectric.getForegroundThreadScheduler().advanceTo(1);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setUserId("user_id1");
+        rakam.logEvent("event1");
+        rakam.setUserId("user_id2");
+        rakam.logEvent("event2");
+        looper.runToEndOfTasks();
+
+        JSONArray events = getUnsentEvents(2);
+        assertEquals(events.optJSONObject(0).optString("collection"), "event1");
+        assertEquals(events.optJSONObject(0).optJSONObject("properties").optString("_user"), "user_id1");
+        assertEquals(events.optJSONObject(1).optString("collection"), "event2");
+        assertEquals(events.optJSONObject(1).optJSONObject("properties").optString("_user"), "user_id2");
+    }
+
+    private void fillPendingEvents(int extra) {
+        for (int i = 0; i < Constants.PENDING_EVENT_QUEUE_CAPACITY + extra; i++) {
+            rakam.logEvent("event" + i);
+        }
+    }
+
+    @Test
+    public void testOverflowDropOldest() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // the default policy
+        fillPendingEvents(5);
+        assertEquals(rakam.getDroppedEventCount(), 5);
+        // the evicted events are no longer counted as accepted
+        assertEquals(rakam.getAcceptedEventCount(), Constants.PENDING_EVENT_QUEUE_CAPACITY);
+        assertEquals(rakam.pendingEvents.size(), Constants.PENDING_EVENT_QUEUE_CAPACITY);
+        assertEquals(rakam.pendingEvents.poll().eventType, "event5");
+    }
+
+    @Test
+    public void testOverflowDropNewest() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        fillPendingEvents(5);
+        assertEquals(rakam.getDroppedEventCount(), 5);
+        assertEquals(rakam.getAcceptedEventCount(), Constants.PENDING_EVENT_QUEUE_CAPACITY);
+        assertEquals(rakam.pendingEvents.poll().eventType, "event0");
+    }
+
+    @Test
+    public void testOverflowBlockWithTimeout() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setOverflowPolicy(OverflowPolicy.BLOCK_WITH_TIMEOUT);
+        rakam.setOverflowBlockTimeoutMillis(10);
+        // logThread is paused, so the blocked event times out
+        fillPendingEvents(1);
+        assertEquals(rakam.getBlockedEventCount(), 1);
+        assertEquals(rakam.getDroppedEventCount(), 1);
+    }
+
+    @Test
+    public void testOverflowSpillToDisk() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        rakam.setEventMaxCount(Constants.PENDING_EVENT_QUEUE_CAPACITY * 2);
+        rakam.setEventUploadThreshold(Constants.PENDING_EVENT_QUEUE_CAPACITY * 2);
+        fillPendingEvents(3);
+        assertEquals(rakam.getDroppedEventCount(), 0);
+        assertEquals(rakam.getAcceptedEventCount(), Constants.PENDING_EVENT_QUEUE_CAPACITY + 3);
+
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), Constants.PENDING_EVENT_QUEUE_CAPACITY + 3);
+        // spilled events are replayed after the buffered ones
+        assertEquals(getLastUnsentEvent().optString("collection"),
+                "event" + (Constants.PENDING_EVENT_QUEUE_CAPACITY + 2));
+
+        // once caught up, events go through the buffer again
+        rakam.logEvent("after");
+        assertEquals(rakam.pendingEvents.size(), 1);
+    }
+
     @Test
     public void testSetDeviceId() {
         DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
@@ -456,7 +593,8 @@ public class RakamClientTest extends BaseTest {
         assertEquals(getUnsentEventCount(), 1);
         assertEquals(rakam.lastEventId, 1);
         assertEquals(getUnsentIdentifyCount(), 1);
-        assertEquals(rakam.lastIdentifyId, 1);
+        // events and identifys share one id sequence
+        assertEquals(rakam.lastIdentifyId, 2);
 
         JSONArray unsentEvents = getUnsentEvents(1);
         assertEquals(unsentEvents.optJSONObject(0).optString("collection"), "test_event");
@@ -473,8 +611,9 @@ public class RakamClientTest extends BaseTest {
         RecordedRequest request = runRequest(rakam);
         JSONArray events = getEventsFromRequest(request);
         assertEquals(events.length(), 2);
-        assertEquals(events.optJSONObject(0).optString("collection"), Constants.IDENTIFY_EVENT);
-        assertEquals(events.optJSONObject(1).optString("collection"), "test_event");
+        // uploaded in the order they were logged
+        assertEquals(events.optJSONObject(0).optString("collection"), "test_event");
+        assertEquals(events.optJSONObject(1).optString("collection"), Constants.IDENTIFY_EVENT);
 //        assertTrue(Utils.compareJSONObjects(
 //            events.optJSONObject(1).optJSONObject("properties"), expectedIdentify
 //        ));
@@ -651,6 +790,8 @@ public class RakamClientTest extends BaseTest {
         ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
         looper.runToEndOfTasks();
 
+        // saved one by one, the upload starts before the identifys are saved
+        rakam.setGroupCommit(1, 0);
         for (int i = 0; i < Constants.EVENT_UPLOAD_THRESHOLD; i++) {
             rakam.logEvent("test_event" + i);
         }
@@ -690,6 +831,446 @@ public class RakamClientTest extends BaseTest {
         assertTrue(id.length() > 0);
     }
 
+    @Test
+    public void testLogEventWithEventProperties() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        EventProperties properties = new EventProperties()
+                .putString("screen", "home")
+                .putLong("offset", 120);
+        rakam.logEvent("scroll", properties);
+        // changes after logging do not leak into the logged event
+        properties.putLong("offset", 240);
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        JSONObject event = getLastUnsentEvent();
+        assertEquals(event.optString("collection"), "scroll");
+        JSONObject eventProperties = event.optJSONObject("properties");
+        assertEquals(eventProperties.optString("screen"), "home");
+        assertEquals(eventProperties.optLong("offset"), 120);
+    }
+
+    @Test
+    public void testSuperProperties() throws JSONException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        JSONObject superProperties = new JSONObject().put("plan", "free");
+        rakam.setSuperProperties(superProperties);
+        // later changes to the app's object are not picked up
+        superProperties.put("plan", "paid");
+        rakam.setSuperProperties(new JSONObject().put("plan", "trial"));
+        rakam.logEvent("test");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        assertEquals(getLastUnsentEvent().getJSONObject("properties").getString("plan"), "trial");
+        assertEquals(rakam.getSuperProperties().getString("plan"), "trial");
+        assertEquals(dbHelper.getValue(RakamClient.SUPER_PROPERTIES_KEY), "{\"plan\":\"trial\"}");
+
+        // an event keeps the super properties it was logged with
+        rakam.logEvent("before_clear");
+        rakam.clearSuperProperties();
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getLastUnsentEvent().getJSONObject("properties").getString("plan"), "trial");
+        assertNull(rakam.getSuperProperties());
+        assertNull(dbHelper.getValue(RakamClient.SUPER_PROPERTIES_KEY));
+
+        rakam.logEvent("after_clear");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertFalse(getLastUnsentEvent().getJSONObject("properties").has("plan"));
+    }
+
+    @Test
+    public void testDuplicateSuppression() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.enableDuplicateSuppression(500, false);
+        clock.setTimestamps(new long[]{1000, 1100, 1200, 2000});
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        rakam.logEvent("tap", new JSONObject().put("button", "cancel"));
+        // outside of the window
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        assertEquals(getUnsentEventCount(), startCount + 3);
+        assertEquals(rakam.getSuppressedDuplicateCount(), 1);
+    }
+
+    @Test
+    public void testDuplicateSuppressionWithCount() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.enableDuplicateSuppression(500, true);
+        clock.setTimestamps(new long[]{1000, 1100, 1200});
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // the first event is saved as is, the duplicates are folded into the second
+        assertEquals(getUnsentEventCount(), startCount + 2);
+        JSONArray events = getUnsentEvents(2);
+        assertFalse(events.getJSONObject(0).getJSONObject("properties").has("_repeat_count"));
+        JSONObject properties = events.getJSONObject(1).getJSONObject("properties");
+        assertEquals(properties.getString("button"), "ok");
+        assertEquals(properties.getInt("_repeat_count"), 2);
+        assertEquals(properties.getLong("_time"), 1100);
+        assertEquals(rakam.getSuppressedDuplicateCount(), 1);
+    }
+
+    @Test
+    public void testEventsWithoutDuplicatesNotHeld() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.enableDuplicateSuppression(500, true);
+        clock.setTimestamps(new long[]{1000, 1100});
+        rakam.logEvent("tap", new JSONObject().put("button", "ok"));
+        rakam.logEvent("tap", new JSONObject().put("button", "cancel"));
+        // only the tasks due now, the window has not passed
+        looper.idle();
+
+        assertEquals(getUnsentEventCount(), startCount + 2);
+        assertEquals(getLastUnsentEvent().getJSONObject("properties").getString("button"),
+                "cancel");
+    }
+
+    @Test
+    public void testHeldDuplicatesSavedBeforeUserChange() throws JSONException {
+        Robolectric.getForegroundThreadScheduler().advanceTo(1);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setUserId("first_user");
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.enableDuplicateSuppression(500, true);
+        clock.setTimestamps(new long[]{1000, 1100, 1150, 1200});
+        rakam.logEvent("tap");
+        rakam.logEvent("tap");
+        rakam.logEvent("tap");
+        rakam.setUserId("second_user");
+        rakam.logEvent("tap");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // the held duplicate is saved for the user it was logged by, the next one starts over
+        assertEquals(getUnsentEventCount(), startCount + 3);
+        JSONArray events = getUnsentEvents(3);
+        JSONObject first = events.getJSONObject(0).getJSONObject("properties");
+        assertEquals(first.getString("_user"), "first_user");
+        assertFalse(first.has("_repeat_count"));
+        JSONObject held = events.getJSONObject(1).getJSONObject("properties");
+        assertEquals(held.getString("_user"), "first_user");
+        assertEquals(held.getInt("_repeat_count"), 2);
+        JSONObject second = events.getJSONObject(2).getJSONObject("properties");
+        assertEquals(second.getString("_user"), "second_user");
+        assertFalse(second.has("_repeat_count"));
+    }
+
+    @Test
+    public void testMetadataCheckpoint() {
+        Robolectric.getForegroundThreadScheduler().advanceTo(1);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        clock.setTimestamps(new long[]{1000});
+        rakam.logEvent("test");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // written with the event
+        assertEquals(dbHelper.getLongValue(RakamClient.LAST_EVENT_ID_KEY),
+                Long.valueOf(rakam.lastEventId));
+        assertEquals(dbHelper.getLongValue(RakamClient.LAST_EVENT_TIME_KEY), Long.valueOf(1000));
+        assertEquals(dbHelper.getLongValue(RakamClient.PREVIOUS_SESSION_ID_KEY),
+                Long.valueOf(rakam.sessionId));
+
+        // written on exit without an event
+        rakam.onEnterForeground(2000);
+        rakam.onExitForeground(3000);
+        // the checkpoint timer moved the looper clock ahead, run what is already due
+        looper.idle();
+        assertEquals(dbHelper.getLongValue(RakamClient.LAST_EVENT_TIME_KEY), Long.valueOf(3000));
+    }
+
+    @Test
+    public void testIncrement() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        clock.setTimestamps(new long[]{1000, 2000, 3000, 4000, 5000});
+        rakam.increment("impression", new JSONObject().put("slot", 1), 1);
+        rakam.increment("impression", new JSONObject().put("slot", 1), 2);
+        rakam.increment("impression", new JSONObject().put("slot", 2), 1);
+        rakam.increment("impression", new JSONObject().put("slot", 1), 0);
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // nothing is written until the counters are flushed
+        assertEquals(getUnsentEventCount(), startCount);
+
+        rakam.onExitForeground(5000);
+        looper.runToEndOfTasks();
+
+        assertEquals(getUnsentEventCount(), startCount + 2);
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        JSONObject first = events.getJSONObject(events.length() - 2);
+        assertEquals(first.optString("collection"), "impression");
+        JSONObject properties = first.getJSONObject("properties");
+        assertEquals(properties.getInt("slot"), 1);
+        assertEquals(properties.getLong("_count"), 3);
+        assertEquals(properties.getLong("_first_time"), 1000);
+        assertEquals(properties.getLong("_last_time"), 2000);
+        JSONObject second = events.getJSONObject(events.length() - 1);
+        assertEquals(second.getJSONObject("properties").getLong("_count"), 1);
+    }
+
+    @Test
+    public void testIncrementFlushedBeforeUserChange() throws JSONException {
+        Robolectric.getForegroundThreadScheduler().advanceTo(1);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setUserId("first_user");
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.increment("impression", null, 2);
+        rakam.setUserId("second_user");
+        rakam.increment("impression", null, 1);
+        rakam.onExitForeground(5000);
+        looper.runToEndOfTasks();
+
+        // the counter taken before the change is written for the first user
+        assertEquals(getUnsentEventCount(), startCount + 2);
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        JSONObject first = events.getJSONObject(events.length() - 2).getJSONObject("properties");
+        assertEquals(first.getString("_user"), "first_user");
+        assertEquals(first.getLong("_count"), 2);
+        JSONObject second = events.getJSONObject(events.length() - 1).getJSONObject("properties");
+        assertEquals(second.getString("_user"), "second_user");
+        assertEquals(second.getLong("_count"), 1);
+    }
+
+    @Test
+    public void testIncrementKeepsSuperProperties() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        rakam.setSuperProperties(new JSONObject().put("plan", "free"));
+        rakam.increment("impression", null, 2);
+        rakam.setSuperProperties(new JSONObject().put("plan", "paid"));
+        rakam.increment("impression", null, 1);
+        rakam.onExitForeground(5000);
+        looper.runToEndOfTasks();
+
+        // each counter is written with the super properties its increments were taken with
+        assertEquals(getUnsentEventCount(), startCount + 2);
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        JSONObject first = events.getJSONObject(events.length() - 2).getJSONObject("properties");
+        assertEquals(first.getString("plan"), "free");
+        assertEquals(first.getLong("_count"), 2);
+        JSONObject second = events.getJSONObject(events.length() - 1).getJSONObject("properties");
+        assertEquals(second.getString("plan"), "paid");
+        assertEquals(second.getLong("_count"), 1);
+    }
+
+    @Test
+    public void testLogEvents() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+        long previousEventId = rakam.lastEventId;
+
+        JSONObject properties = new JSONObject().put("step", 1);
+        rakam.logEvents(Arrays.asList(
+                new Event("first").setEventProperties(properties),
+                new Event(""),
+                new Event("second").setOutOfSession(true),
+                new Event("third")
+        ));
+        // the batch keeps a snapshot of the properties
+        properties.put("step", 2);
+        looper.runToEndOfTasks();
+
+        assertEquals(getUnsentEventCount(), startCount + 3);
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        JSONObject first = events.getJSONObject(events.length() - 3);
+        assertEquals(first.optString("collection"), "first");
+        assertEquals(first.getJSONObject("properties").getInt("step"), 1);
+        JSONObject second = events.getJSONObject(events.length() - 2);
+        assertEquals(second.optString("collection"), "second");
+        assertEquals(second.getJSONObject("properties").getLong("_session_id"), -1);
+        assertEquals(events.getJSONObject(events.length() - 1).optString("collection"), "third");
+        assertEquals(events.getJSONObject(events.length() - 1).getLong("event_id"), rakam.lastEventId);
+
+        // every event of the batch gets its own local id
+        for (int i = 0; i < 3; i++) {
+            assertEquals(events.getJSONObject(events.length() - 3 + i)
+                    .getJSONObject("properties").getLong("_local_id"), previousEventId + i);
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        // a burst of 5 events is saved in groups of at most 2
+        rakam.setGroupCommit(2, 1000);
+        for (int i = 0; i < 5; i++) {
+            rakam.logEvent("burst", new JSONObject().put("i", i));
+        }
+        looper.runToEndOfTasks();
+
+        assertEquals(getUnsentEventCount(), startCount + 5);
+        JSONArray events = getUnsentEvents(5);
+        for (int i = 0; i < 5; i++) {
+            JSONObject event = events.getJSONObject(i);
+            assertEquals(event.getJSONObject("properties").getInt("i"), i);
+            if (i > 0) {
+                // ids keep increasing and each event records the id saved before it
+                long previousId = events.getJSONObject(i - 1).getLong("event_id");
+                assertEquals(event.getLong("event_id"), previousId + 1);
+                assertEquals(event.getJSONObject("properties").getLong("_local_id"), previousId);
+            }
+        }
+        assertEquals(events.getJSONObject(4).getLong("event_id"), rakam.lastEventId);
+
+        // turned off, events are saved one by one
+        rakam.setGroupCommit(1, 0);
+        rakam.logEvent("single");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), startCount + 6);
+        assertEquals(getLastEvent().optString("collection"), "single");
+    }
+
+    @Test
+    public void testGroupCommitRolledBackIsSavedOneByOne() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        // the second insert of the group fails without an exception, SQLite rolls back all three
+        DatabaseHelper dbHelper = PowerMockito.spy(DatabaseHelper.getDatabaseHelper(context));
+        PowerMockito.doCallRealMethod().doReturn(-1L).doCallRealMethod().when(dbHelper)
+                .insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class),
+                        Matchers.anyString(), Matchers.any(ContentValues.class));
+        rakam.eventStore = dbHelper;
+        rakam.setGroupCommit(5, 1000);
+        for (int i = 0; i < 3; i++) {
+            rakam.logEvent("burst", new JSONObject().put("i", i));
+        }
+        looper.runToEndOfTasks();
+
+        assertEquals(dbHelper.getEventCount(), startCount + 3);
+        List<JSONObject> events = dbHelper.getEvents(-1, -1);
+        for (int i = 0; i < 3; i++) {
+            JSONObject event = events.get(events.size() - 3 + i);
+            assertEquals(event.getJSONObject("properties").getInt("i"), i);
+        }
+        assertEquals(events.get(events.size() - 1).getLong("event_id"), rakam.lastEventId);
+    }
+
+    @Test
+    public void testGroupCommitUploadsAfterCommit() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long startCount = getUnsentEventCount();
+
+        // the threshold is reached inside the group, the upload waits for the whole group
+        rakam.setEventUploadThreshold((int) startCount + 2);
+        rakam.setGroupCommit(5, 1000);
+        for (int i = 0; i < 3; i++) {
+            rakam.logEvent("burst", new JSONObject().put("i", i));
+        }
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(rakam);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(events.length(), startCount + 3);
+    }
+
+    @Test
+    public void testEventPolicy() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setEventPolicy("heartbeat", new EventPolicy().setThrottle(3, 60000));
+        rakam.setEventPolicy("scroll", new EventPolicy().setSampleRate(0.5));
+        for (int i = 0; i < 5; i++) {
+            rakam.logEvent("heartbeat");
+        }
+        for (int i = 0; i < 20; i++) {
+            rakam.logEvent("scroll");
+        }
+        rakam.logEvent("other");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        assertEquals(rakam.getThrottledEventCount("heartbeat"), 2);
+        assertEquals(rakam.getSampledOutEventCount("heartbeat"), 0);
+        long sampledOut = rakam.getSampledOutEventCount("scroll");
+        assertEquals(getUnsentEventCount(), 3 + (20 - sampledOut) + 1);
+
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.optJSONObject(i);
+            JSONObject properties = event.optJSONObject("properties");
+            if (event.optString("collection").equals("scroll")) {
+                assertEquals(properties.optDouble("_sampling_weight"), 2.0, 0);
+            } else {
+                assertFalse(properties.has("_sampling_weight"));
+            }
+        }
+
+        // removing the policy resets its counters
+        rakam.setEventPolicy("heartbeat", null);
+        assertEquals(rakam.getThrottledEventCount("heartbeat"), 0);
+    }
+
+    @Test
+    public void testSetEventIdGenerator() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setEventIdGenerator(new EventIdGenerator() {
+            @Override
+            public String generateId() {
+                return "custom id";
+            }
+        });
+        rakam.logEvent("test_event");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getLastUnsentEvent().optJSONObject("properties").optString("_id"), "custom id");
+
+        // null restores the default generator
+        rakam.setEventIdGenerator(null);
+        rakam.logEvent("test_event");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        String id = getLastUnsentEvent().optJSONObject("properties").optString("_id");
+        assertEquals(id.length(), 36);
+        assertNotEquals(id, "custom id");
+    }
+
     @Test
     public void testLogRevenue() throws JSONException {
         ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
@@ -1009,6 +1590,34 @@ public class RakamClientTest extends BaseTest {
 //        assertEquals(object.optString(Constants.AMP_REVENUE_RECEIPT_SIG), longString);
     }
 
+    @Test
+    public void testTruncateDoesNotModifyInput() throws JSONException {
+        String longString = generateStringWithLength(Constants.MAX_STRING_LENGTH * 2, 'c');
+        String truncString = generateStringWithLength(Constants.MAX_STRING_LENGTH, 'c');
+        JSONObject nested = new JSONObject().put("long string", longString);
+        JSONArray array = new JSONArray().put(10).put(longString);
+        JSONObject object = new JSONObject();
+        object.put("short string", "short");
+        object.put("jsonobject", nested);
+        object.put("array", array);
+
+        JSONObject truncated = rakam.truncate(object);
+        assertEquals(truncated.optString("short string"), "short");
+        assertEquals(truncated.optJSONObject("jsonobject").optString("long string"), truncString);
+        assertEquals(truncated.optJSONArray("array").getInt(0), 10);
+        assertEquals(truncated.optJSONArray("array").getString(1), truncString);
+
+        // the input is left as is
+        assertEquals(nested.optString("long string"), longString);
+        assertEquals(array.getString(1), longString);
+        assertSame(object.optJSONObject("jsonobject"), nested);
+        assertSame(object.optJSONArray("array"), array);
+
+        // nothing is copied when nothing needs truncating
+        JSONObject small = new JSONObject().put("nested", new JSONObject().put("a", "b"));
+        assertSame(rakam.truncate(small), small);
+    }
+
     @Test
     public void testTruncateNullJSONObject() throws JSONException {
         assertTrue(Utils.compareJSONObjects(
@@ -1036,14 +1645,14 @@ public class RakamClientTest extends BaseTest {
         RecordedRequest request = runRequest(rakam);
         JSONArray events = getEventsFromRequest(request);
 
-        assertEquals(events.optJSONObject(1).optString("collection"), "test");
+        assertEquals(events.optJSONObject(0).optString("collection"), "test");
         assertEquals(
-                events.optJSONObject(1).optJSONObject("properties").optString("long_string"),
+                events.optJSONObject(0).optJSONObject("properties").optString("long_string"),
                 truncString
         );
-        assertEquals(events.optJSONObject(0).optString("collection"), Constants.IDENTIFY_EVENT);
+        assertEquals(events.optJSONObject(1).optString("collection"), Constants.IDENTIFY_EVENT);
         assertEquals(
-                events.optJSONObject(0).optJSONObject("properties").optJSONObject(AMP_OP_SET).optString("long_string"),
+                events.optJSONObject(1).optJSONObject("properties").optJSONObject(AMP_OP_SET).optString("long_string"),
                 truncString
         );
     }
@@ -1207,14 +1816,15 @@ public class RakamClientTest extends BaseTest {
         Robolectric.getForegroundThreadScheduler().advanceTo(1);
         ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
 
-        // log an event successfully
+        // log an event successfully, once initialize has run on logThread
         rakam.logEvent("testEvent1");
+        looper.runToEndOfTasks();
         assertEquals(getUnsentEventCount(), 1);
         assertEquals(getUnsentIdentifyCount(), 0);
 
         // mock out database helper to force CursorWindowAllocationExceptions
-        DatabaseHelper dbHelper = rakam.dbHelper;
-        rakam.dbHelper = new MockDatabaseHelper(context);
+        EventStore dbHelper = rakam.eventStore;
+        rakam.eventStore = new MockDatabaseHelper(context);
 
         // force an upload and verify no request sent
         // make sure we catch it during sending of events and defer sending
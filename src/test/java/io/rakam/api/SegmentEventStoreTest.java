@@ -0,0 +1,338 @@
+package io.rakam.api;
+
+import android.os.Handler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SegmentEventStoreTest extends BaseTest {
+
+    private File directory;
+    private SegmentEventStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        directory = new File(context.getFilesDir(), "segments_test");
+        delete(directory);
+        store = new SegmentEventStore(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private int segmentCount() {
+        return directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SegmentEventStore.SEGMENT_SUFFIX);
+            }
+        }).length;
+    }
+
+    @Test
+    public void testLog() throws JSONException {
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("time", 100L);
+        assertEquals(1, store.addEvent("{\"collection\":\"e1\"}", "last_event_id", metadata));
+        assertEquals(2, store.addIdentify("{\"collection\":\"i2\"}", "last_identify_id", null));
+        assertEquals(4, store.addEvents(
+                Arrays.asList("{\"collection\":\"e3\"}", "{\"collection\":\"e4\"}"),
+                "last_event_id", null));
+        assertEquals(Long.valueOf(4), store.getLongValue("last_event_id"));
+        assertEquals(Long.valueOf(100), store.getLongValue("time"));
+        assertEquals(3, store.getEventCount());
+        assertEquals(1, store.getIdentifyCount());
+
+        List<JSONObject> log = store.getLog(3, -1);
+        assertEquals(3, log.size());
+        assertEquals("i2", log.get(1).getString("collection"));
+        assertEquals(2, log.get(1).getLong("event_id"));
+        assertEquals(2, store.getLog(-1, 2).size());
+
+        // the identify in between the events is kept
+        assertEquals(2, store.removeOldestEvents(2));
+        assertEquals("i2", store.getLog(-1, -1).get(0).getString("collection"));
+        store.removeLog(2);
+        assertEquals(0, store.getIdentifyCount());
+        store.removeLogEntry(4);
+        assertEquals(0, store.getTotalEventCount());
+        assertEquals(0, store.getLogBytes());
+        assertTrue(store.getLog(-1, -1).isEmpty());
+
+        store.addEvents(Arrays.asList("{\"collection\":\"e5\"}", "{\"collection\":\"e6\"}"),
+                null, null);
+        long bytes = store.getLogBytes();
+        assertTrue(store.removeOldestBytes(1) >= 1);
+        assertEquals(1, store.getEventCount());
+        assertEquals(bytes / 2, store.getLogBytes());
+    }
+
+    @Test
+    public void testReopen() throws JSONException {
+        store.insertOrReplaceKeyValue("device_id", "device");
+        store.addEvent("{\"collection\":\"e1\"}", "last_event_id", null);
+        store.addIdentify("{\"collection\":\"i2\"}", "last_identify_id", null);
+        store.addEvent("{\"collection\":\"e3\"}", "last_event_id", null);
+        store.removeLog(1);
+        store.removeLogEntry(2);
+        store.close();
+
+        // the cursor, the deleted flag and the metadata are read back
+        store = new SegmentEventStore(directory);
+        assertEquals("device", store.getValue("device_id"));
+        assertEquals(Long.valueOf(3), store.getLongValue("last_event_id"));
+        assertEquals(Long.valueOf(2), store.getLongValue("last_identify_id"));
+        assertEquals(1, store.getEventCount());
+        assertEquals(0, store.getIdentifyCount());
+        List<JSONObject> log = store.getLog(-1, -1);
+        assertEquals(1, log.size());
+        assertEquals(3, log.get(0).getLong("event_id"));
+
+        // ids are not reused, even once everything is uploaded
+        store.removeLog(3);
+        store.close();
+        store = new SegmentEventStore(directory);
+        assertEquals(0, store.getTotalEventCount());
+        assertEquals(4, store.addEvent("{\"collection\":\"e4\"}", "last_event_id", null));
+    }
+
+    @Test
+    public void testSegmentsDroppedOnceUploaded() throws JSONException {
+        store = new SegmentEventStore(directory, 256);
+        for (int i = 1; i <= 40; i++) {
+            store.addEvent("{\"collection\":\"event\",\"i\":" + i + "}", null, null);
+        }
+        int segments = segmentCount();
+        assertTrue(segments > 2);
+
+        List<JSONObject> log = store.getLog(-1, -1);
+        assertEquals(40, log.size());
+        for (int i = 0; i < log.size(); i++) {
+            assertEquals(i + 1, log.get(i).getLong("event_id"));
+        }
+
+        store.removeLog(20);
+        assertTrue(segmentCount() < segments);
+        assertEquals(20, store.getEventCount());
+        assertEquals(21, store.getLog(-1, 1).get(0).getLong("event_id"));
+
+        // the last segment stays for the next appends
+        store.removeLog(40);
+        assertEquals(1, segmentCount());
+        assertEquals(41, store.addEvent("{\"collection\":\"event\"}", null, null));
+    }
+
+    @Test
+    public void testOversizedBatchNotSaved() {
+        store = new SegmentEventStore(directory, 256);
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 512; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        String big = "{\"collection\":\"" + builder + "\"}";
+        assertEquals(-1, store.addEvents(
+                Arrays.asList("{\"collection\":\"small\"}", big), "last_event_id", null));
+        assertEquals(0, store.getEventCount());
+        assertNull(store.getLongValue("last_event_id"));
+        assertEquals(1, store.addEvents(
+                Collections.singletonList("{\"collection\":\"small\"}"), null, null));
+    }
+
+    @Test
+    public void testTornWriteRecovery() throws JSONException, IOException {
+        for (int i = 1; i <= 3; i++) {
+            store.addEvent("{\"collection\":\"event\",\"i\":" + i + "}", "last_event_id", null);
+        }
+        store.close();
+
+        // flip the last written byte, which belongs to the payload of the third event
+        File segment = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SegmentEventStore.SEGMENT_SUFFIX);
+            }
+        })[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        byte[] bytes = new byte[(int) file.length()];
+        file.readFully(bytes);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            last--;
+        }
+        file.seek(last);
+        file.write(bytes[last] ^ 0xff);
+        file.close();
+
+        store = new SegmentEventStore(directory);
+        assertEquals(2, store.getEventCount());
+        assertEquals(Long.valueOf(2), store.getLongValue("last_event_id"));
+        assertEquals(3, store.addEvent("{\"collection\":\"event\",\"i\":4}", null, null));
+        store.close();
+
+        store = new SegmentEventStore(directory);
+        List<JSONObject> log = store.getLog(-1, -1);
+        assertEquals(3, log.size());
+        assertEquals(4, log.get(2).getInt("i"));
+    }
+
+    @Test
+    public void testTransactionWritesMetadataOnce() {
+        store.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                store.insertOrReplaceKeyValue("user_id", "user");
+                store.insertOrReplaceKeyLongValue("sequence_number", 5L);
+                assertFalse(new File(directory, SegmentEventStore.METADATA_FILE).exists());
+            }
+        });
+        store.close();
+        store = new SegmentEventStore(directory);
+        assertEquals("user", store.getValue("user_id"));
+        assertEquals(Long.valueOf(5), store.getLongValue("sequence_number"));
+    }
+
+    @Test
+    public void testAppendMetadataWrittenBehind() {
+        File metadataFile = new File(directory, SegmentEventStore.METADATA_FILE);
+        store.addEvent("{\"collection\":\"e1\"}", "last_event_id", null);
+        long modified = metadataFile.lastModified();
+        metadataFile.setLastModified(modified - 10000);
+
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("last_event_time", 100L);
+        store.addEvent("{\"collection\":\"e2\"}", "last_event_id", metadata);
+        // the append does not rewrite the metadata file
+        assertEquals(modified - 10000, metadataFile.lastModified());
+        assertEquals(Long.valueOf(100), store.getLongValue("last_event_time"));
+
+        store.close();
+        store = new SegmentEventStore(directory);
+        assertEquals(Long.valueOf(100), store.getLongValue("last_event_time"));
+        assertEquals(Long.valueOf(2), store.getLongValue("last_event_id"));
+    }
+
+    @Test
+    public void testSegmentEngine() throws JSONException {
+        RakamClient client = new RakamClient("segment_engine");
+        client.setStorageEngine(StorageEngine.MAPPED_SEGMENTS);
+        client.initialize(context, server == null ? null : server.url("/").url(), apiKey);
+        ShadowLooper looper = Shadows.shadowOf(client.logThread.getLooper());
+        looper.runToEndOfTasks();
+        assertTrue(client.eventStore instanceof SegmentEventStore);
+
+        client.setOffline(true);
+        client.logEvent("test_event");
+        client.identify(new Identify().set("key", "value"));
+        looper.runToEndOfTasks();
+        assertEquals(1, client.getUnsentEventCount());
+        assertEquals(1, client.getUnsentIdentifyCount());
+        assertEquals("test_event",
+                client.eventStore.getLog(-1, -1).get(0).getString("collection"));
+        client.eventStore.close();
+        delete(new File(context.getFilesDir(), Constants.SEGMENT_DIR_PREFIX + "segment_engine"));
+    }
+
+    @Test
+    public void testSegmentEngineMovesDatabase() throws JSONException {
+        // an install that used the database before
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, "segment_move");
+        dbHelper.insertOrReplaceKeyValue(RakamClient.DEVICE_ID_KEY, "old_device");
+        dbHelper.insertOrReplaceKeyValue(RakamClient.USER_ID_KEY, "old_user");
+        dbHelper.insertOrReplaceKeyLongValue(RakamClient.OPT_OUT_KEY, 0L);
+        dbHelper.addEvent("{\"collection\":\"unsent_event\"}");
+        dbHelper.addIdentify("{\"collection\":\"$identify\"}");
+        dbHelper.close();
+
+        RakamClient client = new RakamClient("segment_move");
+        client.setStorageEngine(StorageEngine.MAPPED_SEGMENTS);
+        client.initialize(context, server == null ? null : server.url("/").url(), apiKey);
+        ShadowLooper looper = Shadows.shadowOf(client.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        assertEquals("old_device", client.getDeviceId());
+        assertEquals("old_user", client.getUserId());
+        List<JSONObject> log = client.eventStore.getLog(-1, -1);
+        assertEquals(2, log.size());
+        assertEquals("unsent_event", log.get(0).getString("collection"));
+        assertEquals(Long.valueOf(log.get(1).getLong("event_id")),
+                client.eventStore.getLongValue(RakamClient.LAST_IDENTIFY_ID_KEY));
+        assertFalse(context.getDatabasePath(DatabaseHelper.getDatabaseName("segment_move")).exists());
+        assertFalse(DatabaseHelper.instances.containsKey("segment_move"));
+        client.eventStore.close();
+        delete(new File(context.getFilesDir(), Constants.SEGMENT_DIR_PREFIX + "segment_move"));
+    }
+
+    @Test
+    public void testSameLogAsSqliteAfterReopen() throws JSONException {
+        int appends = 2000;
+        String event = "{\"collection\":\"test_event\",\"properties\":{\"_time\":1500000000000,"
+                + "\"_session_id\":1500000000000,\"_platform\":\"Android\",\"value\":%d}}";
+
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, "segment_compare");
+        dbHelper.setIdleCloseHandler(new Handler());
+        EventStore[] stores = {dbHelper, store};
+        // the session values RakamClient writes behind every event
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put("previous_session_id", 1500000000000L);
+        for (int s = 0; s < stores.length; s++) {
+            EventStore eventStore = stores[s];
+            for (int i = 0; i < appends; i++) {
+                metadata.put("last_event_time", 1500000000000L + i);
+                eventStore.addEvent(String.format(event, i), "last_event_id", metadata);
+            }
+
+            eventStore.close();
+            if (eventStore == store) {
+                store = new SegmentEventStore(directory);
+                eventStore = store;
+            }
+            assertEquals(appends, eventStore.getEventCount());
+            assertEquals(appends, eventStore.getLog(-1, -1).size());
+            assertEquals(Long.valueOf(appends), eventStore.getLongValue("last_event_id"));
+            assertEquals(Long.valueOf(1500000000000L + appends - 1),
+                    eventStore.getLongValue("last_event_time"));
+        }
+        dbHelper.close();
+    }
+}
@@ -0,0 +1,144 @@
+package io.rakam.api;
+
+import android.os.Handler;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings of the storage engines. The class name does not match the surefire includes, so it
+ * is left out of {@code mvn test} and run on its own with {@code mvn test -Dtest=StorageBenchmark}.
+ * The results are logged and nothing is asserted. They come from the SQLite build Robolectric
+ * runs on the host, so they compare the engines with each other and do not predict device
+ * numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StorageBenchmark extends BaseTest {
+
+    private static final String TAG = "io.rakam.api.StorageBenchmark";
+    private static final String EVENT = "{\"collection\":\"test_event\",\"properties\":{"
+            + "\"_time\":1500000000000,\"_session_id\":1500000000000,"
+            + "\"_platform\":\"Android\",\"value\":%d}}";
+    private static final int WARMUP = 200;
+    private static final int INSERTS = 2000;
+
+    private final RakamLog logger = RakamLog.getLogger();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        ShadowLog.stream = System.out;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        ShadowLog.stream = null;
+    }
+
+    @Test
+    public void benchmarkStorageProfileInsertLatency() throws JSONException {
+        for (StorageProfile profile : StorageProfile.values()) {
+            String instance = "benchmark_" + profile.name();
+            context.deleteDatabase(Constants.DATABASE_NAME + "_" + instance);
+            DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, instance);
+            dbHelper.setStorageProfile(profile);
+            dbHelper.setIdleCloseHandler(new Handler());
+
+            for (int i = 0; i < WARMUP; i++) {
+                dbHelper.addEvent(String.format(EVENT, i));
+            }
+            long[] nanos = new long[INSERTS];
+            for (int i = 0; i < INSERTS; i++) {
+                long start = System.nanoTime();
+                dbHelper.addEvent(String.format(EVENT, i));
+                nanos[i] = System.nanoTime() - start;
+            }
+            logger.i(TAG, String.format("%s insert: %s", profile, latency(nanos)));
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void benchmarkSegmentsAgainstSqlite() throws JSONException {
+        DatabaseHelper.instances.clear();
+        context.deleteDatabase(Constants.DATABASE_NAME + "_benchmark_sqlite");
+        File directory = new File(context.getFilesDir(), "benchmark_segments");
+        deleteRecursively(directory);
+
+        EventStore[] stores = {
+                DatabaseHelper.getDatabaseHelper(context, "benchmark_sqlite"),
+                new SegmentEventStore(directory)
+        };
+        ((DatabaseHelper) stores[0]).setIdleCloseHandler(new Handler());
+        String[] names = {"SQLite", "segments"};
+        // the session values RakamClient writes behind every event
+        Map<String, Long> metadata = new LinkedHashMap<String, Long>();
+        metadata.put(RakamClient.PREVIOUS_SESSION_ID_KEY, 1500000000000L);
+        for (int s = 0; s < stores.length; s++) {
+            EventStore store = stores[s];
+            for (int i = 0; i < WARMUP; i++) {
+                store.addEvent(String.format(EVENT, i), RakamClient.LAST_EVENT_ID_KEY, metadata);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < INSERTS; i++) {
+                metadata.put(RakamClient.LAST_EVENT_TIME_KEY, 1500000000000L + i);
+                store.addEvent(String.format(EVENT, i), RakamClient.LAST_EVENT_ID_KEY, metadata);
+            }
+            long appendNanos = System.nanoTime() - start;
+            store.close();
+
+            // a cold open reads the metadata back and, for segments, checks every record
+            start = System.nanoTime();
+            if (s == 0) {
+                DatabaseHelper.instances.clear();
+                store = DatabaseHelper.getDatabaseHelper(context, "benchmark_sqlite");
+                ((DatabaseHelper) store).setIdleCloseHandler(new Handler());
+            } else {
+                store = new SegmentEventStore(directory);
+            }
+            long count = store.getEventCount();
+            store.getLongValue(RakamClient.LAST_EVENT_ID_KEY);
+            long reopenNanos = System.nanoTime() - start;
+
+            logger.i(TAG, String.format("%s: %.0f appends/s, reopen of %d events %.1f ms",
+                    names[s], INSERTS * 1e9 / appendNanos, count, reopenNanos / 1e6));
+            store.close();
+        }
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    static String latency(long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("mean %.1f us, p50 %.1f us, p99 %.1f us",
+                total / 1000.0 / nanos.length, sorted[nanos.length / 2] / 1000.0,
+                sorted[nanos.length * 99 / 100] / 1000.0);
+    }
+}
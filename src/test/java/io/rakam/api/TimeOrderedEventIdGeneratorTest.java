@@ -0,0 +1,94 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TimeOrderedEventIdGeneratorTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    private String id(TimeOrderedEventIdGenerator generator, long timestamp, long count) {
+        StringBuilder builder = new StringBuilder();
+        generator.appendId(builder, timestamp, count);
+        return builder.toString();
+    }
+
+    @Test
+    public void testUUIDFormat() {
+        String id = new TimeOrderedEventIdGenerator().generateId();
+        assertEquals(36, id.length());
+        UUID uuid = UUID.fromString(id);
+        assertEquals(id, uuid.toString());
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+    }
+
+    @Test
+    public void testTimeOrdered() {
+        TimeOrderedEventIdGenerator generator = new TimeOrderedEventIdGenerator(42);
+        String earlier = id(generator, 1000, 5);
+        String later = id(generator, 1001, 0);
+        assertTrue(earlier.compareTo(later) < 0);
+        assertTrue(id(generator, 1000, 1).compareTo(id(generator, 1000, 2)) < 0);
+    }
+
+    @Test
+    public void testUniqueWithinMillisecond() {
+        TimeOrderedEventIdGenerator generator = new TimeOrderedEventIdGenerator(42);
+        Set<String> ids = new HashSet<String>();
+        // more than fit in the 12 counter bits of the timestamp half
+        for (long count = 0; count < 10000; count++) {
+            assertTrue(ids.add(id(generator, 1000, count)));
+        }
+    }
+
+    @Test
+    public void testSeedsDiffer() {
+        String first = id(new TimeOrderedEventIdGenerator(1), 1000, 0);
+        String second = id(new TimeOrderedEventIdGenerator(2), 1000, 0);
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void testConcurrentGenerate() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 2000;
+        final TimeOrderedEventIdGenerator generator = new TimeOrderedEventIdGenerator();
+        final ConcurrentHashMap<String, Boolean> ids = new ConcurrentHashMap<String, Boolean>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        assertNull(ids.put(generator.generateId(), Boolean.TRUE));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(threads * perThread, ids.size());
+    }
+}
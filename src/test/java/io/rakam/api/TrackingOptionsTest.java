@@ -55,6 +55,20 @@ public class TrackingOptionsTest extends BaseTest {
         assertTrue(options.shouldTrackVersionName());
     }
 
+    @Test
+    public void testDisabledMask() {
+        assertEquals(new TrackingOptions().getDisabledMask(), 0);
+
+        TrackingOptions options = new TrackingOptions().disableCarrier().disableLatLng();
+        assertEquals(options.getDisabledMask(),
+                TrackingOptions.FIELD_CARRIER | TrackingOptions.FIELD_LAT_LNG);
+
+        // disabling the same field twice does not change the mask
+        options.disableCarrier();
+        assertEquals(options.getDisabledMask(),
+                TrackingOptions.FIELD_CARRIER | TrackingOptions.FIELD_LAT_LNG);
+    }
+
     @Test
     public void testGetApiPropertiesTrackingOptions() throws JSONException {
         TrackingOptions options = new TrackingOptions().disableCity().disableCountry().disableIpAddress().disableLanguage().disableLatLng();